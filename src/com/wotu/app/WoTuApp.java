@@ -8,6 +8,7 @@ import android.os.Looper;
 import com.wotu.common.ThreadPool;
 import com.wotu.data.DataManager;
 import com.wotu.data.cache.ImageCacher;
+import com.wotu.data.cache.ImageJobCoalescer;
 
 public interface WoTuApp {
     // basic
@@ -25,4 +26,6 @@ public interface WoTuApp {
     public ThreadPool getThreadPool();
 
     public ImageCacher getImageCacheService();
+
+    public ImageJobCoalescer getImageJobCoalescer();
 }
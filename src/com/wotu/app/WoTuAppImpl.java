@@ -3,8 +3,10 @@ package com.wotu.app;
 import com.wotu.common.ThreadPool;
 import com.wotu.data.DataManager;
 import com.wotu.data.cache.ImageCacher;
+import com.wotu.data.cache.ImageJobCoalescer;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 
 public class WoTuAppImpl extends Application implements WoTuApp {
@@ -13,6 +15,7 @@ public class WoTuAppImpl extends Application implements WoTuApp {
     private ImageCacher mImageCacheService;
     private DataManager mDataManager;
     private ThreadPool mThreadPool;
+    private ImageJobCoalescer mImageJobCoalescer;
 
     @Override
     public synchronized DataManager getDataManager() {
@@ -31,6 +34,14 @@ public class WoTuAppImpl extends Application implements WoTuApp {
         return mThreadPool;
     }
 
+    @Override
+    public synchronized ImageJobCoalescer getImageJobCoalescer() {
+        if (mImageJobCoalescer == null) {
+            mImageJobCoalescer = new ImageJobCoalescer(this);
+        }
+        return mImageJobCoalescer;
+    }
+
     @Override
     public ImageCacher getImageCacheService() {
         // This method may block on file I/O so a dedicated lock is needed here.
@@ -42,6 +53,24 @@ public class WoTuAppImpl extends Application implements WoTuApp {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Do not open the image cache just to trim it.
+        ImageCacher imageCacheService;
+        synchronized (mLock) {
+            imageCacheService = mImageCacheService;
+        }
+        if (imageCacheService != null) {
+            imageCacheService.trimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
 
     @Override
     public Context getAndroidContext() {
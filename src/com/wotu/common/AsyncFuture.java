@@ -0,0 +1,302 @@
+package com.wotu.common;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A Future which runs further steps when it is done, instead of making a
+// thread wait for it in get(). A multi-step load becomes a chain:
+//
+//     pool.submitAsync(queryJob, priority)
+//             .thenApply(decode, pool.asExecutor(priority))
+//             .thenApply(upload, AsyncFuture.on(glHandler));
+//
+// Each step runs on the given Executor: DIRECT runs it on the thread which
+// completed the previous step, on(handler) posts it to a Handler, e.g. a
+// SynchronizedHandler to run it on the GL thread with the render lock held.
+//
+// Like other Futures here, get() does not throw; it returns null unless the
+// future completed normally. A future which is cancelled, or whose job is,
+// completes as cancelled: isCancelled() is true and the steps after it are
+// skipped and complete as cancelled too. A step which throws completes its
+// future exceptionally, see getFailure(), and so do the steps after it.
+// Cancelling a future cancels the step in progress before it, so a future
+// shared by several chains should not be cancelled through one of them.
+public class AsyncFuture<T> implements Future<T> {
+    private static final String TAG = "AsyncFuture";
+
+    public interface Function<A, B> {
+        public B apply(A a);
+    }
+
+    // Runs the step on the thread which completed the previous one. Only
+    // for short steps: that may be a pool thread or the GL thread.
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    public static Executor on(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    // Guarded by "this".
+    private boolean mIsDone;
+    private T mResult;
+    private Throwable mFailure;
+    private ArrayList<Runnable> mCallbacks = new ArrayList<Runnable>();
+    private ArrayList<Executor> mExecutors = new ArrayList<Executor>();
+    // The work this future waits for; cancelled with it.
+    private ArrayList<Future<?>> mSources = new ArrayList<Future<?>>();
+    private volatile boolean mIsCancelled;
+
+    // A future which is done already. Handy to start a chain with.
+    public static <T> AsyncFuture<T> completed(T result) {
+        AsyncFuture<T> future = new AsyncFuture<T>();
+        future.complete(result);
+        return future;
+    }
+
+    // Completes with the results of all the futures, in their order, once
+    // every one of them is done. Cancelling it cancels all of them.
+    public static <T> AsyncFuture<List<T>> allOf(
+            final List<? extends AsyncFuture<? extends T>> futures) {
+        final AsyncFuture<List<T>> all = new AsyncFuture<List<T>>();
+        final int count = futures.size();
+        if (count == 0) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (final AsyncFuture<? extends T> future : futures) {
+            all.addSource(future);
+            future.addCallback(new Runnable() {
+                @Override
+                public void run() {
+                    if (remaining.decrementAndGet() > 0) return;
+                    ArrayList<T> results = new ArrayList<T>(count);
+                    for (AsyncFuture<? extends T> f : futures) {
+                        if (f.isCancelled()) {
+                            all.completeCancelled();
+                            return;
+                        }
+                        Throwable failure = f.getFailure();
+                        if (failure != null) {
+                            all.completeExceptionally(failure);
+                            return;
+                        }
+                        results.add(f.getResult());
+                    }
+                    all.complete(results);
+                }
+            }, DIRECT);
+        }
+        return all;
+    }
+
+    // Runs "function" on the result once this future is done. Returns the
+    // future of its result.
+    public <R> AsyncFuture<R> thenApply(
+            final Function<? super T, ? extends R> function,
+            Executor executor) {
+        final AsyncFuture<R> next = new AsyncFuture<R>();
+        next.addSource(this);
+        addCallback(new Runnable() {
+            @Override
+            public void run() {
+                if (next.completeLike(AsyncFuture.this)) return;
+                R result;
+                try {
+                    result = function.apply(getResult());
+                } catch (Throwable t) {
+                    WLog.w(TAG, "step failed", t);
+                    next.completeExceptionally(t);
+                    return;
+                }
+                next.complete(result);
+            }
+        }, executor);
+        return next;
+    }
+
+    // Like thenApply(), for a function which starts more asynchronous work:
+    // the returned future completes when the future returned by "function"
+    // does.
+    public <R> AsyncFuture<R> thenCompose(
+            final Function<? super T, ? extends AsyncFuture<R>> function,
+            Executor executor) {
+        final AsyncFuture<R> next = new AsyncFuture<R>();
+        next.addSource(this);
+        addCallback(new Runnable() {
+            @Override
+            public void run() {
+                if (next.completeLike(AsyncFuture.this)) return;
+                AsyncFuture<R> inner;
+                try {
+                    inner = function.apply(getResult());
+                } catch (Throwable t) {
+                    WLog.w(TAG, "step failed", t);
+                    next.completeExceptionally(t);
+                    return;
+                }
+                if (inner == null) {
+                    next.complete(null);
+                    return;
+                }
+                final AsyncFuture<R> source = inner;
+                next.addSource(source);
+                source.addCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (next.completeLike(source)) return;
+                        next.complete(source.getResult());
+                    }
+                }, DIRECT);
+            }
+        }, executor);
+        return next;
+    }
+
+    // Runs the callback on the executor once this future is done, right
+    // away if it is done already.
+    public void addCallback(Runnable callback, Executor executor) {
+        synchronized (this) {
+            if (!mIsDone) {
+                mCallbacks.add(callback);
+                mExecutors.add(executor);
+                return;
+            }
+        }
+        executor.execute(callback);
+    }
+
+    // Sets the result and runs the callbacks. Returns false, and does
+    // nothing, if the future is done already.
+    public boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    // Completes the future as cancelled, e.g. because the job it waits for
+    // was. Returns false, and does nothing, if it is done already.
+    public boolean completeCancelled() {
+        return finish(null, null, true);
+    }
+
+    // Completes the future as failed with the given cause. Returns false, and
+    // does nothing, if it is done already.
+    public boolean completeExceptionally(Throwable failure) {
+        if (failure == null) throw new NullPointerException();
+        return finish(null, failure, false);
+    }
+
+    // Completes this future like "previous" if that one was cancelled or
+    // failed, or if this one has been cancelled. Returns whether it did, so
+    // the caller knows to skip its step.
+    private boolean completeLike(AsyncFuture<?> previous) {
+        if (previous.isCancelled() || isCancelled()) {
+            completeCancelled();
+            return true;
+        }
+        Throwable failure = previous.getFailure();
+        if (failure == null) return false;
+        completeExceptionally(failure);
+        return true;
+    }
+
+    private boolean finish(T result, Throwable failure, boolean cancelled) {
+        ArrayList<Runnable> callbacks;
+        ArrayList<Executor> executors;
+        synchronized (this) {
+            if (mIsDone) return false;
+            if (cancelled) mIsCancelled = true;
+            mResult = result;
+            mFailure = failure;
+            mIsDone = true;
+            notifyAll();
+            callbacks = mCallbacks;
+            executors = mExecutors;
+            mCallbacks = null;
+            mExecutors = null;
+            mSources = null;
+        }
+        for (int i = 0, n = callbacks.size(); i < n; ++i) {
+            executors.get(i).execute(callbacks.get(i));
+        }
+        return true;
+    }
+
+    // Makes cancel() cancel the source too. The source is cancelled right
+    // away if this future has been cancelled already.
+    void addSource(Future<?> source) {
+        synchronized (this) {
+            if (!mIsDone && !mIsCancelled) {
+                mSources.add(source);
+                return;
+            }
+            if (mIsDone) return;
+        }
+        source.cancel();
+    }
+
+    private synchronized T getResult() {
+        return mResult;
+    }
+
+    // The cause if the future failed, otherwise null.
+    public synchronized Throwable getFailure() {
+        return mFailure;
+    }
+
+    @Override
+    public void cancel() {
+        Future<?>[] sources;
+        synchronized (this) {
+            if (mIsCancelled) return;
+            mIsCancelled = true;
+            if (mIsDone) return;
+            sources = mSources.toArray(new Future<?>[mSources.size()]);
+        }
+        for (Future<?> source : sources) {
+            source.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mIsDone;
+    }
+
+    // Blocks until the future is done. Chain a step with thenApply()
+    // instead where possible, in particular on pool threads.
+    @Override
+    public synchronized T get() {
+        while (!mIsDone) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+        return mResult;
+    }
+
+    @Override
+    public void waitDone() {
+        get();
+    }
+}
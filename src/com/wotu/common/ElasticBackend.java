@@ -0,0 +1,54 @@
+package com.wotu.common;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ThreadPool backend for jobs which mostly block on I/O, e.g. provider
+ * queries and file reads. It starts a thread for each job up to a limit
+ * and lets idle threads die, so blocked jobs do not hold the threads of the
+ * CPU lane. Jobs run in the order they were submitted; priorities are
+ * ignored.
+ */
+public class ElasticBackend implements ThreadPool.Backend {
+    private final int mMaxThreadCount;
+    private final LinkedBlockingQueue<Runnable> mQueue =
+            new LinkedBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor mExecutor;
+
+    public ElasticBackend(int maxThreadCount, long keepAliveMs) {
+        mMaxThreadCount = maxThreadCount;
+        // With an unbounded queue a ThreadPoolExecutor only grows up to its
+        // core size, so the core size is the limit, and core threads time
+        // out too.
+        mExecutor = new ThreadPoolExecutor(maxThreadCount, maxThreadCount,
+                keepAliveMs, TimeUnit.MILLISECONDS, mQueue,
+                new ThreadCreator("io-pool",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        return mQueue.remove(task);
+    }
+
+    @Override
+    public boolean runPendingTask() {
+        Runnable task = mQueue.poll();
+        if (task == null) return false;
+        task.run();
+        return true;
+    }
+
+    @Override
+    public int getThreadCount() {
+        return mMaxThreadCount;
+    }
+}
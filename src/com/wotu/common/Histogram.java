@@ -0,0 +1,102 @@
+package com.wotu.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A lock-free histogram of non-negative values, e.g. durations in
+// microseconds. Like HdrHistogram, the buckets have a bounded relative
+// width: values below 2^SUB_BITS get a bucket each, and each larger power
+// of two is split into 2^SUB_BITS buckets, so a bucket is at most 12.5% of
+// its values wide. Recording is a few atomic increments; there is no lock
+// and no allocation.
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Enough buckets for every positive long.
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // A copy of the histogram at one point in time.
+    public static class Snapshot {
+        public final long count;
+        public final long sum;
+        public final long max;
+        private final long[] mCounts;
+
+        private Snapshot(long count, long sum, long max, long[] counts) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            mCounts = counts;
+        }
+
+        public long getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        // The value below which the given fraction of the values fall, e.g.
+        // getPercentile(0.99f) for the 99th percentile. The result is the
+        // upper end of a bucket, so it may be up to 12.5% too high.
+        public long getPercentile(float fraction) {
+            long total = 0;
+            for (long c : mCounts) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + getMean()
+                    + " p50=" + getPercentile(0.5f)
+                    + " p90=" + getPercentile(0.9f)
+                    + " p99=" + getPercentile(0.99f) + " max=" + max;
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mCounts.incrementAndGet(bucketOf(value));
+        mTotalCount.incrementAndGet();
+        mSum.addAndGet(value);
+        while (true) {
+            long max = mMax.get();
+            if (value <= max || mMax.compareAndSet(max, value)) break;
+        }
+    }
+
+    // The buckets are copied one by one while recording goes on, so the
+    // snapshot may be off by the values recorded meanwhile.
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(mTotalCount.get(), mSum.get(), mMax.get(), counts);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        long lowest = (long) (SUB_COUNT | (bucket % SUB_COUNT)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
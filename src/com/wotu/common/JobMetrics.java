@@ -0,0 +1,50 @@
+package com.wotu.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// What a ThreadPool measures for one class of jobs. Durations are in
+// microseconds:
+//
+// - wait: from submit() until a thread starts the job,
+// - run: the time in Job.run(),
+// - cpu: the time the job holds a MODE_CPU slot.
+//
+// A job cancelled before it started does not run and only counts as such.
+public class JobMetrics {
+    final Histogram mWaitMicros = new Histogram();
+    final Histogram mRunMicros = new Histogram();
+    final Histogram mCpuMicros = new Histogram();
+    final AtomicLong mCancelledBeforeStart = new AtomicLong();
+    final AtomicLong mCancelledDuringRun = new AtomicLong();
+    final AtomicLong mExpired = new AtomicLong();
+
+    public static class Snapshot {
+        public final Histogram.Snapshot waitMicros;
+        public final Histogram.Snapshot runMicros;
+        public final Histogram.Snapshot cpuMicros;
+        public final long cancelledBeforeStart;
+        public final long cancelledDuringRun;
+        public final long expired;
+
+        private Snapshot(JobMetrics m) {
+            waitMicros = m.mWaitMicros.snapshot();
+            runMicros = m.mRunMicros.snapshot();
+            cpuMicros = m.mCpuMicros.snapshot();
+            cancelledBeforeStart = m.mCancelledBeforeStart.get();
+            cancelledDuringRun = m.mCancelledDuringRun.get();
+            expired = m.mExpired.get();
+        }
+
+        @Override
+        public String toString() {
+            return "wait(us) " + waitMicros + ", run(us) " + runMicros
+                    + ", cpu(us) " + cpuMicros + ", cancelled before start "
+                    + cancelledBeforeStart + ", during run "
+                    + cancelledDuringRun + ", expired " + expired;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+}
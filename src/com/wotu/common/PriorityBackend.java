@@ -0,0 +1,49 @@
+package com.wotu.common;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default ThreadPool backend: a fixed number of threads taking jobs from
+ * one queue, ordered by ThreadPool priority.
+ */
+public class PriorityBackend implements ThreadPool.Backend {
+    private final int mThreadCount;
+    // Only holds ThreadPool Workers, which are Comparable by priority.
+    private final PriorityBlockingQueue<Runnable> mQueue =
+            new PriorityBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor mExecutor;
+
+    public PriorityBackend(int threadCount) {
+        mThreadCount = threadCount;
+        // The queue is unbounded, so a ThreadPoolExecutor never grows past
+        // its core size anyway.
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0,
+                TimeUnit.SECONDS, mQueue, new ThreadCreator("thread-pool",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        return mQueue.remove(task);
+    }
+
+    @Override
+    public boolean runPendingTask() {
+        Runnable task = mQueue.poll();
+        if (task == null) return false;
+        task.run();
+        return true;
+    }
+
+    @Override
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+}
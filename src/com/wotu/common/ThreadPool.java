@@ -1,25 +1,48 @@
 package com.wotu.common;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class ThreadPool {
     private static final String TAG = "ThreadPool";
-    private static final int CORE_POOL_SIZE = 4;
-    private static final int MAX_POOL_SIZE = 8;
-    private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
+    private static final int POOL_SIZE = 4;
+    private static final int CPU_JOB_COUNT = 2;
+    // The I/O lane grows up to this many threads, and lets them go after
+    // they have been idle for a while.
+    private static final int IO_POOL_SIZE = 16;
+    private static final long IO_KEEP_ALIVE_MS = 10000;
 
     // Resource type
     public static final int MODE_NONE = 0;
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Job priorities. Lower values run first, and jobs with the same priority
+    // run in the order they were submitted. Work for what is on screen uses
+    // the default; work nobody waits for yet, e.g. ThumbnailPrewarmer, runs
+    // behind it. A job which leaves or enters the screen before it starts
+    // can be moved with setPriority().
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
-    ResourceCounter mCpuCounter = new ResourceCounter(2);
+    ResourceCounter mCpuCounter;
     ResourceCounter mNetworkCounter = new ResourceCounter(2);
+    // By default, decodes may take a quarter of the heap together.
+    private final MemoryBudget mMemoryBudget =
+            new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
 
     // A Job is like a Callable, but it has an addition JobContext parameter.
     public interface Job<T> {
@@ -30,6 +53,17 @@ public class ThreadPool {
         boolean isCancelled();
         void setCancelListener(CancelListener listener);
         boolean setMode(int mode);
+        // Whether the job has run past its timeout. An expired job is also
+        // cancelled.
+        boolean isExpired();
+        // The time left until the job expires, 0 once it has. Long.MAX_VALUE
+        // if the job has no timeout.
+        long remainingNanos();
+        // Reserves "bytes" of the pool's memory budget for an allocation the
+        // job is about to make, e.g. a decode, and waits until they are
+        // free. Replaces the job's previous reservation; the reservation is
+        // released when the job ends. Returns false if the job is cancelled.
+        boolean reserveMemory(long bytes);
     }
 
     private static class JobContextStub implements JobContext {
@@ -38,6 +72,21 @@ public class ThreadPool {
             return false;
         }
 
+        @Override
+        public boolean isExpired() {
+            return false;
+        }
+
+        @Override
+        public long remainingNanos() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean reserveMemory(long bytes) {
+            return true;
+        }
+
         @Override
         public void setCancelListener(CancelListener listener) {
         }
@@ -52,68 +101,528 @@ public class ThreadPool {
         public void onCancel();
     }
 
+    // Counts the free slots of a resource. A job waiting for a slot parks
+    // its thread in a queue. release() unparks only the oldest waiter, and
+    // a waiter which leaves while slots are free passes the wakeup on, so
+    // no slot is left unused while there are waiters.
     private static class ResourceCounter {
-        public int value;
+        private final AtomicInteger mValue;
+        private final ConcurrentLinkedQueue<Thread> mWaiters =
+                new ConcurrentLinkedQueue<Thread>();
+
         public ResourceCounter(int v) {
-            value = v;
+            mValue = new AtomicInteger(v);
+        }
+
+        private boolean tryAcquire() {
+            while (true) {
+                int value = mValue.get();
+                if (value <= 0) return false;
+                if (mValue.compareAndSet(value, value - 1)) return true;
+            }
+        }
+
+        // Takes a slot, waiting if there is none. Returns false if the job
+        // is cancelled before it gets one. The caller must unpark the
+        // waiting thread when it cancels the job.
+        public boolean acquire(JobContext jc) {
+            if (jc.isCancelled()) return false;
+            if (tryAcquire()) return true;
+            Thread thread = Thread.currentThread();
+            // Enqueue before checking again, so a release() in between is
+            // not missed: it either leaves a slot for the check or unparks
+            // this thread.
+            mWaiters.add(thread);
+            try {
+                while (true) {
+                    if (jc.isCancelled()) return false;
+                    if (tryAcquire()) return true;
+                    LockSupport.park(this);
+                }
+            } finally {
+                mWaiters.remove(thread);
+                if (mValue.get() > 0) wakeOne();
+            }
+        }
+
+        public void release() {
+            mValue.incrementAndGet();
+            wakeOne();
+        }
+
+        private void wakeOne() {
+            Thread waiter = mWaiters.peek();
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+
+    // A number of bytes which jobs reserve before large allocations. Like
+    // ResourceCounter, but reservations differ in size, so release() wakes
+    // every waiter: any of them may fit now. There are at most as many
+    // waiters as pool threads.
+    private static class MemoryBudget {
+        private final AtomicLong mAvailable;
+        private volatile long mCapacity;
+        private final ConcurrentLinkedQueue<Thread> mWaiters =
+                new ConcurrentLinkedQueue<Thread>();
+
+        public MemoryBudget(long capacity) {
+            mCapacity = capacity;
+            mAvailable = new AtomicLong(capacity);
+        }
+
+        public synchronized void setCapacity(long capacity) {
+            mAvailable.addAndGet(capacity - mCapacity);
+            mCapacity = capacity;
+            wakeAll();
+        }
+
+        public long getCapacity() {
+            return mCapacity;
+        }
+
+        // A reservation larger than the whole budget is cut down to it, so
+        // it waits until nothing else is reserved, not forever.
+        public long clamp(long bytes) {
+            return Math.min(bytes, mCapacity);
+        }
+
+        public boolean tryReserve(long bytes) {
+            while (true) {
+                long available = mAvailable.get();
+                if (available < bytes) return false;
+                if (mAvailable.compareAndSet(available, available - bytes)) {
+                    return true;
+                }
+            }
+        }
+
+        // See ResourceCounter.acquire().
+        public boolean reserve(long bytes, JobContext jc) {
+            Thread thread = Thread.currentThread();
+            mWaiters.add(thread);
+            try {
+                while (true) {
+                    if (jc.isCancelled()) return false;
+                    if (tryReserve(bytes)) return true;
+                    LockSupport.park(this);
+                }
+            } finally {
+                mWaiters.remove(thread);
+            }
+        }
+
+        public void release(long bytes) {
+            mAvailable.addAndGet(bytes);
+            wakeAll();
+        }
+
+        private void wakeAll() {
+            for (Thread waiter : mWaiters) {
+                LockSupport.unpark(waiter);
+            }
         }
     }
 
-    private final Executor mExecutor;
+    // Runs the Workers of a ThreadPool on its threads. See PriorityBackend
+    // and WorkStealingBackend.
+    public interface Backend {
+        // Runs the task on one of the backend threads.
+        public void execute(Runnable task);
+        // Takes back a task which has not started yet. Returns false if it
+        // has started, or if the backend cannot take tasks back.
+        public boolean remove(Runnable task);
+        // Runs one waiting task on the calling thread. Returns false if
+        // there was none.
+        public boolean runPendingTask();
+        public int getThreadCount();
+    }
+
+    // The Worker run by the current thread, if any.
+    private static final ThreadLocal<Worker<?>> sCurrentWorker =
+            new ThreadLocal<Worker<?>>();
+
+    private final Backend mBackend;
+    // Runs the jobs submitted with submitIo().
+    private final Backend mIoBackend;
+    private final AtomicLong mSequence = new AtomicLong();
+    // Metrics by job class, see JobMetrics. Always on: a job costs a map
+    // lookup, a few nanoTime() calls and some atomic increments.
+    private final ConcurrentHashMap<Class<?>, JobMetrics> mMetrics =
+            new ConcurrentHashMap<Class<?>, JobMetrics>();
+    // The number of jobs waiting for a thread, and its value each time a
+    // job is submitted.
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final Histogram mQueueDepths = new Histogram();
+    private Timer mMetricsTimer;
 
     public ThreadPool() {
-        mExecutor = new ThreadPoolExecutor(
-                CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
-                new ThreadCreator("thread-pool",
-                android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        this(new PriorityBackend(POOL_SIZE), CPU_JOB_COUNT);
+    }
+
+    // At most "cpuJobCount" jobs run in MODE_CPU at the same time.
+    public ThreadPool(Backend backend, int cpuJobCount) {
+        this(backend, new ElasticBackend(IO_POOL_SIZE, IO_KEEP_ALIVE_MS),
+                cpuJobCount);
+    }
+
+    public ThreadPool(Backend backend, Backend ioBackend, int cpuJobCount) {
+        mBackend = backend;
+        mIoBackend = ioBackend;
+        mCpuCounter = new ResourceCounter(cpuJobCount);
     }
 
     // Submit a job to the thread pool. The listener will be called when the
-    // job is finished (or cancelled).
-    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
-        mExecutor.execute(w);
+    // job is finished (or cancelled). Jobs waiting for a thread are started
+    // by priority, see PRIORITY_*.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        return submit(job, listener, priority, 0, TimeUnit.NANOSECONDS);
+    }
+
+    // Like submit(), but the job expires if it runs longer than the timeout:
+    // it is cancelled, so its CancelListener fires, and it is counted in
+    // getExpiredCounts(). The timeout starts when the job has its CPU slot
+    // and starts running, so time spent waiting behind other jobs, for a
+    // thread or for a slot, does not count. A timeout of 0 means none.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority, long timeout, TimeUnit unit) {
+        return submitTo(mBackend, job, listener, priority,
+                unit.toNanos(timeout));
+    }
+
+    // Submits a job which mostly blocks on I/O, e.g. a provider query, to
+    // the I/O lane. It runs on a thread of its own, so it does not hold up
+    // the CPU lane, and it starts in MODE_NONE instead of MODE_CPU, so it
+    // does not take a CPU slot while it waits. Call setMode(MODE_CPU) for
+    // CPU-heavy parts. I/O jobs run in the order they were submitted.
+    public <T> Future<T> submitIo(Job<T> job, FutureListener<T> listener) {
+        return submitTo(mIoBackend, job, listener, PRIORITY_DEFAULT, 0);
+    }
+
+    private <T> Future<T> submitTo(Backend lane, Job<T> job,
+            FutureListener<T> listener, int priority, long timeoutNanos) {
+        Worker<T> w = new Worker<T>(job, listener, priority, timeoutNanos,
+                lane);
+        mQueueDepths.record(mQueueDepth.incrementAndGet());
+        lane.execute(w);
         return w;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, PRIORITY_DEFAULT);
+    }
+
     public <T> Future<T> submit(Job<T> job) {
         return submit(job, null);
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    // Like submit(), but the returned future can be chained, see
+    // AsyncFuture. It completes as cancelled if the job is cancelled.
+    public <T> AsyncFuture<T> submitAsync(Job<T> job, int priority) {
+        AsyncFuture<T> future = new AsyncFuture<T>();
+        future.addSource(submit(job, completer(future), priority));
+        return future;
+    }
+
+    // Like submitIo(), but the returned future can be chained.
+    public <T> AsyncFuture<T> submitIoAsync(Job<T> job) {
+        AsyncFuture<T> future = new AsyncFuture<T>();
+        future.addSource(submitIo(job, completer(future)));
+        return future;
+    }
+
+    private static <T> FutureListener<T> completer(
+            final AsyncFuture<T> future) {
+        return new FutureListener<T>() {
+            @Override
+            public void onFutureDone(Future<T> done) {
+                if (done.isCancelled()) {
+                    future.completeCancelled();
+                } else {
+                    future.complete(done.get());
+                }
+            }
+        };
+    }
+
+    // An Executor which runs each task as a job of this pool, e.g. for the
+    // steps of an AsyncFuture chain.
+    public Executor asExecutor(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                submit(new Job<Void>() {
+                    @Override
+                    public Void run(JobContext jc) {
+                        command.run();
+                        return null;
+                    }
+                }, null, priority);
+            }
+        };
+    }
+
+    // Changes the priority of a job submitted to this pool. Returns false if
+    // the job has already started, or if the backend does not order jobs by
+    // priority, in which case nothing changes.
+    public boolean setPriority(Future<?> future, int priority) {
+        if (!(future instanceof Worker)) return false;
+        Worker<?> w = (Worker<?>) future;
+        // A queue does not notice a changed key, so take the job out and put
+        // it back.
+        if (!w.mLane.remove(w)) return false;
+        w.mPriority = priority;
+        w.mLane.execute(w);
+        return true;
+    }
+
+    // The bytes which running jobs may reserve together with
+    // JobContext.reserveMemory().
+    public void setMemoryBudget(long bytes) {
+        mMemoryBudget.setCapacity(bytes);
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget.getCapacity();
+    }
+
+    // The number of expired jobs so far, by the simple name of the job
+    // class, e.g. "LocalImageRequest".
+    public Map<String, Integer> getExpiredCounts() {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<Class<?>, JobMetrics> entry : mMetrics.entrySet()) {
+            int expired = (int) entry.getValue().mExpired.get();
+            if (expired > 0) counts.put(nameOf(entry.getKey()), expired);
+        }
+        return counts;
+    }
+
+    // The metrics of every job class which has run so far, by the simple
+    // name of the class.
+    public Map<String, JobMetrics.Snapshot> getMetrics() {
+        HashMap<String, JobMetrics.Snapshot> metrics =
+                new HashMap<String, JobMetrics.Snapshot>();
+        for (Map.Entry<Class<?>, JobMetrics> entry : mMetrics.entrySet()) {
+            metrics.put(nameOf(entry.getKey()), entry.getValue().snapshot());
+        }
+        return metrics;
+    }
+
+    // The number of jobs waiting for a thread each time one was submitted.
+    public Histogram.Snapshot getQueueDepths() {
+        return mQueueDepths.snapshot();
+    }
+
+    public void dumpMetrics() {
+        WLog.i(TAG, "queue depth " + mQueueDepths.snapshot());
+        for (Map.Entry<String, JobMetrics.Snapshot> entry
+                : getMetrics().entrySet()) {
+            WLog.i(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    // Calls dumpMetrics() every "intervalMs" until stopMetricsDump().
+    public synchronized void startMetricsDump(long intervalMs) {
+        stopMetricsDump();
+        mMetricsTimer = new Timer("pool-metrics", true);
+        mMetricsTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                dumpMetrics();
+            }
+        }, intervalMs, intervalMs);
+    }
+
+    public synchronized void stopMetricsDump() {
+        if (mMetricsTimer == null) return;
+        mMetricsTimer.cancel();
+        mMetricsTimer = null;
+    }
+
+    private JobMetrics metricsOf(Class<?> jobClass) {
+        JobMetrics metrics = mMetrics.get(jobClass);
+        if (metrics == null) {
+            JobMetrics created = new JobMetrics();
+            metrics = mMetrics.putIfAbsent(jobClass, created);
+            if (metrics == null) metrics = created;
+        }
+        return metrics;
+    }
+
+    // Anonymous classes have no simple name.
+    private static String nameOf(Class<?> jobClass) {
+        String name = jobClass.getSimpleName();
+        return name.isEmpty() ? jobClass.getName() : name;
+    }
+
+    // Expires the running jobs with a timeout. One daemon thread serves all
+    // pools; only running jobs are queued, so the queue stays short.
+    private static class Deadline implements Delayed {
+        private static final DelayQueue<Deadline> sQueue =
+                new DelayQueue<Deadline>();
+        private static Thread sThread;
+
+        private final Worker<?> mWorker;
+        private final long mDeadlineNanos;
+
+        private Deadline(Worker<?> worker, long deadlineNanos) {
+            mWorker = worker;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        public static Deadline start(Worker<?> worker, long deadlineNanos) {
+            Deadline deadline = new Deadline(worker, deadlineNanos);
+            synchronized (Deadline.class) {
+                if (sThread == null) {
+                    sThread = new Thread("job-deadline") {
+                        @Override
+                        public void run() {
+                            expireLoop();
+                        }
+                    };
+                    sThread.setDaemon(true);
+                    sThread.start();
+                }
+            }
+            sQueue.add(deadline);
+            return deadline;
+        }
+
+        public void stop() {
+            sQueue.remove(this);
+        }
+
+        private static void expireLoop() {
+            while (true) {
+                try {
+                    sQueue.take().mWorker.expire();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                } catch (Throwable t) {
+                    WLog.w(TAG, "expire failed", t);
+                }
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDeadlineNanos - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long d = mDeadlineNanos - ((Deadline) other).mDeadlineNanos;
+            return d < 0 ? -1 : (d == 0 ? 0 : 1);
+        }
+    }
+
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         private static final String TAG = "Worker";
         private Job<T> mJob;
         private FutureListener<T> mListener;
         private CancelListener mCancelListener;
-        private ResourceCounter mWaitOnResource;
+        // The thread waiting for a resource slot for this job, if any.
+        private volatile Thread mWaitingThread;
         private volatile boolean mIsCancelled;
+        private volatile boolean mIsExpired;
+        // 0 if the job has no timeout.
+        private final long mTimeoutNanos;
+        // Set when the job starts running, if it has a timeout.
+        private volatile long mDeadlineNanos;
+        private final long mSubmitNanos = System.nanoTime();
+        // The backend running this job: mBackend or mIoBackend.
+        private final Backend mLane;
+        // When the job took its MODE_CPU slot, and for how long it has held
+        // one in total. Only used by the thread running the job.
+        private long mCpuSinceNanos;
+        private long mCpuNanos;
+        // The bytes reserved from mMemoryBudget. Only used by the thread
+        // running the job.
+        private long mReservedBytes;
+        // Set once the job's run() has returned. Guarded by "this".
+        private boolean mHasRun;
         private boolean mIsDone;
         private T mResult;
         private int mMode;
+        // Only changed while the worker is out of the queue.
+        private volatile int mPriority;
+        private final long mSequence;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority,
+                long timeoutNanos, Backend lane) {
+            mLane = lane;
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mTimeoutNanos = timeoutNanos;
+            mSequence = ThreadPool.this.mSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Worker<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1
+                    : (mSequence == other.mSequence ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
         public void run() {
             T result = null;
-
-            // A job is in CPU mode by default. setMode returns false
-            // if the job is cancelled.
-            if (setMode(MODE_CPU)) {
+            // Not null if this job runs while another one waits for a job.
+            Worker<?> outer = sCurrentWorker.get();
+            sCurrentWorker.set(this);
+            mQueueDepth.decrementAndGet();
+            JobMetrics metrics = metricsOf(mJob.getClass());
+            boolean cancelledBeforeStart = mIsCancelled;
+            if (!cancelledBeforeStart) {
+                metrics.mWaitMicros.record(
+                        (System.nanoTime() - mSubmitNanos) / 1000);
+            }
+            Deadline deadline = null;
+
+            // A job is in CPU mode by default, an I/O job in no mode. setMode
+            // returns false if the job is cancelled.
+            int mode = (mLane == mIoBackend) ? MODE_NONE : MODE_CPU;
+            if (!mIsCancelled && setMode(mode)) {
+                long runNanos = System.nanoTime();
+                if (mTimeoutNanos > 0) {
+                    mDeadlineNanos = runNanos + mTimeoutNanos;
+                    deadline = Deadline.start(this, mDeadlineNanos);
+                }
                 try {
                     result = mJob.run(this);
                 } catch (Throwable ex) {
                     WLog.w(TAG, "Exception in running a job", ex);
                 }
+                // From here on the job cannot expire.
+                synchronized (this) {
+                    mHasRun = true;
+                }
+                metrics.mRunMicros.record(
+                        (System.nanoTime() - runNanos) / 1000);
             }
+            sCurrentWorker.set(outer);
+            if (deadline != null) deadline.stop();
 
             synchronized(this) {
                 setMode(MODE_NONE);
+                releaseMemory();
                 mResult = result;
+                // Counted before the job is done, so whoever waits for it
+                // sees it in the metrics.
+                if (cancelledBeforeStart) {
+                    metrics.mCancelledBeforeStart.incrementAndGet();
+                } else {
+                    metrics.mCpuMicros.record(mCpuNanos / 1000);
+                    if (mIsCancelled) {
+                        metrics.mCancelledDuringRun.incrementAndGet();
+                    }
+                }
                 mIsDone = true;
                 notifyAll();
             }
@@ -124,11 +633,8 @@ public class ThreadPool {
         public synchronized void cancel() {
             if (mIsCancelled) return;
             mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
-                }
-            }
+            Thread waiter = mWaitingThread;
+            if (waiter != null) LockSupport.unpark(waiter);
             if (mCancelListener != null) {
                 mCancelListener.onCancel();
             }
@@ -138,20 +644,111 @@ public class ThreadPool {
             return mIsCancelled;
         }
 
+        public boolean isExpired() {
+            return mIsExpired;
+        }
+
+        public long remainingNanos() {
+            if (mTimeoutNanos == 0) return Long.MAX_VALUE;
+            // Not started yet: the whole timeout is left.
+            long deadline = mDeadlineNanos;
+            if (deadline == 0) return mTimeoutNanos;
+            return Math.max(0, deadline - System.nanoTime());
+        }
+
+        public boolean reserveMemory(long bytes) {
+            releaseMemory();
+            if (bytes <= 0) return !mIsCancelled;
+            bytes = mMemoryBudget.clamp(bytes);
+            if (mIsCancelled) return false;
+            if (mMemoryBudget.tryReserve(bytes)) {
+                mReservedBytes = bytes;
+                return true;
+            }
+            // Waiting with a CPU slot could deadlock: the jobs holding the
+            // memory may be waiting for the slot. So give it up meanwhile.
+            int mode = mMode;
+            setMode(MODE_NONE);
+            mWaitingThread = Thread.currentThread();
+            boolean reserved;
+            try {
+                reserved = mMemoryBudget.reserve(bytes, this);
+            } finally {
+                mWaitingThread = null;
+            }
+            if (reserved) mReservedBytes = bytes;
+            // This fails only if the job has been cancelled meanwhile.
+            return setMode(mode) && reserved;
+        }
+
+        private void releaseMemory() {
+            if (mReservedBytes == 0) return;
+            mMemoryBudget.release(mReservedBytes);
+            mReservedBytes = 0;
+        }
+
+        // Called by the deadline thread when the job runs past its timeout.
+        // Does nothing if run() has returned meanwhile; the check and the
+        // cancel are one step, so a job which has finished is never
+        // cancelled or counted as expired.
+        private void expire() {
+            synchronized (this) {
+                if (mHasRun || mIsCancelled) return;
+                mIsExpired = true;
+                metricsOf(mJob.getClass()).mExpired.incrementAndGet();
+                cancel();
+            }
+            WLog.w(TAG, "job expired: " + mJob.getClass().getSimpleName());
+        }
+
         public synchronized boolean isDone() {
             return mIsDone;
         }
 
-        public synchronized T get() {
-            while (!mIsDone) {
-                try {
-                    wait();
-                } catch (Exception ex) {
-                    WLog.w(TAG, "ingore exception", ex);
-                    // ignore.
+        public T get() {
+            Worker<?> current = sCurrentWorker.get();
+            if (current != null && current.getPool() == ThreadPool.this) {
+                current.helpUntilDone(this);
+            }
+            synchronized (this) {
+                while (!mIsDone) {
+                    try {
+                        wait();
+                    } catch (Exception ex) {
+                        WLog.w(TAG, "ingore exception", ex);
+                        // ignore.
+                    }
                 }
+                return mResult;
             }
-            return mResult;
+        }
+
+        private ThreadPool getPool() {
+            return ThreadPool.this;
+        }
+
+        // Called when this job waits for another job of the same pool, e.g.
+        // a sub-job it forked. Blocking here could deadlock: the other job
+        // may need the resource this one holds, or a thread of the pool. So
+        // the resource is given up while waiting, and the thread runs
+        // waiting jobs instead of blocking while there are any.
+        private void helpUntilDone(Worker<?> other) {
+            int mode = mMode;
+            setMode(MODE_NONE);
+            while (!other.isDone()) {
+                if (mBackend.runPendingTask()) continue;
+                synchronized (other) {
+                    if (!other.mIsDone) {
+                        try {
+                            other.wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                    }
+                }
+            }
+            // This fails only if this job has been cancelled meanwhile.
+            setMode(mode);
         }
 
         public void waitDone() {
@@ -171,6 +768,9 @@ public class ThreadPool {
             // Release old resource
             ResourceCounter rc = modeToCounter(mMode);
             if (rc != null) releaseResource(rc);
+            if (mMode == MODE_CPU) {
+                mCpuNanos += System.nanoTime() - mCpuSinceNanos;
+            }
             mMode = MODE_NONE;
 
             // Acquire new resource
@@ -179,6 +779,7 @@ public class ThreadPool {
                 if (!acquireResource(rc)) {
                     return false;
                 }
+                if (mode == MODE_CPU) mCpuSinceNanos = System.nanoTime();
                 mMode = mode;
             }
 
@@ -196,41 +797,16 @@ public class ThreadPool {
         }
 
         private boolean acquireResource(ResourceCounter counter) {
-            while (true) {
-                synchronized (this) {
-                    if (mIsCancelled) {
-                        mWaitOnResource = null;
-                        return false;
-                    }
-                    mWaitOnResource = counter;
-                }
-
-                synchronized (counter) {
-                    if (counter.value > 0) {
-                        counter.value--;
-                        break;
-                    } else {
-                        try {
-                            counter.wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
-                        }
-                    }
-                }
+            mWaitingThread = Thread.currentThread();
+            try {
+                return counter.acquire(this);
+            } finally {
+                mWaitingThread = null;
             }
-
-            synchronized (this) {
-                mWaitOnResource = null;
-            }
-
-            return true;
         }
 
         private void releaseResource(ResourceCounter counter) {
-            synchronized (counter) {
-                counter.value++;
-                counter.notifyAll();
-            }
+            counter.release();
         }
     }
 }
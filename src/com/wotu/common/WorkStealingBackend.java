@@ -0,0 +1,147 @@
+package com.wotu.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ThreadPool backend where every thread has its own deque of tasks.
+ *
+ * A task submitted by one of the backend threads, e.g. a sub-job forked by a
+ * running job, goes to the front of that thread's deque and usually runs
+ * next on the same thread. Other tasks are spread over the deques in turn.
+ * A thread with an empty deque steals from the back of the others, so the
+ * threads only contend when they run out of work.
+ *
+ * Tasks run in deque order: ThreadPool priorities are ignored and tasks
+ * cannot be taken back.
+ */
+public class WorkStealingBackend implements ThreadPool.Backend {
+    private static final String TAG = "WorkStealingBackend";
+
+    private static class Lane {
+        // Guarded by the Lane.
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    }
+
+    private final Lane[] mLanes;
+    // The lane of the current thread, if it is one of ours.
+    private final ThreadLocal<Integer> mOwnLane = new ThreadLocal<Integer>();
+    private final AtomicInteger mNextLane = new AtomicInteger();
+
+    // The number of queued tasks. Idle threads wait on it.
+    private final Object mIdleLock = new Object();
+    private int mQueuedCount;
+
+    // One thread per processor.
+    public WorkStealingBackend() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public WorkStealingBackend(int threadCount) {
+        mLanes = new Lane[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            mLanes[i] = new Lane();
+        }
+        ThreadCreator creator = new ThreadCreator("steal-pool",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        for (int i = 0; i < threadCount; ++i) {
+            final int lane = i;
+            creator.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runLane(lane);
+                }
+            }).start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Integer own = mOwnLane.get();
+        if (own != null) {
+            Lane lane = mLanes[own];
+            synchronized (lane) {
+                lane.tasks.addFirst(task);
+            }
+        } else {
+            int next = (mNextLane.getAndIncrement() & 0x7fffffff)
+                    % mLanes.length;
+            Lane lane = mLanes[next];
+            synchronized (lane) {
+                lane.tasks.addLast(task);
+            }
+        }
+        synchronized (mIdleLock) {
+            ++mQueuedCount;
+            mIdleLock.notify();
+        }
+    }
+
+    @Override
+    public boolean remove(Runnable task) {
+        return false;
+    }
+
+    @Override
+    public boolean runPendingTask() {
+        Integer own = mOwnLane.get();
+        Runnable task = take(own == null ? -1 : own);
+        if (task == null) return false;
+        task.run();
+        return true;
+    }
+
+    @Override
+    public int getThreadCount() {
+        return mLanes.length;
+    }
+
+    private void runLane(int lane) {
+        mOwnLane.set(lane);
+        while (true) {
+            Runnable task = take(lane);
+            if (task == null) {
+                synchronized (mIdleLock) {
+                    while (mQueuedCount <= 0) {
+                        try {
+                            mIdleLock.wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                    }
+                }
+                continue;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                WLog.w(TAG, "Exception in running a task", t);
+            }
+        }
+    }
+
+    // Takes a task from the front of the own lane, or else from the back of
+    // another lane. "own" is -1 for a thread without a lane.
+    private Runnable take(int own) {
+        Runnable task = null;
+        if (own >= 0) {
+            Lane lane = mLanes[own];
+            synchronized (lane) {
+                task = lane.tasks.pollFirst();
+            }
+        }
+        int n = mLanes.length;
+        for (int i = 1; task == null && i <= n; ++i) {
+            Lane victim = mLanes[(Math.max(own, 0) + i) % n];
+            synchronized (victim) {
+                task = victim.tasks.pollLast();
+            }
+        }
+        if (task != null) {
+            synchronized (mIdleLock) {
+                --mQueuedCount;
+            }
+        }
+        return task;
+    }
+}
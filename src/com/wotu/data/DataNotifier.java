@@ -5,11 +5,13 @@ import android.net.Uri;
 import com.wotu.app.WoTuApp;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DataNotifier {
 
     private MediaSet mMediaSet;
     private AtomicBoolean mContentDirty = new AtomicBoolean(true);
+    private AtomicInteger mChangeCount = new AtomicInteger();
 
     public DataNotifier(MediaSet set, Uri uri, WoTuApp app) {
         mMediaSet = set;
@@ -20,11 +22,18 @@ public class DataNotifier {
         return mContentDirty.compareAndSet(true, false);
     }
 
+    // How many changes have arrived since the notifier was created. Unlike
+    // isDirty(), this does not clear the dirty flag.
+    public int getChangeCount() {
+        return mChangeCount.get();
+    }
+
     public void fakeChange() {
         onChange(false);
     }
 
     public void onChange(boolean selfChange) {
+        mChangeCount.incrementAndGet();
         if (mContentDirty.compareAndSet(false, true)) {
             mMediaSet.notifyContentChanged();
         }
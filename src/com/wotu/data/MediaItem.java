@@ -37,6 +37,10 @@ public abstract class MediaItem extends MediaObject {
     // TODO: fix default value for latlng and change this.
     public static final double INVALID_LATLNG = 0f;
 
+    // To load the image in the background, submit the request through
+    // WoTuApp.getImageJobCoalescer(), so concurrent requests for it share
+    // one job. The bitmap comes from the memory cache of ImageCacher: give it
+    // up with ImageCacher.releaseMemoryBitmap() instead of recycling it.
     public abstract Job<Bitmap> requestImage(int type);
     public abstract Job<BitmapRegionDecoder> requestLargeImage();
 
@@ -14,6 +14,9 @@ public class Path {
     private final String mPrefix;
     private final long mIdentity;
     private WeakReference<MediaObject> mObject;
+    // Computed on first use, 0 until then. See getPrefixId().
+    private volatile long mPrefixId;
+    private volatile long mHash;
 
     public Path(String prefix, long identity) {
         mPrefix = prefix;
@@ -53,12 +56,32 @@ public class Path {
 
     @Override
     public String toString() {
-        synchronized (Path.class) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Path Prefix:").append(mPrefix);
-            sb.append("Path Identity:").append(mIdentity);
-            return sb.toString();
+        // Both fields are final, so no lock is needed.
+        StringBuilder sb = new StringBuilder();
+        sb.append("Path Prefix:").append(mPrefix);
+        sb.append("Path Identity:").append(mIdentity);
+        return sb.toString();
+    }
+
+    // A 64-bit crc of the prefix. It is stable across runs, so it can be
+    // stored, e.g. in the image cache keys.
+    public long getPrefixId() {
+        long id = mPrefixId;
+        if (id == 0) {
+            id = UtilsBase.crc64Long(mPrefix);
+            mPrefixId = id;
+        }
+        return id;
+    }
+
+    // A 64-bit crc of the prefix and the identity, computed once.
+    public long getHash() {
+        long hash = mHash;
+        if (hash == 0) {
+            hash = UtilsBase.crc64Long(getPrefixId(), mIdentity);
+            mHash = hash;
         }
+        return hash;
     }
 
     public String getPrefix() {
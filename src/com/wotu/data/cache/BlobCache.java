@@ -5,28 +5,49 @@
  appended into the active region until it reaches the size limit. At that
  point the active file and the inactive file are swapped, and the new active
  file is truncated to empty (and the index for that file is also cleared).
- The index is a hash table with linear probing. When the load factor reaches
- 0.5, it does the same thing like when the size limit is reached.
+ The index is a hash table with Robin Hood probing. When the load factor
+ reaches 0.85, it does the same thing like when the size limit is reached.
 
  The index file format: (all numbers are stored in little-endian)
- [0]  Magic number: 0xB3273030
+ [0]  Header slot 0 (36 bytes).
+ [36] Header slot 1 (36 bytes).
+ [72] Hash entries for region 0. The size is X = (12 * MaxEntries bytes).
+ [72 + X] Hash entries for region 1. The size is also X.
+
+ The header slot format:
+ [0]  Magic number: 0xB3273032
  [4]  MaxEntries: Max number of hash entries per region.
  [8]  MaxBytes: Max number of data bytes per region (including header).
  [12] ActiveRegion: The active growing region: 0 or 1.
  [16] ActiveEntries: The number of hash entries used in the active region.
  [20] ActiveBytes: The number of data bytes used in the active region.
  [24] Version number.
- [28] Checksum of [0..28).
- [32] Hash entries for region 0. The size is X = (12 * MaxEntries bytes).
- [32 + X] Hash entries for region 1. The size is also X.
+ [28] Sequence number, incremented on every header update.
+ [32] Checksum of [0..32).
+
+ The header is written to the two slots in turn, so a write torn by a
+ process kill only damages one slot. On load the intact slot with the
+ higher sequence number is used.
 
  Each hash entry is 12 bytes: 8 bytes key and 4 bytes offset into the data
  file. The offset is 0 when the slot is free. Note that 0 is a valid value
  for key. The keys are used directly as index into a hash table, so they
  should be suitably distributed.
 
- Each data file stores data for one region. The data file is concatenated
- blobs followed by the magic number 0xBD248510.
+ An entry is never further from its home slot (key modulo MaxEntries) than
+ the entries after it in the same probe run are from theirs. A lookup stops
+ at the first entry which is closer to its home than the key would be, so
+ misses are as cheap as hits even when the table is nearly full.
+
+ Each data file stores data for one region. The data file is the magic
+ number 0xBD248510 followed by concatenated blobs. Every append is followed
+ by an all-zero blob header, which marks the end of the log.
+
+ The data file works as a journal for the index: the header is only
+ committed after the blob has been appended. On load the blobs past
+ ActiveBytes are replayed: complete ones get their hash entries back, and the
+ scan stops at the first torn or missing blob. Hash entries pointing past the
+ recovered end are removed. Only the tail of the active region is read.
 
  The blob format:
  [0]  Key of this blob
@@ -35,13 +56,36 @@
  [16] Length of this blob (not including header)
  [20] Blob
 
- Below are the interface for BlobCache. The instance of this class does not
- support concurrent use by multiple threads.
+ Below are the interface for BlobCache. The instance of this class can be
+ shared by multiple threads. Lookups in the active region only take the read
+ side of a read/write lock and read blobs with positional FileChannel reads,
+ so they run in parallel. Inserts (and the copy of an inactive hit into the
+ active region) take the write side, so there is one writer at a time.
+
+ Optionally the two data files are memory-mapped too ("mapData"). Then
+ lookupSlice() returns a read-only ByteBuffer over the blob instead of copying
+ it into a byte array. Each data file is extended to MaxBytes, the size it
+ reaches anyway once the cache is full, and mapped once as a whole: a
+ mapping cannot be unmapped, only collected, so remapping on growth would
+ leave a mapping behind every time. The files are never shrunk while they
+ are mapped: a flip only resets the active byte count and the new data
+ overwrites the old region in place. A slice therefore never points past the
+ end of its file, but its content is only guaranteed until the next flip;
+ callers check isSliceValid() after they are done with the bytes.
+
+ The blob checksum normally covers every byte. With CHECKSUM_SAMPLED it only
+ covers the first 64 bytes of every 4KB of the blob and its last 64 bytes,
+ so each page of a blob still contributes and a torn write is still caught.
+ The mode is not stored in the files, so callers must change their version
+ number when they change it.
 
  public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
  public void insert(long key, byte[] data) throws IOException;
+ public void insertBatch(long[] keys, byte[][] data, int count) throws IOException;
  public byte[] lookup(long key) throws IOException;
  public void lookup(LookupRequest req) throws IOException;
+ public boolean lookupSlice(LookupRequest req) throws IOException;
+ public boolean isSliceValid(LookupRequest req);
  public void close();
  public void syncIndex();
  public void syncAll();
@@ -55,15 +99,17 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
-public class BlobCache implements Closeable {
+public class BlobCache implements BlobStore {
     private static final String TAG = "BlobCache";
 
-    private static final int MAGIC_INDEX_FILE = 0xB3273030;
+    private static final int MAGIC_INDEX_FILE = 0xB3273032;
     private static final int MAGIC_DATA_FILE = 0xBD248510;
 
     // index header offset
@@ -74,11 +120,16 @@ public class BlobCache implements Closeable {
     private static final int IH_ACTIVE_ENTRIES = 16;
     private static final int IH_ACTIVE_BYTES = 20;
     private static final int IH_VERSION = 24;
-    private static final int IH_CHECKSUM = 28;
-    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int IH_SEQUENCE = 28;
+    private static final int IH_CHECKSUM = 32;
+    private static final int HEADER_SLOT_SIZE = 36;
+    private static final int INDEX_HEADER_SIZE = HEADER_SLOT_SIZE * 2;
 
     private static final int DATA_HEADER_SIZE = 4;
 
+    // The region flips when this percentage of its hash entries is used.
+    private static final int MAX_LOAD_PERCENT = 85;
+
     // blob header offset
     private static final int BH_KEY = 0;
     private static final int BH_CHECKSUM = 8;
@@ -86,6 +137,15 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // Written after each appended blob to mark the end of the log.
+    private static final byte[] END_OF_LOG = new byte[BLOB_HEADER_SIZE];
+
+    // Blob checksum modes, see the comment at the top.
+    public static final int CHECKSUM_FULL = 0;
+    public static final int CHECKSUM_SAMPLED = 1;
+    private static final int SAMPLE_STRIDE = 4096;
+    private static final int SAMPLE_BYTES = 64;
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
@@ -101,11 +161,77 @@ public class BlobCache implements Closeable {
 
     private RandomAccessFile mActiveDataFile;
     private RandomAccessFile mInactiveDataFile;
+    private FileChannel mActiveDataChannel;
+    private FileChannel mInactiveDataChannel;
     private int mActiveHashStart;
     private int mInactiveHashStart;
-    private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
+    private byte[] mIndexHeader = new byte[HEADER_SLOT_SIZE];
+    private int mHeaderSlot;
+    private int mSequence;
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
+    private long mBytesWritten;
+
+    // Only used when the data files are mapped, indexed by region.
+    private final boolean mMapData;
+    private final boolean mSampledChecksum;
+    private final MappedByteBuffer[] mDataBuffers = new MappedByteBuffer[2];
+    // Incremented on every flip, when the inactive region starts being
+    // overwritten. Slices handed out before a flip are no longer valid.
+    private volatile int mFlipCount;
+
+    // Readers share the read lock; insert, flipRegion and close take the
+    // write lock. Everything above is only modified with the write lock held.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Per-thread buffers for the read path, so concurrent lookups do not
+    // share mBlobHeader and mAdler32.
+    private class ReadScratch {
+        final byte[] header = new byte[BLOB_HEADER_SIZE];
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        final Adler32 adler32 = new Adler32();
+        final byte[] chunk = new byte[4096];
+
+        int checkSum(byte[] data, int offset, int nbytes) {
+            return blobSum(adler32, data, offset, nbytes);
+        }
+
+        // Checksums the remaining bytes of the buffer through a small chunk
+        // array, so the blob itself is not copied to the heap.
+        int checkSum(ByteBuffer data) {
+            adler32.reset();
+            if (!mSampledChecksum) {
+                while (data.hasRemaining()) {
+                    int todo = Math.min(data.remaining(), chunk.length);
+                    data.get(chunk, 0, todo);
+                    adler32.update(chunk, 0, todo);
+                }
+                return (int) adler32.getValue();
+            }
+            int start = data.position();
+            int nbytes = data.remaining();
+            for (int pos = 0; pos < nbytes; pos += SAMPLE_STRIDE) {
+                int todo = Math.min(SAMPLE_BYTES, nbytes - pos);
+                data.position(start + pos);
+                data.get(chunk, 0, todo);
+                adler32.update(chunk, 0, todo);
+            }
+            if (nbytes > SAMPLE_BYTES) {
+                data.position(start + nbytes - SAMPLE_BYTES);
+                data.get(chunk, 0, SAMPLE_BYTES);
+                adler32.update(chunk, 0, SAMPLE_BYTES);
+            }
+            return (int) adler32.getValue();
+        }
+    }
+
+    private final ThreadLocal<ReadScratch> mReadScratch =
+            new ThreadLocal<ReadScratch>() {
+        @Override
+        protected ReadScratch initialValue() {
+            return new ReadScratch();
+        }
+    };
 
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
@@ -120,10 +246,27 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    // If "mapData" is true, the data files are memory-mapped as well, and
+    // lookupSlice() can be used.
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean mapData) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, mapData,
+                CHECKSUM_FULL);
+    }
+
+    // "checksumMode" is CHECKSUM_FULL or CHECKSUM_SAMPLED.
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean mapData, int checksumMode)
+            throws IOException {
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
         mVersion = version;
+        mMapData = mapData;
+        mSampledChecksum = (checksumMode == CHECKSUM_SAMPLED);
 
         if (!reset && loadIndex()) {
             return;
@@ -157,8 +300,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mLock.writeLock().lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     private void closeAll() {
@@ -176,16 +324,22 @@ public class BlobCache implements Closeable {
             mDataFile0.seek(0);
             mDataFile1.seek(0);
 
-            byte[] buf = mIndexHeader;
-            if (mIndexFile.read(buf) != INDEX_HEADER_SIZE) {
+            byte[] slots = new byte[INDEX_HEADER_SIZE];
+            if (mIndexFile.read(slots) != INDEX_HEADER_SIZE) {
                 Log.w(TAG, "cannot read header");
                 return false;
             }
 
-            if (readInt(buf, IH_MAGIC) != MAGIC_INDEX_FILE) {
-                Log.w(TAG, "cannot read header magic");
+            int slot = pickHeaderSlot(slots);
+            if (slot < 0) {
+                Log.w(TAG, "no intact header slot");
                 return false;
             }
+            byte[] buf = mIndexHeader;
+            System.arraycopy(slots, slot * HEADER_SLOT_SIZE, buf, 0,
+                    HEADER_SLOT_SIZE);
+            mHeaderSlot = slot;
+            mSequence = readInt(buf, IH_SEQUENCE);
 
             if (readInt(buf, IH_VERSION) != mVersion) {
                 Log.w(TAG, "version mismatch");
@@ -198,12 +352,6 @@ public class BlobCache implements Closeable {
             mActiveEntries = readInt(buf, IH_ACTIVE_ENTRIES);
             mActiveBytes = readInt(buf, IH_ACTIVE_BYTES);
 
-            int sum = readInt(buf, IH_CHECKSUM);
-            if (checkSum(buf, 0, IH_CHECKSUM) != sum) {
-                Log.w(TAG, "header checksum does not match");
-                return false;
-            }
-
             // Sanity check
             if (mMaxEntries <= 0) {
                 Log.w(TAG, "invalid max entries");
@@ -256,7 +404,15 @@ public class BlobCache implements Closeable {
                     0, mIndexFile.length());
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
+            // Replay the tail before setActiveVariables() truncates it.
+            boolean recovered = recoverTail();
             setActiveVariables();
+            if (recovered) {
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+                updateIndexHeader();
+                syncIndex();
+            }
             return true;
         } catch (IOException ex) {
             Log.e(TAG, "loadIndex failed.", ex);
@@ -264,10 +420,139 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Returns the header slot to load: the intact one with the higher sequence
+    // number, or -1 if both are damaged.
+    private int pickHeaderSlot(byte[] slots) {
+        int best = -1;
+        int bestSequence = 0;
+        for (int slot = 0; slot < 2; ++slot) {
+            int base = slot * HEADER_SLOT_SIZE;
+            if (readInt(slots, base + IH_MAGIC) != MAGIC_INDEX_FILE) continue;
+            if (checkSum(slots, base, IH_CHECKSUM)
+                    != readInt(slots, base + IH_CHECKSUM)) {
+                Log.w(TAG, "header slot " + slot + " is damaged");
+                continue;
+            }
+            int sequence = readInt(slots, base + IH_SEQUENCE);
+            if (best < 0 || sequence - bestSequence > 0) {
+                best = slot;
+                bestSequence = sequence;
+            }
+        }
+        return best;
+    }
+
+    // Replays the blobs appended to the active region after the loaded header
+    // was committed, see the comment at the top. Updates mActiveBytes and
+    // mActiveEntries, and returns true if they have to be committed again.
+    private boolean recoverTail() throws IOException {
+        RandomAccessFile file = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
+        FileChannel channel = file.getChannel();
+        int hashStart = INDEX_HEADER_SIZE + mActiveRegion * mMaxEntries * 12;
+        ReadScratch scratch = mReadScratch.get();
+        LookupRequest req = new LookupRequest();
+        long fileLength = Math.min(file.length(), mMaxBytes);
+        int entries = mActiveEntries;
+        int end = mActiveBytes;
+        int replayed = 0;
+
+        if (file.length() < end) {
+            // Committed data is missing, so the tail alone cannot be trusted.
+            // Rebuild the hash of the region from its first blob.
+            Log.w(TAG, "active data file is truncated: " + file.length());
+            clearHash(hashStart);
+            entries = 0;
+            end = DATA_HEADER_SIZE;
+        }
+
+        while (end + BLOB_HEADER_SIZE <= fileLength
+                && readTailBlob(channel, end, fileLength, req, scratch)) {
+            // Same limit as insert(): it would have flipped first.
+            if (isIndexFull(entries) && findSlot(req.key, hashStart) < 0) {
+                break;
+            }
+            if (putSlot(hashStart, req.key, end)) entries++;
+            end += BLOB_HEADER_SIZE + req.length;
+            replayed++;
+        }
+
+        // Remove hash entries pointing at torn or missing blobs.
+        int removed = 0;
+        for (int i = 0; i < mMaxEntries;) {
+            int offset = mIndexBuffer.getInt(hashStart + i * 12 + 8);
+            if (offset != 0
+                    && (offset < DATA_HEADER_SIZE || offset >= end)) {
+                removeSlot(hashStart, i);
+                removed++;
+                continue;  // another entry may have moved into slot i
+            }
+            i++;
+        }
+
+        // Then count the entries in a pass of their own: removeSlot() may
+        // shift an entry from the first slot, counted already, to the last.
+        int count = 0;
+        for (int i = 0; i < mMaxEntries; i++) {
+            if (mIndexBuffer.getInt(hashStart + i * 12 + 8) != 0) count++;
+        }
+
+        if (end == mActiveBytes && removed == 0 && count == mActiveEntries) {
+            return false;
+        }
+        Log.w(TAG, "recovered active region: replayed " + replayed
+                + ", removed " + removed + ", bytes " + mActiveBytes
+                + " -> " + end);
+        mActiveBytes = end;
+        mActiveEntries = count;
+        return true;
+    }
+
+    // Reads the complete blob at the given offset of the log into req.
+    // Returns false quietly for the end-of-log marker, a torn blob or any
+    // other garbage.
+    private boolean readTailBlob(FileChannel channel, int offset,
+            long fileLength, LookupRequest req, ReadScratch scratch)
+            throws IOException {
+        byte[] header = scratch.header;
+        scratch.headerBuffer.clear();
+        if (readFully(channel, scratch.headerBuffer, offset)
+                != BLOB_HEADER_SIZE) {
+            return false;
+        }
+        if (readInt(header, BH_OFFSET) != offset) return false;
+        int length = readInt(header, BH_LENGTH);
+        if (length < 0 || length > fileLength - offset - BLOB_HEADER_SIZE) {
+            return false;
+        }
+        if (req.buffer == null || req.buffer.length < length) {
+            req.buffer = new byte[length];
+        }
+        if (readFully(channel, ByteBuffer.wrap(req.buffer, 0, length),
+                offset + BLOB_HEADER_SIZE) != length) {
+            return false;
+        }
+        if (scratch.checkSum(req.buffer, 0, length)
+                != readInt(header, BH_CHECKSUM)) {
+            return false;
+        }
+        req.key = readLong(header, BH_KEY);
+        req.length = length;
+        return true;
+    }
+
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
+        mActiveDataChannel = mActiveDataFile.getChannel();
+        mInactiveDataChannel = mInactiveDataFile.getChannel();
+        if (mMapData) {
+            // Never shrink a mapped file: a slice handed out earlier would
+            // point past the end of the file.
+            mapRegion(mActiveRegion);
+            mapRegion(1 - mActiveRegion);
+        } else {
+            mActiveDataFile.setLength(mActiveBytes);
+        }
         mActiveDataFile.seek(mActiveBytes);
 
         mActiveHashStart = INDEX_HEADER_SIZE;
@@ -292,7 +577,9 @@ public class BlobCache implements Closeable {
         writeInt(buf, IH_ACTIVE_ENTRIES, 0);
         writeInt(buf, IH_ACTIVE_BYTES, DATA_HEADER_SIZE);
         writeInt(buf, IH_VERSION, mVersion);
+        writeInt(buf, IH_SEQUENCE, 0);
         writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
+        // Slot 1 stays zero, which is never an intact slot.
         mIndexFile.write(buf);
         // This is only needed if setLength does not zero the extended part.
         // writeZero(mIndexFile, maxEntries * 12 * 2);
@@ -306,8 +593,19 @@ public class BlobCache implements Closeable {
         mDataFile1.write(buf, 0, 4);
     }
 
+    // Maps all mMaxBytes of the given region, once. The file is extended
+    // first, so the mapping never covers bytes past the end of the file.
+    private void mapRegion(int region) throws IOException {
+        if (mDataBuffers[region] != null) return;
+        RandomAccessFile file = (region == 0) ? mDataFile0 : mDataFile1;
+        if (file.length() < mMaxBytes) file.setLength(mMaxBytes);
+        mDataBuffers[region] = file.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, mMaxBytes);
+    }
+
     // Flip the active region and the inactive region.
     private void flipRegion() throws IOException {
+        mFlipCount++;
         mActiveRegion = 1 - mActiveRegion;
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
@@ -318,15 +616,21 @@ public class BlobCache implements Closeable {
         updateIndexHeader();
 
         setActiveVariables();
+        // A mapped file is not truncated, so end the log explicitly.
+        mActiveDataFile.write(END_OF_LOG);
+        mActiveDataFile.seek(mActiveBytes);
         clearHash(mActiveHashStart);
         syncIndex();
     }
 
-    // Sync mIndexHeader to the index file.
+    // Sync mIndexHeader to the index file. It goes to the slot not holding
+    // the last committed header, so that one survives a torn write.
     private void updateIndexHeader() {
+        writeInt(mIndexHeader, IH_SEQUENCE, ++mSequence);
         writeInt(mIndexHeader, IH_CHECKSUM,
                 checkSum(mIndexHeader, 0, IH_CHECKSUM));
-        mIndexBuffer.position(0);
+        mHeaderSlot = 1 - mHeaderSlot;
+        mIndexBuffer.position(mHeaderSlot * HEADER_SLOT_SIZE);
         mIndexBuffer.put(mIndexHeader);
     }
 
@@ -347,56 +651,120 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
+        mLock.writeLock().lock();
+        try {
+            if (!hasRoomFor(data.length)) {
+                flipRegion();
+            }
+
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
         }
+    }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+    // Inserts the first "count" (key, data) pairs with one write lock and one
+    // index header update for the whole batch. Blobs which are too large are
+    // skipped.
+    public void insertBatch(long[] keys, byte[][] data, int count)
+            throws IOException {
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < count; ++i) {
+                int length = data[i].length;
+                if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + length > mMaxBytes) {
+                    Log.w(TAG, "skip too large blob: " + length);
+                    continue;
+                }
+                if (!hasRoomFor(length)) {
+                    flipRegion();
+                }
+                insertInternal(keys[i], data[i], length);
+            }
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
         }
+    }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+    // Returns true if a blob of the given length fits into the active region
+    // without flipping.
+    private boolean hasRoomFor(int length) {
+        return mActiveBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && !isIndexFull(mActiveEntries);
+    }
+
+    private boolean isIndexFull(int entries) {
+        return (long) entries * 100 >= (long) mMaxEntries * MAX_LOAD_PERCENT;
     }
 
-    // Appends the data to the active file. It also updates the hash entry.
-    // The proper hash entry (suitable for insertion or replacement) must be
-    // pointed by mSlotOffset.
+    // Appends the data to the active file. It also updates the hash entry
+    // and the entry count. The write lock must be held.
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
+        int sum = blobSum(mAdler32, data, 0, length);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
         writeInt(header, BH_LENGTH, length);
         mActiveDataFile.write(header);
         mActiveDataFile.write(data, 0, length);
+        mBytesWritten += BLOB_HEADER_SIZE + length;
+        commitInsert(key, length);
+    }
 
-        mIndexBuffer.putLong(mSlotOffset, key);
-        mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
+    // Same as insertInternal, but the data comes from a (mapped) buffer whose
+    // checksum is already known. The buffer's position is advanced.
+    private void insertInternal(long key, ByteBuffer data, int sum)
+            throws IOException {
+        byte[] header = mBlobHeader;
+        int length = data.remaining();
+        writeLong(header, BH_KEY, key);
+        writeInt(header, BH_CHECKSUM, sum);
+        writeInt(header, BH_OFFSET, mActiveBytes);
+        writeInt(header, BH_LENGTH, length);
+        mActiveDataFile.write(header);
+        // The channel shares the file pointer with mActiveDataFile.
+        while (data.hasRemaining()) {
+            mActiveDataChannel.write(data);
+        }
+        mBytesWritten += BLOB_HEADER_SIZE + length;
+        commitInsert(key, length);
+    }
+
+    // Points the hash entry of the key to the blob just appended.
+    private void commitInsert(long key, int length) throws IOException {
+        if (putSlot(mActiveHashStart, key, mActiveBytes)) {
+            // There was no entry with the same key.
+            mActiveEntries++;
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+        }
         mActiveBytes += BLOB_HEADER_SIZE + length;
         writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+        // Mark the end of the log, so recovery never mistakes stale bytes
+        // from before the last flip for an appended blob.
+        mActiveDataFile.write(END_OF_LOG);
+        mActiveDataFile.seek(mActiveBytes);
     }
 
     public static class LookupRequest {
         public long key;        // input: the key to find
         public byte[] buffer;   // input/output: the buffer to store the blob
         public int length;      // output: the length of the blob
+        public ByteBuffer slice;  // output: the blob, only set by lookupSlice
+        int flipCount;          // the flip count when slice was taken
+        boolean inMemory;       // slice is a heap buffer and never goes stale
     }
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -412,45 +780,158 @@ public class BlobCache implements Closeable {
     //
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
+    //
+    // This method can be called from several threads at the same time. Only
+    // the copy of an inactive hit into the active region is serialized.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        ReadScratch scratch = mReadScratch.get();
+        mLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int offset = findOffset(req.key, mActiveHashStart);
+            if (offset != 0 && getBlob(mActiveDataChannel, offset, req, scratch)) {
                 return true;
             }
+
+            // Look up in the inactive region.
+            offset = findOffset(req.key, mInactiveHashStart);
+            if (offset == 0
+                    || !getBlob(mInactiveDataChannel, offset, req, scratch)) {
+                return false;
+            }
+
+            // If we don't have enough space to insert this blob into the
+            // active file, just return it.
+            if (!hasRoomFor(req.length)) return true;
+        } finally {
+            mLock.readLock().unlock();
         }
 
-        // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
+        // Otherwise copy it over. The read lock cannot be upgraded, so the
+        // state is checked again once we hold the write lock.
+        copyToActive(req);
+        return true;
+    }
 
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
-                }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
-                }
+    private void copyToActive(LookupRequest req) {
+        mLock.writeLock().lock();
+        try {
+            if (!hasRoomFor(req.length)) return;
+            // Another reader may have copied it over in the meantime.
+            if (findSlot(req.key, mActiveHashStart) >= 0) return;
+            insertInternal(req.key, req.buffer, req.length);
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Same as lookup(LookupRequest), but the blob is not copied: on success
+    // req.slice is a read-only view (position 0, limit req.length) of the
+    // mapped data file, and req.buffer is left alone. This can only be used
+    // if the cache was created with "mapData".
+    //
+    // The slice stays readable, but its content may be overwritten after the
+    // next region flip. Call isSliceValid() once done with the bytes and
+    // treat the result as a miss if it returns false.
+    public boolean lookupSlice(LookupRequest req) throws IOException {
+        if (!mMapData) throw new IllegalStateException("data is not mapped");
+        ReadScratch scratch = mReadScratch.get();
+        int sum;
+        mLock.readLock().lock();
+        try {
+            req.inMemory = false;
+            req.flipCount = mFlipCount;
+            int offset = findOffset(req.key, mActiveHashStart);
+            if (offset != 0 && getSlice(mActiveRegion, offset, req, scratch)) {
                 return true;
             }
+
+            offset = findOffset(req.key, mInactiveHashStart);
+            if (offset == 0
+                    || !getSlice(1 - mActiveRegion, offset, req, scratch)) {
+                return false;
+            }
+            if (!hasRoomFor(req.length)) return true;
+            sum = readInt(scratch.header, BH_CHECKSUM);
+        } finally {
+            mLock.readLock().unlock();
         }
 
-        return false;
+        copyToActive(req.key, req.slice.duplicate(), sum, req.flipCount);
+        return true;
     }
 
+    // Returns true if the slice from lookupSlice() still holds the blob.
+    public boolean isSliceValid(LookupRequest req) {
+        return req.inMemory || req.flipCount == mFlipCount;
+    }
+
+    // "data" is a slice of the inactive region taken at "flipCount". A flip
+    // since then makes that region the active one and writes over it, so
+    // the slice is only copied if there was none.
+    private void copyToActive(long key, ByteBuffer data, int sum,
+            int flipCount) {
+        mLock.writeLock().lock();
+        try {
+            if (mFlipCount != flipCount) return;
+            if (!hasRoomFor(data.remaining())) return;
+            if (findSlot(key, mActiveHashStart) >= 0) return;
+            insertInternal(key, data, sum);
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // The mapped counterpart of getBlob(). The header is validated the same
+    // way, and the checksum is computed without copying the blob.
+    private boolean getSlice(int region, int offset, LookupRequest req,
+            ReadScratch scratch) {
+        byte[] header = scratch.header;
+        try {
+            ByteBuffer data = mDataBuffers[region].duplicate();
+            if (offset + BLOB_HEADER_SIZE > data.capacity()) {
+                Log.w(TAG, "blob header out of mapping");
+                return false;
+            }
+            data.position(offset);
+            data.get(header);
+            long blobKey = readLong(header, BH_KEY);
+            if (blobKey != req.key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return false;
+            }
+            int sum = readInt(header, BH_CHECKSUM);
+            int blobOffset = readInt(header, BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return false;
+            }
+            int length = readInt(header, BH_LENGTH);
+            if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE
+                    || length > data.remaining()) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return false;
+            }
+            data.limit(data.position() + length);
+            ByteBuffer slice = data.slice();
+            if (scratch.checkSum(slice.duplicate()) != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return false;
+            }
+            req.slice = slice.asReadOnlyBuffer();
+            req.length = length;
+            return true;
+        } catch (Throwable t)  {
+            Log.e(TAG, "getSlice failed.", t);
+            return false;
+        }
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -458,13 +939,15 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
-    private boolean getBlob(RandomAccessFile file, int offset,
-            LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+    // The reads are positional, so the file pointer used by the writer is
+    // left alone and several readers can share the channel.
+    private boolean getBlob(FileChannel channel, int offset,
+            LookupRequest req, ReadScratch scratch) throws IOException {
+        byte[] header = scratch.header;
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            scratch.headerBuffer.clear();
+            if (readFully(channel, scratch.headerBuffer, offset)
+                    != BLOB_HEADER_SIZE) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
@@ -491,11 +974,12 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (readFully(channel, ByteBuffer.wrap(blob, 0, length),
+                    offset + BLOB_HEADER_SIZE) != length) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            if (scratch.checkSum(blob, 0, length) != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -503,45 +987,122 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
-        } finally {
-            file.seek(oldPosition);
         }
     }
 
-    // Tries to look up a key in the specified hash region.
-    // Returns true if the lookup is successful.
-    // The slot offset in the index file is saved in mSlotOffset. If the lookup
-    // is successful, it's the slot found. Otherwise it's the slot suitable for
-    // insertion.
-    // If the lookup is successful, the file offset is also saved in
-    // mFileOffset.
-    private int mSlotOffset;
-    private int mFileOffset;
-    private boolean lookupInternal(long key, int hashStart) {
-        int slot = (int) (key % mMaxEntries);
-        if (slot < 0) slot += mMaxEntries;
-        int slotBegin = slot;
-        while (true) {
+    // Reads from the given position until the buffer is full or the end of
+    // file is reached. Returns the number of bytes read.
+    static int readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    // Returns the data file offset stored for the key in the specified hash
+    // region, or 0 if the key is not there.
+    private int findOffset(long key, int hashStart) {
+        int offset = findSlot(key, hashStart);
+        return (offset < 0) ? 0 : mIndexBuffer.getInt(offset + 8);
+    }
+
+    // Returns the offset in the index file of the slot holding the key, or -1
+    // if the key is not there. The probe stops at a free slot or at an entry
+    // closer to its home slot than the key would be. It only uses absolute
+    // reads of mIndexBuffer, so it is safe for concurrent readers.
+    private int findSlot(long key, int hashStart) {
+        int n = mMaxEntries;
+        int slot = homeSlot(key);
+        for (int distance = 0; distance < n; ++distance) {
             int offset = hashStart + slot * 12;
+            if (mIndexBuffer.getInt(offset + 8) == 0) return -1;
             long candidateKey = mIndexBuffer.getLong(offset);
+            if (candidateKey == key) return offset;
+            if (probeDistance(candidateKey, slot) < distance) return -1;
+            if (++slot >= n) slot = 0;
+        }
+        return -1;
+    }
+
+    // Points the entry for the key in the specified hash region to the given
+    // data file offset. A new key takes the first slot whose entry is closer
+    // to its home slot than the key is, and the displaced entry moves on the
+    // same way, which keeps every probe run sorted by distance. Returns true
+    // if the region gained an entry. The write lock must be held.
+    private boolean putSlot(int hashStart, long key, int fileOffset) {
+        int n = mMaxEntries;
+        int slot = homeSlot(key);
+        int distance = 0;
+        long carryKey = key;
+        int carryOffset = fileOffset;
+        boolean displaced = false;
+        for (int step = 0; step < n; ++step) {
+            int offset = hashStart + slot * 12;
             int candidateOffset = mIndexBuffer.getInt(offset + 8);
             if (candidateOffset == 0) {
-                mSlotOffset = offset;
-                return false;
-            } else if (candidateKey == key) {
-                mSlotOffset = offset;
-                mFileOffset = candidateOffset;
+                mIndexBuffer.putLong(offset, carryKey);
+                mIndexBuffer.putInt(offset + 8, carryOffset);
                 return true;
-            } else {
-                if (++slot >= mMaxEntries) {
-                    slot = 0;
-                }
-                if (slot == slotBegin) {
-                    Log.w(TAG, "corrupted index: clear the slot.");
-                    mIndexBuffer.putInt(hashStart + slot * 12 + 8, 0);
-                }
             }
+            long candidateKey = mIndexBuffer.getLong(offset);
+            if (!displaced && candidateKey == key) {
+                mIndexBuffer.putInt(offset + 8, fileOffset);
+                return false;
+            }
+            int candidateDistance = probeDistance(candidateKey, slot);
+            if (candidateDistance < distance) {
+                mIndexBuffer.putLong(offset, carryKey);
+                mIndexBuffer.putInt(offset + 8, carryOffset);
+                carryKey = candidateKey;
+                carryOffset = candidateOffset;
+                distance = candidateDistance;
+                displaced = true;
+            }
+            if (++slot >= n) slot = 0;
+            ++distance;
+        }
+        // Cannot happen below MAX_LOAD_PERCENT, unless the index is corrupted.
+        Log.w(TAG, "corrupted index: drop the entry for " + carryKey);
+        return false;
+    }
+
+    // The slot where probing for the key starts.
+    private int homeSlot(long key) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        return slot;
+    }
+
+    // How far the given slot is from the home slot of the key.
+    private int probeDistance(long key, int slot) {
+        int distance = slot - homeSlot(key);
+        return (distance < 0) ? distance + mMaxEntries : distance;
+    }
+
+    // Removes the entry in the given slot. The rest of the probe run is
+    // shifted back by one slot, up to a free slot or an entry already in its
+    // home slot, so the run stays sorted by distance.
+    private void removeSlot(int hashStart, int slot) {
+        int n = mMaxEntries;
+        int hole = slot;
+        for (int step = 1; step < n; ++step) {
+            int next = (hole + 1 >= n) ? 0 : hole + 1;
+            int offset = hashStart + next * 12;
+            int fileOffset = mIndexBuffer.getInt(offset + 8);
+            if (fileOffset == 0) break;
+            long key = mIndexBuffer.getLong(offset);
+            if (probeDistance(key, next) == 0) break;
+            int holeOffset = hashStart + hole * 12;
+            mIndexBuffer.putLong(holeOffset, key);
+            mIndexBuffer.putInt(holeOffset + 8, fileOffset);
+            hole = next;
         }
+        mIndexBuffer.putLong(hashStart + hole * 12, 0);
+        mIndexBuffer.putInt(hashStart + hole * 12 + 8, 0);
     }
 
     public void syncIndex() {
@@ -571,6 +1132,52 @@ public class BlobCache implements Closeable {
     // Returns the active count (mActiveEntries). This also verifies that
     // the active count matches matches what's inside the hash region.
     int getActiveCount() {
+        mLock.readLock().lock();
+        try {
+            return getActiveCountLocked();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // This is for testing only.
+    //
+    // Returns the blob bytes written so far, including the inactive hits
+    // copied into the active region.
+    long getBytesWritten() {
+        mLock.readLock().lock();
+        try {
+            return mBytesWritten;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // This is for testing only.
+    //
+    // Returns how many slots of the active hash region a lookup of the key
+    // reads before it finds the key or gives up, see findSlot().
+    int getProbeCount(long key) {
+        mLock.readLock().lock();
+        try {
+            int slot = homeSlot(key);
+            for (int distance = 0; distance < mMaxEntries; ++distance) {
+                int offset = mActiveHashStart + slot * 12;
+                if (mIndexBuffer.getInt(offset + 8) == 0) return distance + 1;
+                long candidateKey = mIndexBuffer.getLong(offset);
+                if (candidateKey == key
+                        || probeDistance(candidateKey, slot) < distance) {
+                    return distance + 1;
+                }
+                if (++slot >= mMaxEntries) slot = 0;
+            }
+            return mMaxEntries;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private int getActiveCountLocked() {
         int count = 0;
         for (int i = 0; i < mMaxEntries; i++) {
             int offset = mActiveHashStart + i * 12;
@@ -598,6 +1205,24 @@ public class BlobCache implements Closeable {
         return (int) mAdler32.getValue();
     }
 
+    // The checksum of a blob, according to the checksum mode.
+    private int blobSum(Adler32 adler32, byte[] data, int offset,
+            int nbytes) {
+        adler32.reset();
+        if (!mSampledChecksum) {
+            adler32.update(data, offset, nbytes);
+            return (int) adler32.getValue();
+        }
+        for (int pos = 0; pos < nbytes; pos += SAMPLE_STRIDE) {
+            adler32.update(data, offset + pos,
+                    Math.min(SAMPLE_BYTES, nbytes - pos));
+        }
+        if (nbytes > SAMPLE_BYTES) {
+            adler32.update(data, offset + nbytes - SAMPLE_BYTES, SAMPLE_BYTES);
+        }
+        return (int) adler32.getValue();
+    }
+
     static void closeSilently(Closeable c) {
         if (c == null) return;
         try {
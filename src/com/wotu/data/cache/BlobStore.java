@@ -0,0 +1,31 @@
+package com.wotu.data.cache;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// What ShardedBlobCache needs from each of its shards. BlobCache and
+// SegmentedBlobCache implement it with different eviction engines; see
+// BlobCache for the contract of each method.
+interface BlobStore extends Closeable {
+    public void insert(long key, byte[] data) throws IOException;
+
+    public void insertBatch(long[] keys, byte[][] data, int count)
+            throws IOException;
+
+    public byte[] lookup(long key) throws IOException;
+
+    public boolean lookup(LookupRequest req) throws IOException;
+
+    public boolean lookupSlice(LookupRequest req) throws IOException;
+
+    public boolean isSliceValid(LookupRequest req);
+
+    public void syncIndex();
+
+    public void syncAll();
+
+    @Override
+    public void close();
+}
@@ -15,6 +15,8 @@ public class CacheManager {
     private static final String KEY_CACHE_UP_TO_DATE = "cache-up-to-date";
     private static HashMap<String, BlobCache> sCacheMap =
             new HashMap<String, BlobCache>();
+    private static HashMap<String, ShardedBlobCache> sShardedCacheMap =
+            new HashMap<String, ShardedBlobCache>();
     private static boolean sOldCheckDone = false;
 
     // Return null when we cannot instantiate a BlobCache, e.g.:
@@ -22,6 +24,13 @@ public class CacheManager {
     // This can only be called from data thread.
     public static BlobCache getCache(Context context, String filename,
             int maxEntries, int maxBytes, int version) {
+        return getCache(context, filename, maxEntries, maxBytes, version, false);
+    }
+
+    // Same as above. If "mapData" is true, the data files of a newly opened
+    // cache are memory-mapped, see BlobCache.lookupSlice().
+    public static BlobCache getCache(Context context, String filename,
+            int maxEntries, int maxBytes, int version, boolean mapData) {
         synchronized (sCacheMap) {
             if (!sOldCheckDone) {
                 removeOldFilesIfNecessary(context);
@@ -33,7 +42,7 @@ public class CacheManager {
                 String path = cacheDir.getAbsolutePath() + "/" + filename;
                 try {
                     cache = new BlobCache(path, maxEntries, maxBytes, false,
-                            version);
+                            version, mapData);
                     sCacheMap.put(filename, cache);
                 } catch (IOException e) {
                     WLog.e(TAG, "Cannot instantiate cache!", e);
@@ -43,6 +52,36 @@ public class CacheManager {
         }
     }
 
+    // Same as getCache, but the cache is split into shardCount independent
+    // shards with the given engine, see ShardedBlobCache. Return null when
+    // we cannot instantiate it.
+    public static ShardedBlobCache getShardedCache(Context context,
+            String filename, int shardCount, int maxEntries, int maxBytes,
+            int version, boolean mapData, int checksumMode, int engine) {
+        synchronized (sCacheMap) {
+            if (!sOldCheckDone) {
+                removeOldFilesIfNecessary(context);
+                sOldCheckDone = true;
+            }
+            ShardedBlobCache cache = sShardedCacheMap.get(filename);
+            if (cache == null) {
+                File cacheDir = context.getExternalCacheDir();
+                String path = cacheDir.getAbsolutePath() + "/" + filename;
+                // Drop the files of an unsharded cache with the same name.
+                BlobCache.deleteFiles(path);
+                try {
+                    cache = new ShardedBlobCache(path, shardCount, maxEntries,
+                            maxBytes, false, version, mapData, checksumMode,
+                            engine);
+                    sShardedCacheMap.put(filename, cache);
+                } catch (IOException e) {
+                    WLog.e(TAG, "Cannot instantiate sharded cache!", e);
+                }
+            }
+            return cache;
+        }
+    }
+
     // Removes the old files if the data is wiped.
     private static void removeOldFilesIfNecessary(Context context) {
         SharedPreferences pref = PreferenceManager
@@ -60,6 +99,7 @@ public class CacheManager {
         String prefix = cacheDir.getAbsolutePath() + "/";
 
         BlobCache.deleteFiles(prefix + "imgcache");
+        ShardedBlobCache.deleteAllFiles(prefix + "imgcache");
         BlobCache.deleteFiles(prefix + "rev_geocoding");
         BlobCache.deleteFiles(prefix + "bookmark");
     }
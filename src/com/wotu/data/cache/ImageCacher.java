@@ -1,15 +1,18 @@
 package com.wotu.data.cache;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.wotu.common.BytesBufferPool.BytesBuffer;
+import com.wotu.data.MediaItem;
 import com.wotu.data.Path;
 import com.wotu.data.cache.BlobCache.LookupRequest;
-import com.wotu.utils.UtilsBase;
-import com.wotu.utils.UtilsCom;
+import com.wotu.utils.Crc64;
 
 public class ImageCacher {
     @SuppressWarnings("unused")
@@ -18,14 +21,153 @@ public class ImageCacher {
     private static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 4;
+    private static final int IMAGE_CACHE_VERSION = 7;
+    // The eviction engine of the disk cache, see ShardedBlobCache. Changing
+    // it drops the cached files.
+    private static final int IMAGE_CACHE_ENGINE =
+            ShardedBlobCache.ENGINE_REGIONS;
+    // Map the data files so cached thumbnails can be decoded in place. Only
+    // the region engine maps them.
+    private static final boolean IMAGE_CACHE_MAP_DATA =
+            (IMAGE_CACHE_ENGINE == ShardedBlobCache.ENGINE_REGIONS);
+    // Thumbnails are 100-300KB, so only sample them for the checksum. The
+    // checksum mode is part of the cache format: bump IMAGE_CACHE_VERSION
+    // when changing it.
+    private static final int IMAGE_CACHE_CHECKSUM = BlobCache.CHECKSUM_SAMPLED;
+    // Independent shards, so inserts during a cold scan do not serialize.
+    private static final int IMAGE_CACHE_SHARD_COUNT = 4;
+    // Freshly decoded thumbnails are written behind by one background
+    // thread, in batches.
+    private static final int IMAGE_CACHE_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final int IMAGE_CACHE_MAX_BATCH_COUNT = 16;
+    // In-memory budgets in bytes, per type: decoded bitmaps and compressed
+    // bytes. A microthumbnail bitmap is 160KB, a thumbnail one up to 1.6MB.
+    private static final int MEMORY_MICRO_BITMAP_BYTES = 6 * 1024 * 1024;
+    private static final int MEMORY_MICRO_DATA_BYTES = 2 * 1024 * 1024;
+    private static final int MEMORY_THUMB_BITMAP_BYTES = 4 * 1024 * 1024;
+    private static final int MEMORY_THUMB_DATA_BYTES = 4 * 1024 * 1024;
 
-    private BlobCache mCache;
+    // The key header in front of the image data of each blob, all numbers
+    // in little-endian: the prefix id and the identity of the path, and the
+    // image type.
+    private static final int KH_PREFIX_ID = 0;
+    private static final int KH_IDENTITY = 8;
+    private static final int KH_TYPE = 16;
+    private static final int KEY_HEADER_SIZE = 20;
+
+    // Cache tiers for getHitCount() and getMissCount().
+    public static final int TIER_BITMAP = 0;
+    public static final int TIER_BYTES = 1;
+    public static final int TIER_DISK = 2;
+
+    private WriteBehindCache mCache;
+    private final ImageMemoryCache mMemoryCache = new ImageMemoryCache(
+            MEMORY_MICRO_BITMAP_BYTES, MEMORY_MICRO_DATA_BYTES,
+            MEMORY_THUMB_BITMAP_BYTES, MEMORY_THUMB_DATA_BYTES);
+    // Disk hits and misses, indexed by diskStatIndex().
+    private final AtomicIntegerArray mDiskStats = new AtomicIntegerArray(4);
 
     public ImageCacher(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
+        ShardedBlobCache cache = CacheManager.getShardedCache(context,
+                IMAGE_CACHE_FILE, IMAGE_CACHE_SHARD_COUNT,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+                IMAGE_CACHE_VERSION, IMAGE_CACHE_MAP_DATA,
+                IMAGE_CACHE_CHECKSUM, IMAGE_CACHE_ENGINE);
+        mCache = new WriteBehindCache(cache, IMAGE_CACHE_MAX_PENDING_BYTES,
+                IMAGE_CACHE_MAX_BATCH_COUNT);
+    }
+
+    public boolean isDataMapped() {
+        return IMAGE_CACHE_MAP_DATA;
+    }
+
+    /**
+     * Gets a decoded image from memory, with a reference to it which must be
+     * given up with {@link #releaseMemoryBitmap}, see {@link ImageMemoryCache}.
+     *
+     * @return the bitmap, or null if it is not in memory.
+     */
+    public Bitmap getMemoryBitmap(Path path, int type) {
+        return mMemoryCache.getBitmap(type, makeCacheKey(path, type));
+    }
+
+    /**
+     * Keeps a decoded image in memory. The given bitmap belongs to the cache
+     * afterwards; it is returned with a reference to it, as by
+     * {@link #getMemoryBitmap}.
+     */
+    public Bitmap putMemoryBitmap(Path path, int type, Bitmap bitmap) {
+        return mMemoryCache.putBitmap(type, makeCacheKey(path, type), bitmap);
+    }
+
+    /**
+     * Adds a reference to a bitmap returned by the memory cache, for another
+     * holder.
+     *
+     * @return false if the bitmap did not come from the memory cache.
+     */
+    public boolean retainMemoryBitmap(Bitmap bitmap) {
+        return mMemoryCache.retainBitmap(bitmap);
+    }
+
+    /**
+     * Gives up a reference to a bitmap returned by the memory cache. Once it
+     * is evicted and unreferenced, it is reused for later decodes.
+     */
+    public void releaseMemoryBitmap(Bitmap bitmap) {
+        mMemoryCache.releaseBitmap(bitmap);
+    }
+
+    /**
+     * Gets the image data from memory. The array must not be modified.
+     *
+     * @return the image data, or null if it is not in memory.
+     */
+    public byte[] getMemoryData(Path path, int type) {
+        return mMemoryCache.getBytes(type, makeCacheKey(path, type));
+    }
+
+    /**
+     * Keeps the image data in memory. The array must not be modified afterwards.
+     */
+    public void putMemoryData(Path path, int type, byte[] value) {
+        mMemoryCache.putBytes(type, makeCacheKey(path, type), value);
+    }
+
+    // Releases memory, see ComponentCallbacks2.onTrimMemory().
+    public void trimMemory(int level) {
+        mMemoryCache.trimMemory(level);
+    }
+
+    public int getHitCount(int type, int tier) {
+        switch (tier) {
+            case TIER_BITMAP: return mMemoryCache.getBitmapHitCount(type);
+            case TIER_BYTES: return mMemoryCache.getBytesHitCount(type);
+            default: return mDiskStats.get(diskStatIndex(type, true));
+        }
+    }
+
+    public int getMissCount(int type, int tier) {
+        switch (tier) {
+            case TIER_BITMAP: return mMemoryCache.getBitmapMissCount(type);
+            case TIER_BYTES: return mMemoryCache.getBytesMissCount(type);
+            default: return mDiskStats.get(diskStatIndex(type, false));
+        }
+    }
+
+    private static int diskStatIndex(int type, boolean hit) {
+        int index = (type == MediaItem.TYPE_MICROTHUMBNAIL) ? 0 : 2;
+        return hit ? index : index + 1;
+    }
+
+    private void countDiskLookup(int type, boolean hit) {
+        mDiskStats.incrementAndGet(diskStatIndex(type, hit));
+    }
+
+    public String getStats() {
+        return mMemoryCache + " disk micro " + mDiskStats.get(0) + "/"
+                + mDiskStats.get(1) + " thumb " + mDiskStats.get(2) + "/"
+                + mDiskStats.get(3);
     }
 
     /**
@@ -38,56 +180,120 @@ public class ImageCacher {
      * @return true if the image data is found; false if not found.
      */
     public boolean getImageData(Path path, int type, BytesBuffer buffer) {
-        byte[] key = makeKey(path, type);
-        long cacheKey = UtilsBase.crc64Long(key);
         try {
             LookupRequest request = new LookupRequest();
-            request.key = cacheKey;
+            request.key = makeCacheKey(path, type);
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
+            // BlobCache lookups are safe to run concurrently.
+            if (mCache.lookup(request) && request.length >= KEY_HEADER_SIZE
+                    && isSameKey(path, type, request.buffer)) {
                 buffer.data = request.buffer;
-                buffer.offset = key.length;
+                buffer.offset = KEY_HEADER_SIZE;
                 buffer.length = request.length - buffer.offset;
+                countDiskLookup(type, true);
                 return true;
             }
         } catch (IOException ex) {
             // ignore.
         }
+        countDiskLookup(type, false);
         return false;
     }
 
-    public void putImageData(Path path, int type, byte[] value) {
-        byte[] key = makeKey(path, type);
-        long cacheKey = UtilsBase.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
-        buffer.put(value);
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
+    /**
+     * Gets the cached image data for the given <code>path</code> and <code>type</code>
+     * without copying it. Only available if {@link #isDataMapped()} is true.
+     *
+     * On success <code>request.slice</code> is a read-only view of the image data.
+     * It must be checked with {@link #isSliceValid} after it has been consumed.
+     *
+     * @return true if the image data is found; false if not found.
+     */
+    public boolean getImageSlice(Path path, int type, LookupRequest request) {
+        request.key = makeCacheKey(path, type);
+        try {
+            if (mCache.lookupSlice(request) && request.length >= KEY_HEADER_SIZE
+                    && isSameKey(path, type, request.slice)) {
+                ByteBuffer slice = request.slice;
+                slice.position(KEY_HEADER_SIZE);
+                request.slice = slice.slice();
+                countDiskLookup(type, true);
+                return true;
             }
+        } catch (IOException ex) {
+            // ignore.
         }
+        countDiskLookup(type, false);
+        return false;
     }
 
-    private static byte[] makeKey(Path path, int type) {
-        return UtilsCom.getBytes(path.toString() + "+" + type);
+    public boolean isSliceValid(LookupRequest request) {
+        return mCache.isSliceValid(request);
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
-            return false;
-        }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
+    // The data is queued and written to the cache in the background. It is
+    // visible to getImageData() right away. It is also kept in memory, so
+    // the array must not be modified afterwards.
+    public void putImageData(Path path, int type, byte[] value) {
+        long cacheKey = makeCacheKey(path, type);
+        mMemoryCache.putBytes(type, cacheKey, value);
+        mCache.insert(cacheKey, makeBlob(path, type, value));
+    }
+
+    // Like putImageData(), for bulk loads: the data is not kept in memory,
+    // so it does not push out what is on screen, and if the write queue is
+    // full this waits for it to drain instead of dropping the data.
+    public void putImageDataWaiting(Path path, int type, byte[] value) {
+        mCache.insertWaiting(makeCacheKey(path, type),
+                makeBlob(path, type, value));
+    }
+
+    // Whether the image data is cached on disk or queued to be. Unlike
+    // getImageData(), nothing is copied if the data is mapped, and the hit
+    // and miss counts do not change.
+    public boolean hasImageData(Path path, int type) {
+        LookupRequest request = new LookupRequest();
+        request.key = makeCacheKey(path, type);
+        try {
+            if (isDataMapped()) {
+                return mCache.lookupSlice(request)
+                        && request.length >= KEY_HEADER_SIZE
+                        && isSameKey(path, type, request.slice);
             }
+            return mCache.lookup(request) && request.length >= KEY_HEADER_SIZE
+                    && isSameKey(path, type, request.buffer);
+        } catch (IOException ex) {
+            return false;
         }
-        return true;
+    }
+
+    private static byte[] makeBlob(Path path, int type, byte[] value) {
+        byte[] blob = new byte[KEY_HEADER_SIZE + value.length];
+        BlobCache.writeLong(blob, KH_PREFIX_ID, path.getPrefixId());
+        BlobCache.writeLong(blob, KH_IDENTITY, path.getIdentity());
+        BlobCache.writeInt(blob, KH_TYPE, type);
+        System.arraycopy(value, 0, blob, KEY_HEADER_SIZE, value.length);
+        return blob;
+    }
+
+    // The 64-bit key in the blob cache. Path caches its own hash, so this
+    // neither allocates nor locks. Crc64 rather than UtilsBase.crc64Long():
+    // the keys may change with IMAGE_CACHE_VERSION, other crc64 users not.
+    private static long makeCacheKey(Path path, int type) {
+        return Crc64.update(path.getHash(), type);
+    }
+
+    // The blob starts with the full key, to tell colliding cache keys apart.
+    private static boolean isSameKey(Path path, int type, byte[] blob) {
+        return BlobCache.readLong(blob, KH_PREFIX_ID) == path.getPrefixId()
+                && BlobCache.readLong(blob, KH_IDENTITY) == path.getIdentity()
+                && BlobCache.readInt(blob, KH_TYPE) == type;
+    }
+
+    private static boolean isSameKey(Path path, int type, ByteBuffer blob) {
+        blob.order(ByteOrder.LITTLE_ENDIAN);
+        return blob.getLong(KH_PREFIX_ID) == path.getPrefixId()
+                && blob.getLong(KH_IDENTITY) == path.getIdentity()
+                && blob.getInt(KH_TYPE) == type;
     }
 }
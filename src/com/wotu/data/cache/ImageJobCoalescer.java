@@ -0,0 +1,276 @@
+package com.wotu.data.cache;
+
+import com.wotu.app.WoTuApp;
+import com.wotu.common.Future;
+import com.wotu.common.FutureListener;
+import com.wotu.common.ThreadPool;
+import com.wotu.common.WLog;
+import com.wotu.data.MediaItem;
+import com.wotu.data.Path;
+import com.wotu.utils.UtilsBase;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Submits image jobs to a ThreadPool so that concurrent requests for the same
+// (Path, type) share one job. Each caller gets its own Future; the job is only
+// cancelled once every caller sharing it has cancelled.
+//
+// The job's bitmap comes from the memory cache of ImageCacher with one
+// reference, see ImageMemoryCache. The first caller gets that reference and
+// every other caller one of its own, all taken outside the coalescer lock
+// when the job is done, and before any caller can see the bitmap. The
+// reference goes to the caller with its first get(); a caller which cancels
+// before that gives it back.
+// A bitmap from anywhere else is copied for every caller but the first.
+public class ImageJobCoalescer {
+    private static final String TAG = "ImageJobCoalescer";
+
+    private final WoTuApp mApplication;
+    private final ThreadPool mThreadPool;
+
+    // Guarded by "this". Only holds jobs which are neither done nor
+    // cancelled by all their callers.
+    private final HashMap<Key, Flight> mFlights = new HashMap<Key, Flight>();
+    private int mSharedCount;
+
+    public ImageJobCoalescer(WoTuApp application) {
+        mApplication = application;
+        mThreadPool = application.getThreadPool();
+    }
+
+    // Requests the image of the given type of the item, see
+    // MediaItem.requestImage(). If the same image is already being requested,
+    // the job is shared and its priority raised to "priority" if that is
+    // higher. The listener is called when the job is done.
+    public Future<Bitmap> submit(MediaItem item, int type,
+            FutureListener<Bitmap> listener, int priority) {
+        Key key = new Key(item.getPath(), type);
+        synchronized (this) {
+            Flight flight = mFlights.get(key);
+            if (flight != null) {
+                ++mSharedCount;
+                if (priority < flight.mPriority) {
+                    flight.mPriority = priority;
+                    mThreadPool.setPriority(flight.mFuture, priority);
+                }
+                return flight.subscribe(listener);
+            }
+            flight = new Flight(key, priority);
+            Subscriber subscriber = flight.subscribe(listener);
+            mFlights.put(key, flight);
+            // The job may finish before submit() returns, but its listener
+            // then waits for this lock, so mFuture is always set first.
+            flight.mFuture = mThreadPool.submit(item.requestImage(type),
+                    flight, priority, ImageRequest.TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+            return subscriber;
+        }
+    }
+
+    public Future<Bitmap> submit(MediaItem item, int type,
+            FutureListener<Bitmap> listener) {
+        return submit(item, type, listener, ThreadPool.PRIORITY_DEFAULT);
+    }
+
+    // The number of requests which joined a job already in flight.
+    public synchronized int getSharedCount() {
+        return mSharedCount;
+    }
+
+    private static class Key {
+        private final Path mPath;
+        private final int mType;
+
+        public Key(Path path, int type) {
+            mPath = path;
+            mType = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mType == k.mType
+                    && mPath.getIdentity() == k.mPath.getIdentity()
+                    && mPath.getPrefix().equals(k.mPath.getPrefix());
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = mPath.getHash();
+            return (int) (hash ^ (hash >>> 32)) * 31 + mType;
+        }
+    }
+
+    // One job and the callers sharing it. All fields are guarded by the
+    // ImageJobCoalescer.
+    private class Flight implements FutureListener<Bitmap> {
+        private final Key mKey;
+        private final ArrayList<Subscriber> mSubscribers =
+                new ArrayList<Subscriber>();
+        private Future<Bitmap> mFuture;
+        private int mPriority;
+        // The number of subscribers which have not cancelled.
+        private int mActiveCount;
+        private boolean mDone;
+        // Set once the subscribers have their results, after mDone.
+        private boolean mDelivered;
+
+        public Flight(Key key, int priority) {
+            mKey = key;
+            mPriority = priority;
+        }
+
+        public Subscriber subscribe(FutureListener<Bitmap> listener) {
+            Subscriber subscriber = new Subscriber(this, listener);
+            mSubscribers.add(subscriber);
+            ++mActiveCount;
+            return subscriber;
+        }
+
+        // Hands the result of the finished job to the subscribers which
+        // have not cancelled. Called by the first of onFutureDone() and
+        // Subscriber.get(); no subscriber can join or read its result
+        // before this is done. The references and copies are taken without
+        // the lock, so other flights are not held up by them.
+        private void deliver() {
+            Subscriber[] recipients;
+            synchronized (ImageJobCoalescer.this) {
+                if (mDone) {
+                    while (!mDelivered) {
+                        UtilsBase.waitWithoutInterrupt(ImageJobCoalescer.this);
+                    }
+                    return;
+                }
+                mDone = true;
+                if (mFlights.get(mKey) == this) mFlights.remove(mKey);
+                ArrayList<Subscriber> active = new ArrayList<Subscriber>();
+                for (Subscriber subscriber : mSubscribers) {
+                    if (!subscriber.mIsCancelled) active.add(subscriber);
+                }
+                recipients = active.toArray(new Subscriber[active.size()]);
+            }
+
+            Bitmap bitmap = mFuture.get();
+            ImageCacher cacher = mApplication.getImageCacheService();
+            Bitmap[] results = new Bitmap[recipients.length];
+            if (bitmap != null) {
+                for (int i = 0; i < results.length; ++i) {
+                    results[i] = (i == 0 || cacher.retainMemoryBitmap(bitmap))
+                            ? bitmap : copyOf(bitmap);
+                }
+                if (results.length == 0) cacher.releaseMemoryBitmap(bitmap);
+            }
+
+            synchronized (ImageJobCoalescer.this) {
+                for (int i = 0; i < results.length; ++i) {
+                    // Cancelled meanwhile: its result is given back below.
+                    if (recipients[i].mIsCancelled) continue;
+                    recipients[i].mResult = results[i];
+                    results[i] = null;
+                }
+                mDelivered = true;
+                ImageJobCoalescer.this.notifyAll();
+            }
+            for (Bitmap result : results) {
+                if (result != null) cacher.releaseMemoryBitmap(result);
+            }
+        }
+
+        @Override
+        public void onFutureDone(Future<Bitmap> future) {
+            deliver();
+            Subscriber[] subscribers;
+            synchronized (ImageJobCoalescer.this) {
+                subscribers = mSubscribers.toArray(
+                        new Subscriber[mSubscribers.size()]);
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.mListener != null) {
+                    subscriber.mListener.onFutureDone(subscriber);
+                }
+            }
+        }
+    }
+
+    private static Bitmap copyOf(Bitmap bitmap) {
+        try {
+            return bitmap.copy(bitmap.getConfig(), true);
+        } catch (OutOfMemoryError e) {
+            WLog.w(TAG, "cannot copy bitmap", e);
+            return null;
+        }
+    }
+
+    private class Subscriber implements Future<Bitmap> {
+        private final Flight mFlight;
+        private final FutureListener<Bitmap> mListener;
+        private volatile boolean mIsCancelled;
+        // Set by Flight.deliver(). Guarded by the ImageJobCoalescer.
+        private Bitmap mResult;
+        // Whether get() has returned mResult. Guarded by the
+        // ImageJobCoalescer.
+        private boolean mTaken;
+
+        public Subscriber(Flight flight, FutureListener<Bitmap> listener) {
+            mFlight = flight;
+            mListener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            Future<Bitmap> future = null;
+            Bitmap result = null;
+            synchronized (ImageJobCoalescer.this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (!mTaken) result = mResult;
+                mResult = null;
+                Flight flight = mFlight;
+                // Nobody wants the image any more. A later request for it
+                // starts a new job.
+                if (--flight.mActiveCount == 0 && !flight.mDone) {
+                    if (mFlights.get(flight.mKey) == flight) {
+                        mFlights.remove(flight.mKey);
+                    }
+                    future = flight.mFuture;
+                }
+            }
+            if (result != null) {
+                mApplication.getImageCacheService().releaseMemoryBitmap(result);
+            }
+            if (future != null) future.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mFlight.mFuture.isDone();
+        }
+
+        @Override
+        public Bitmap get() {
+            mFlight.mFuture.waitDone();
+            // The job's listener may not have run yet.
+            mFlight.deliver();
+            synchronized (ImageJobCoalescer.this) {
+                if (mIsCancelled) return null;
+                mTaken = true;
+                return mResult;
+            }
+        }
+
+        @Override
+        public void waitDone() {
+            mFlight.mFuture.waitDone();
+        }
+    }
+}
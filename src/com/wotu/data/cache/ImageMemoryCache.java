@@ -0,0 +1,208 @@
+package com.wotu.data.cache;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.wotu.data.MediaItem;
+import com.wotu.data.utils.BitmapPool;
+
+import java.util.IdentityHashMap;
+
+// The in-memory tiers in front of the disk cache of ImageCacher. For each
+// image type there are two LRU caches bounded by bytes: one holds decoded
+// bitmaps, the other the compressed bytes as they are stored on disk. A
+// bitmap hit skips the decode, a bytes hit skips the disk.
+//
+// A cached bitmap is handed out as it is, without a copy, and counts its
+// references: getBitmap() and putBitmap() each return one, retainBitmap()
+// adds one, and the holder gives it up with releaseBitmap() instead of
+// recycling the bitmap. Once the bitmap is evicted and the last reference is
+// released, it goes back to the BitmapPool of its type to be decoded into.
+// A holder must not modify the bitmap.
+//
+// The bytes tier only gets the bytes of freshly encoded thumbnails, and of
+// disk hits if the cache data is not mapped. A mapped disk hit is decoded
+// from the file without a copy, which is as fast as the bytes tier.
+public class ImageMemoryCache {
+    // The references to a bitmap handed out by the cache. Guarded by the
+    // ImageMemoryCache.
+    private static class Ref {
+        public final BitmapPool pool;
+        public int count = 1;
+        public boolean cached = true;
+
+        public Ref(BitmapPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    private class BitmapTier extends LruCache<Long, Bitmap> {
+        public BitmapTier(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(Long key, Bitmap value) {
+            return value.getByteCount();
+        }
+
+        // Always called under the ImageMemoryCache lock, see below.
+        @Override
+        protected void entryRemoved(boolean evicted, Long key,
+                Bitmap oldValue, Bitmap newValue) {
+            if (oldValue == newValue) return;
+            Ref ref = mRefs.get(oldValue);
+            if (ref == null) return;
+            ref.cached = false;
+            if (ref.count == 0) recycle(oldValue, ref);
+        }
+    }
+
+    private static class BytesTier extends LruCache<Long, byte[]> {
+        public BytesTier(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            return value.length;
+        }
+    }
+
+    // Indexed by indexOf(type).
+    private final BitmapTier[] mBitmaps = new BitmapTier[2];
+    private final BytesTier[] mBytes = new BytesTier[2];
+    // The bitmaps which are cached or referenced. Every method which may
+    // look up or remove a bitmap holds the ImageMemoryCache lock, so a
+    // bitmap cannot go back to its pool between the two.
+    private final IdentityHashMap<Bitmap, Ref> mRefs =
+            new IdentityHashMap<Bitmap, Ref>();
+
+    // All budgets are in bytes and must be positive.
+    public ImageMemoryCache(int microBitmapBytes, int microDataBytes,
+            int thumbBitmapBytes, int thumbDataBytes) {
+        mBitmaps[0] = new BitmapTier(microBitmapBytes);
+        mBytes[0] = new BytesTier(microDataBytes);
+        mBitmaps[1] = new BitmapTier(thumbBitmapBytes);
+        mBytes[1] = new BytesTier(thumbDataBytes);
+    }
+
+    private static int indexOf(int type) {
+        return (type == MediaItem.TYPE_MICROTHUMBNAIL) ? 0 : 1;
+    }
+
+    private static BitmapPool poolOf(int type) {
+        return (type == MediaItem.TYPE_MICROTHUMBNAIL)
+                ? MediaItem.getMicroThumbPool() : MediaItem.getThumbPool();
+    }
+
+    // Returns the cached bitmap with a reference to it, or null on a miss.
+    public synchronized Bitmap getBitmap(int type, long key) {
+        Bitmap bitmap = mBitmaps[indexOf(type)].get(key);
+        if (bitmap != null) ++mRefs.get(bitmap).count;
+        return bitmap;
+    }
+
+    // Caches the bitmap and returns it with a reference to it. The caller
+    // must not use the bitmap other than through that reference.
+    public synchronized Bitmap putBitmap(int type, long key, Bitmap bitmap) {
+        Ref ref = mRefs.get(bitmap);
+        if (ref == null) {
+            mRefs.put(bitmap, new Ref(poolOf(type)));
+        } else {
+            ++ref.count;
+            ref.cached = true;
+        }
+        mBitmaps[indexOf(type)].put(key, bitmap);
+        return bitmap;
+    }
+
+    // Adds a reference to a bitmap returned by this cache, for another
+    // holder. Returns false if the bitmap did not come from this cache.
+    public synchronized boolean retainBitmap(Bitmap bitmap) {
+        Ref ref = mRefs.get(bitmap);
+        if (ref == null) return false;
+        ++ref.count;
+        return true;
+    }
+
+    // Gives up a reference returned by getBitmap(), putBitmap() or
+    // retainBitmap(). The bitmap must not be used afterwards.
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        Ref ref = mRefs.get(bitmap);
+        if (ref == null) return;
+        if (--ref.count == 0 && !ref.cached) recycle(bitmap, ref);
+    }
+
+    private void recycle(Bitmap bitmap, Ref ref) {
+        mRefs.remove(bitmap);
+        ref.pool.recycle(bitmap);
+    }
+
+    // Returns the cached compressed bytes, or null on a miss. The array is
+    // shared and must not be modified.
+    public byte[] getBytes(int type, long key) {
+        return mBytes[indexOf(type)].get(key);
+    }
+
+    // Caches the compressed bytes. The array must not be modified afterwards.
+    public void putBytes(int type, long key, byte[] data) {
+        mBytes[indexOf(type)].put(key, data);
+    }
+
+    // Releases memory according to a ComponentCallbacks2 trim level. Bitmaps
+    // are much larger than their bytes, so they go first.
+    public synchronized void trimMemory(int level) {
+        for (int i = 0; i < 2; ++i) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                mBitmaps[i].evictAll();
+                mBytes[i].evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                mBitmaps[i].evictAll();
+                trimToSize(mBytes[i], mBytes[i].maxSize() / 2);
+            } else if (level
+                    >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mBitmaps[i].evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                trimToSize(mBitmaps[i], mBitmaps[i].maxSize() / 2);
+            }
+        }
+    }
+
+    // LruCache.trimToSize() is not public on this API level. The snapshot is
+    // in access order, so the least recently used entries go first.
+    private static <V> void trimToSize(LruCache<Long, V> cache, int maxBytes) {
+        for (Long key : cache.snapshot().keySet()) {
+            if (cache.size() <= maxBytes) break;
+            cache.remove(key);
+        }
+    }
+
+    public int getBitmapHitCount(int type) {
+        return mBitmaps[indexOf(type)].hitCount();
+    }
+
+    public int getBitmapMissCount(int type) {
+        return mBitmaps[indexOf(type)].missCount();
+    }
+
+    public int getBytesHitCount(int type) {
+        return mBytes[indexOf(type)].hitCount();
+    }
+
+    public int getBytesMissCount(int type) {
+        return mBytes[indexOf(type)].missCount();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2; ++i) {
+            sb.append(i == 0 ? "micro" : " thumb");
+            sb.append(" bitmaps ").append(mBitmaps[i]);
+            sb.append(" bytes ").append(mBytes[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -7,13 +7,21 @@ import com.wotu.common.ThreadPool.JobContext;
 import com.wotu.common.WLog;
 import com.wotu.data.MediaItem;
 import com.wotu.data.Path;
+import com.wotu.data.cache.BlobCache.LookupRequest;
+import com.wotu.data.utils.BitmapPool;
 import com.wotu.data.utils.BitmapUtils;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import java.util.Arrays;
+
 public abstract class ImageRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
+    // A thumbnail takes well under a second to decode. A job running much
+    // longer is stuck on a corrupt or huge file: submit image jobs with this
+    // timeout, see ThreadPool.submit(), so they get cancelled.
+    public static final long TIMEOUT_MS = 5000;
 
     protected WoTuApp mApplication;
     private Path mPath;
@@ -30,39 +38,94 @@ public abstract class ImageRequest implements Job<Bitmap> {
 
     @Override
     public Bitmap run(JobContext jc) {
-        String debugTag = mPath + "," +
-                 ((mType == MediaItem.TYPE_THUMBNAIL) ? "THUMB" :
-                 (mType == MediaItem.TYPE_MICROTHUMBNAIL) ? "MICROTHUMB" : "?");
         ImageCacher cacheService = mApplication.getImageCacheService();
+        Bitmap cached = cacheService.getMemoryBitmap(mPath, mType);
+        if (cached != null) return cached;
+
+        BitmapPool pool = (mType == MediaItem.TYPE_MICROTHUMBNAIL)
+                ? MediaItem.getMicroThumbPool() : MediaItem.getThumbPool();
+
+        byte[] data = cacheService.getMemoryData(mPath, mType);
+        if (data != null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = pool.decode(jc, data, 0, data.length, options);
+            if (jc.isCancelled()) return null;
+            if (bitmap != null) {
+                return cacheService.putMemoryBitmap(mPath, mType, bitmap);
+            }
+            WLog.w(TAG, "decode memory cached failed " + debugTag());
+        }
 
-        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
-        try {
-            boolean found = cacheService.getImageData(mPath, mType, buffer);
+        if (cacheService.isDataMapped()) {
+            // Decode straight from the mapped cache file.
+            LookupRequest request = new LookupRequest();
+            boolean found = cacheService.getImageSlice(mPath, mType, request);
             if (jc.isCancelled()) return null;
             if (found) {
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap;
-                if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-                    bitmap = MediaItem.getMicroThumbPool().decode(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                } else {
-                    bitmap = MediaItem.getThumbPool().decode(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
+                Bitmap bitmap = pool.decode(jc, request.slice, options);
+                if (cacheService.isSliceValid(request)) {
+                    if (bitmap == null) {
+                        if (!jc.isCancelled()) {
+                            WLog.w(TAG, "decode cached failed " + debugTag());
+                        }
+                        return null;
+                    }
+                    // The bytes are not kept: the mapped file serves them as
+                    // fast as the bytes tier would, without a copy.
+                    return cacheService.putMemoryBitmap(mPath, mType, bitmap);
                 }
-                if (bitmap == null && !jc.isCancelled()) {
-                    WLog.w(TAG, "decode cached failed " + debugTag);
+                // The cache region was reused while we were decoding, so the
+                // bitmap may be garbage. Decode the original instead.
+                if (bitmap != null) pool.recycle(bitmap);
+                if (jc.isCancelled()) return null;
+            }
+        } else {
+            BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
+            try {
+                boolean found = cacheService.getImageData(mPath, mType, buffer);
+                if (jc.isCancelled()) return null;
+                if (found) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    Bitmap bitmap = pool.decode(jc,
+                            buffer.data, buffer.offset, buffer.length, options);
+                    if (bitmap == null) {
+                        if (!jc.isCancelled()) {
+                            WLog.w(TAG, "decode cached failed " + debugTag());
+                        }
+                        return null;
+                    }
+                    // The buffer goes back to the pool, so keep a copy.
+                    cacheService.putMemoryData(mPath, mType, Arrays.copyOfRange(
+                            buffer.data, buffer.offset,
+                            buffer.offset + buffer.length));
+                    return cacheService.putMemoryBitmap(mPath, mType, bitmap);
                 }
-                return bitmap;
+            } finally {
+                MediaItem.getBytesBufferPool().recycle(buffer);
             }
-        } finally {
-            MediaItem.getBytesBufferPool().recycle(buffer);
         }
+        Bitmap bitmap = decodeThumbnail(jc);
+        if (bitmap == null) return null;
+
+        byte[] array = BitmapUtils.compressToBytes(bitmap);
+        if (jc.isCancelled()) return null;
+
+        cacheService.putImageData(mPath, mType, array);
+        return cacheService.putMemoryBitmap(mPath, mType, bitmap);
+    }
+
+    // Decodes the original image and resizes it for the type, without
+    // looking at the cache. Returns null if cancelled or if the decode fails.
+    public Bitmap decodeThumbnail(JobContext jc) {
         Bitmap bitmap = onDecodeOriginal(jc, mType);
         if (jc.isCancelled()) return null;
 
         if (bitmap == null) {
-            WLog.w(TAG, "decode orig failed " + debugTag);
+            WLog.w(TAG, "decode orig failed " + debugTag());
             return null;
         }
 
@@ -72,13 +135,15 @@ public abstract class ImageRequest implements Job<Bitmap> {
             bitmap = BitmapUtils.resizeDownBySideLength(bitmap, mTargetSize, true);
         }
         if (jc.isCancelled()) return null;
-
-        byte[] array = BitmapUtils.compressToBytes(bitmap);
-        if (jc.isCancelled()) return null;
-
-        cacheService.putImageData(mPath, mType, array);
         return bitmap;
     }
 
+    // Only built for log messages.
+    private String debugTag() {
+        return mPath + "," +
+                 ((mType == MediaItem.TYPE_THUMBNAIL) ? "THUMB" :
+                 (mType == MediaItem.TYPE_MICROTHUMBNAIL) ? "MICROTHUMB" : "?");
+    }
+
     public abstract Bitmap onDecodeOriginal(JobContext jc, int targetSize);
 }
@@ -0,0 +1,575 @@
+/* This is an on-disk cache which maps a 64-bits key to a byte array, like
+ BlobCache, but with a different eviction engine.
+
+ BlobCache drops a whole region at once when it flips, and copies every
+ inactive hit forward. This cache is a log split into fixed-size segments.
+ New blobs are appended to the active segment. When it is full, another
+ segment is picked: a free one if there is one, otherwise a cold one chosen
+ by a CLOCK hand over the segments. A segment is "referenced" when one of its
+ blobs is looked up; the hand clears the bit and moves on, and the first
+ segment found unreferenced is the victim. The victim is compacted in place:
+ only its live blobs which were looked up since they were written (or since
+ the last compaction) are kept, up to half of the segment; the others are
+ evicted. The compacted segment then becomes the active one.
+
+ Each segment keeps a count of its live bytes. A segment whose blobs have
+ all been replaced is simply reused.
+
+ Evictions must survive a reopen, which rebuilds the index from whatever
+ blobs are on disk. So when a blob is replaced by a later insert of its key,
+ the old blob is marked dead by rewriting its magic number; otherwise it
+ would come back once the new blob is evicted.
+
+ The data file is SegmentCount * SegmentBytes bytes. Each segment:
+ [0]  Magic number: 0x5E6B1A02
+ [4]  Version number.
+ [8]  Sequence number: the order in which the segments were (re)started.
+ [12] Checksum of [0..12).
+ [16] Blobs, followed by an all-zero blob header which ends the log.
+
+ The blob format:
+ [0]  Magic number: 0xB10B5E61, or 0xB10B5E60 once the blob is replaced
+ [4]  Key of this blob
+ [12] Checksum of this blob
+ [16] Length of this blob (not including header)
+ [20] Blob
+
+ There is no index file. The index is kept in memory and rebuilt on open by
+ walking the blob headers of the segments in sequence order, so a later blob
+ for a key replaces an earlier one, and dead blobs are skipped. Blob
+ checksums cover every byte and are checked on lookup.
+
+ The data file is not mapped. lookupSlice() reads the blob like lookup() and
+ returns a view of the copy, which never goes stale.
+
+ The instance of this class can be shared by multiple threads. Lookups take
+ the read side of a read/write lock, inserts and compaction the write side.
+
+ public SegmentedBlobCache(String path, int maxBytes, int segmentCount, boolean reset, int version) throws IOException;
+ public void insert(long key, byte[] data) throws IOException;
+ public void insertBatch(long[] keys, byte[][] data, int count) throws IOException;
+ public byte[] lookup(long key) throws IOException;
+ public boolean lookup(LookupRequest req) throws IOException;
+ public boolean lookupSlice(LookupRequest req) throws IOException;
+ public boolean isSliceValid(LookupRequest req);
+ public void close();
+ public void syncIndex();
+ public void syncAll();
+ public static void deleteFiles(String path);
+*/
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Adler32;
+
+public class SegmentedBlobCache implements BlobStore {
+    private static final String TAG = "SegmentedBlobCache";
+
+    private static final int MAGIC_SEGMENT = 0x5E6B1A02;
+    private static final int MAGIC_BLOB = 0xB10B5E61;
+    private static final int MAGIC_DEAD_BLOB = 0xB10B5E60;
+
+    // segment header offset
+    private static final int SH_MAGIC = 0;
+    private static final int SH_VERSION = 4;
+    private static final int SH_SEQUENCE = 8;
+    private static final int SH_CHECKSUM = 12;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+
+    // blob header offset
+    private static final int BH_MAGIC = 0;
+    private static final int BH_KEY = 4;
+    private static final int BH_CHECKSUM = 12;
+    private static final int BH_LENGTH = 16;
+    private static final int BLOB_HEADER_SIZE = 20;
+
+    private static final byte[] END_OF_LOG = new byte[BLOB_HEADER_SIZE];
+
+    private static class Entry {
+        final long key;
+        int segment;
+        int offset;     // of the blob header, relative to the segment
+        int length;     // not including header
+        volatile boolean referenced;
+
+        Entry(long key, int segment, int offset, int length) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return BLOB_HEADER_SIZE + length;
+        }
+    }
+
+    private static final Comparator<Entry> BY_OFFSET = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.offset - b.offset;
+        }
+    };
+
+    private final RandomAccessFile mDataFile;
+    private final FileChannel mDataChannel;
+    private final int mSegmentCount;
+    private final int mSegmentBytes;
+    private final int mVersion;
+
+    // Per segment. A sequence of 0 means the segment is free.
+    private final int[] mSequence;
+    private final int[] mUsedBytes;
+    private final int[] mLiveBytes;
+    private final boolean[] mReferenced;
+
+    private final HashMap<Long, Entry> mIndex = new HashMap<Long, Entry>();
+    private int mActiveSegment = -1;
+    private int mNextSequence = 1;
+    private int mClockHand;
+
+    // Only used with the write lock held.
+    private final byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
+    private final byte[] mCopyBuffer = new byte[16 * 1024];
+    private final Adler32 mAdler32 = new Adler32();
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Per-thread buffers for lookups, which run in parallel.
+    private static class ReadScratch {
+        final byte[] header = new byte[BLOB_HEADER_SIZE];
+        final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        final Adler32 adler32 = new Adler32();
+    }
+
+    private final ThreadLocal<ReadScratch> mReadScratch =
+            new ThreadLocal<ReadScratch>() {
+        @Override
+        protected ReadScratch initialValue() {
+            return new ReadScratch();
+        }
+    };
+
+    // Statistics, for comparing eviction policies.
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private long mBytesWritten;
+
+    // Creates the cache in the file path + ".seg". maxBytes is split into
+    // segmentCount segments. If the "reset" parameter is true, the cache will
+    // be cleared before use.
+    public SegmentedBlobCache(String path, int maxBytes, int segmentCount,
+            boolean reset, int version) throws IOException {
+        if (segmentCount < 2) {
+            throw new IllegalArgumentException("segmentCount: " + segmentCount);
+        }
+        mSegmentCount = segmentCount;
+        mSegmentBytes = maxBytes / segmentCount;
+        mVersion = version;
+        mSequence = new int[segmentCount];
+        mUsedBytes = new int[segmentCount];
+        mLiveBytes = new int[segmentCount];
+        mReferenced = new boolean[segmentCount];
+
+        mDataFile = new RandomAccessFile(path + ".seg", "rw");
+        mDataChannel = mDataFile.getChannel();
+        try {
+            long length = (long) mSegmentBytes * segmentCount;
+            if (reset || mDataFile.length() != length) {
+                mDataFile.setLength(0);
+                mDataFile.setLength(length);
+            }
+            loadIndex();
+        } catch (IOException e) {
+            BlobCache.closeSilently(mDataFile);
+            throw e;
+        }
+    }
+
+    public static void deleteFiles(String path) {
+        new File(path + ".seg").delete();
+    }
+
+    @Override
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            syncAll();
+            BlobCache.closeSilently(mDataFile);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // There is no index file; the index is rebuilt from the data file.
+    public void syncIndex() {
+    }
+
+    public void syncAll() {
+        try {
+            mDataFile.getFD().sync();
+        } catch (Throwable t) {
+            Log.w(TAG, "sync data file failed", t);
+        }
+    }
+
+    private long base(int segment) {
+        return (long) segment * mSegmentBytes;
+    }
+
+    // Rebuilds the index from the segments, oldest first.
+    private void loadIndex() throws IOException {
+        byte[] header = new byte[SEGMENT_HEADER_SIZE];
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < mSegmentCount; ++i) {
+            if (BlobCache.readFully(mDataChannel, ByteBuffer.wrap(header), base(i))
+                    == SEGMENT_HEADER_SIZE
+                    && BlobCache.readInt(header, SH_MAGIC) == MAGIC_SEGMENT
+                    && BlobCache.readInt(header, SH_VERSION) == mVersion
+                    && BlobCache.readInt(header, SH_CHECKSUM)
+                            == checkSum(header, 0, SH_CHECKSUM)) {
+                mSequence[i] = BlobCache.readInt(header, SH_SEQUENCE);
+                order.add(i);
+            }
+        }
+        final int[] sequence = mSequence;
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sequence[a] - sequence[b];
+            }
+        });
+
+        byte[] blobHeader = mBlobHeader;
+        for (int segment : order) {
+            int offset = SEGMENT_HEADER_SIZE;
+            while (offset + BLOB_HEADER_SIZE <= mSegmentBytes) {
+                if (BlobCache.readFully(mDataChannel, ByteBuffer.wrap(blobHeader),
+                        base(segment) + offset) != BLOB_HEADER_SIZE) break;
+                int magic = BlobCache.readInt(blobHeader, BH_MAGIC);
+                if (magic != MAGIC_BLOB && magic != MAGIC_DEAD_BLOB) break;
+                int length = BlobCache.readInt(blobHeader, BH_LENGTH);
+                if (length < 0 || length > mSegmentBytes - offset
+                        - BLOB_HEADER_SIZE) break;
+                if (magic == MAGIC_BLOB) {
+                    putEntry(new Entry(BlobCache.readLong(blobHeader, BH_KEY),
+                            segment, offset, length));
+                }
+                offset += BLOB_HEADER_SIZE + length;
+            }
+            mUsedBytes[segment] = offset;
+            mNextSequence = mSequence[segment] + 1;
+            mActiveSegment = segment;
+        }
+
+        if (mActiveSegment < 0 || !hasRoomFor(mActiveSegment, 0)) {
+            activateSegment(0);
+        }
+    }
+
+    // Adds the entry to the index and keeps the live byte counts in step.
+    // Returns the entry it replaces, or null.
+    private Entry putEntry(Entry entry) {
+        Entry old = mIndex.put(entry.key, entry);
+        if (old != null) mLiveBytes[old.segment] -= old.size();
+        mLiveBytes[entry.segment] += entry.size();
+        return old;
+    }
+
+    // Marks the blob of a replaced entry as dead, see the comment at the top.
+    private void killBlob(Entry entry) throws IOException {
+        byte[] magic = new byte[4];
+        BlobCache.writeInt(magic, 0, MAGIC_DEAD_BLOB);
+        mDataFile.seek(base(entry.segment) + entry.offset + BH_MAGIC);
+        mDataFile.write(magic);
+    }
+
+    private boolean hasRoomFor(int segment, int length) {
+        return mUsedBytes[segment] + BLOB_HEADER_SIZE + length
+                + BLOB_HEADER_SIZE <= mSegmentBytes;
+    }
+
+    private boolean isTooLarge(int length) {
+        return SEGMENT_HEADER_SIZE + BLOB_HEADER_SIZE * 2 + length
+                > mSegmentBytes;
+    }
+
+    // Inserts a (key, data) pair into the cache.
+    public void insert(long key, byte[] data) throws IOException {
+        if (isTooLarge(data.length)) {
+            throw new RuntimeException("blob is too large!");
+        }
+
+        mLock.writeLock().lock();
+        try {
+            insertLocked(key, data);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Inserts the first "count" (key, data) pairs with one write lock. Blobs
+    // which are too large are skipped.
+    public void insertBatch(long[] keys, byte[][] data, int count)
+            throws IOException {
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < count; ++i) {
+                if (isTooLarge(data[i].length)) {
+                    Log.w(TAG, "skip too large blob: " + data[i].length);
+                    continue;
+                }
+                insertLocked(keys[i], data[i]);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Appends the blob to the active segment. The write lock must be held.
+    private void insertLocked(long key, byte[] data) throws IOException {
+        if (!hasRoomFor(mActiveSegment, data.length)) {
+            activateSegment(data.length);
+        }
+        int segment = mActiveSegment;
+        int offset = mUsedBytes[segment];
+        byte[] header = mBlobHeader;
+        BlobCache.writeInt(header, BH_MAGIC, MAGIC_BLOB);
+        BlobCache.writeLong(header, BH_KEY, key);
+        BlobCache.writeInt(header, BH_CHECKSUM,
+                checkSum(data, 0, data.length));
+        BlobCache.writeInt(header, BH_LENGTH, data.length);
+        mDataFile.seek(base(segment) + offset);
+        mDataFile.write(header);
+        mDataFile.write(data);
+        mDataFile.write(END_OF_LOG);
+
+        Entry old = putEntry(new Entry(key, segment, offset, data.length));
+        mUsedBytes[segment] = offset + BLOB_HEADER_SIZE + data.length;
+        mBytesWritten += BLOB_HEADER_SIZE + data.length;
+        // After the new blob is written, so one of them is always live.
+        if (old != null) killBlob(old);
+    }
+
+    // Makes a segment with room for a blob of the given length the active
+    // one: a free or fully dead segment if there is one, otherwise the cold
+    // segment picked by the CLOCK hand, after it is compacted.
+    private void activateSegment(int length) throws IOException {
+        for (int i = 0; i < mSegmentCount; ++i) {
+            if (i == mActiveSegment) continue;
+            if (mSequence[i] == 0 || mLiveBytes[i] == 0) {
+                compact(i, false);
+                return;
+            }
+        }
+
+        // Two turns of the hand clear every reference bit, so a victim is
+        // always found.
+        for (int turn = 0; turn < 2 * mSegmentCount; ++turn) {
+            int i = mClockHand;
+            mClockHand = (i + 1) % mSegmentCount;
+            if (i == mActiveSegment) continue;
+            if (mReferenced[i]) {
+                mReferenced[i] = false;
+                continue;
+            }
+            compact(i, true);
+            if (!hasRoomFor(i, length)) compact(i, false);
+            return;
+        }
+    }
+
+    // Compacts the segment in place and makes it the active one. If
+    // "keepHot" is true, live blobs which were looked up since they were
+    // written are moved to the front of the segment (up to half of it);
+    // all other blobs of the segment are evicted.
+    private void compact(int segment, boolean keepHot) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        Iterator<Entry> it = mIndex.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.segment == segment) entries.add(e);
+        }
+        Collections.sort(entries, BY_OFFSET);
+
+        int limit = SEGMENT_HEADER_SIZE
+                + (mSegmentBytes - SEGMENT_HEADER_SIZE) / 2;
+        int end = SEGMENT_HEADER_SIZE;
+        for (Entry e : entries) {
+            if (keepHot && e.referenced && end + e.size() <= limit) {
+                if (e.offset != end) {
+                    move(segment, e.offset, end, e.size());
+                    mBytesWritten += e.size();
+                }
+                e.offset = end;
+                e.referenced = false;
+                end += e.size();
+            } else {
+                mIndex.remove(e.key);
+            }
+        }
+
+        // The kept blobs were live, so no other segment has a newer copy and
+        // they can take the new sequence number.
+        mDataFile.seek(base(segment) + end);
+        mDataFile.write(END_OF_LOG);
+        mSequence[segment] = mNextSequence++;
+        writeSegmentHeader(segment);
+        mUsedBytes[segment] = end;
+        mLiveBytes[segment] = end - SEGMENT_HEADER_SIZE;
+        mReferenced[segment] = false;
+        mActiveSegment = segment;
+    }
+
+    // Moves bytes towards the start of the segment. Reading ahead of the
+    // write position is safe because "to" is below "from".
+    private void move(int segment, int from, int to, int size)
+            throws IOException {
+        byte[] buffer = mCopyBuffer;
+        long base = base(segment);
+        for (int done = 0; done < size;) {
+            int todo = Math.min(buffer.length, size - done);
+            if (BlobCache.readFully(mDataChannel, ByteBuffer.wrap(buffer, 0, todo),
+                    base + from + done) != todo) {
+                throw new IOException("cannot read blob to move");
+            }
+            mDataFile.seek(base + to + done);
+            mDataFile.write(buffer, 0, todo);
+            done += todo;
+        }
+    }
+
+    private void writeSegmentHeader(int segment) throws IOException {
+        byte[] header = new byte[SEGMENT_HEADER_SIZE];
+        BlobCache.writeInt(header, SH_MAGIC, MAGIC_SEGMENT);
+        BlobCache.writeInt(header, SH_VERSION, mVersion);
+        BlobCache.writeInt(header, SH_SEQUENCE, mSequence[segment]);
+        BlobCache.writeInt(header, SH_CHECKSUM,
+                checkSum(header, 0, SH_CHECKSUM));
+        mDataFile.seek(base(segment));
+        mDataFile.write(header);
+    }
+
+    // This method is for one-off lookup. For repeated lookup, use the version
+    // accepting LookupRequest to avoid repeated memory allocation.
+    public byte[] lookup(long key) throws IOException {
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        return lookup(req) ? req.buffer : null;
+    }
+
+    // Same contract as BlobCache.lookup(LookupRequest). A hit marks the blob
+    // and its segment as referenced.
+    public boolean lookup(LookupRequest req) throws IOException {
+        ReadScratch scratch = mReadScratch.get();
+        mLock.readLock().lock();
+        try {
+            Entry e = mIndex.get(req.key);
+            if (e == null || !readBlob(e, req, scratch)) {
+                mMissCount.incrementAndGet();
+                return false;
+            }
+            e.referenced = true;
+            mReferenced[e.segment] = true;
+            mHitCount.incrementAndGet();
+            return true;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Same as lookup(LookupRequest), but on success req.slice is a read-only
+    // view (position 0, limit req.length) of req.buffer, see
+    // BlobCache.lookupSlice(). The blob is copied all the same.
+    public boolean lookupSlice(LookupRequest req) throws IOException {
+        if (!lookup(req)) return false;
+        req.slice = ByteBuffer.wrap(req.buffer, 0, req.length)
+                .asReadOnlyBuffer();
+        req.inMemory = true;
+        return true;
+    }
+
+    // Slices are copies, so they stay valid.
+    public boolean isSliceValid(LookupRequest req) {
+        return true;
+    }
+
+    private boolean readBlob(Entry e, LookupRequest req,
+            ReadScratch scratch) {
+        byte[] header = scratch.header;
+        long position = base(e.segment) + e.offset;
+        try {
+            scratch.headerBuffer.clear();
+            if (BlobCache.readFully(mDataChannel, scratch.headerBuffer,
+                    position) != BLOB_HEADER_SIZE) {
+                Log.w(TAG, "cannot read blob header");
+                return false;
+            }
+            if (BlobCache.readInt(header, BH_MAGIC) != MAGIC_BLOB
+                    || BlobCache.readLong(header, BH_KEY) != req.key
+                    || BlobCache.readInt(header, BH_LENGTH) != e.length) {
+                Log.w(TAG, "blob header does not match");
+                return false;
+            }
+            if (req.buffer == null || req.buffer.length < e.length) {
+                req.buffer = new byte[e.length];
+            }
+            if (BlobCache.readFully(mDataChannel, ByteBuffer.wrap(req.buffer, 0, e.length),
+                    position + BLOB_HEADER_SIZE) != e.length) {
+                Log.w(TAG, "cannot read blob data");
+                return false;
+            }
+            Adler32 adler32 = scratch.adler32;
+            adler32.reset();
+            adler32.update(req.buffer, 0, e.length);
+            if ((int) adler32.getValue()
+                    != BlobCache.readInt(header, BH_CHECKSUM)) {
+                Log.w(TAG, "blob checksum does not match");
+                return false;
+            }
+            req.length = e.length;
+            return true;
+        } catch (Throwable t) {
+            Log.e(TAG, "readBlob failed.", t);
+            return false;
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    // The number of data bytes written, including blobs moved by compaction.
+    public long getBytesWritten() {
+        mLock.readLock().lock();
+        try {
+            return mBytesWritten;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private int checkSum(byte[] data, int offset, int nbytes) {
+        mAdler32.reset();
+        mAdler32.update(data, offset, nbytes);
+        return (int) mAdler32.getValue();
+    }
+}
@@ -0,0 +1,171 @@
+package com.wotu.data.cache;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+// A cache which spreads keys over several independent shards. Each shard has
+// its own files, its own lock and evicts on its own, so writers to different
+// shards do not wait for each other.
+//
+// The shard of a key is chosen by the high 32 bits of the key, while
+// BlobCache picks the hash slot from the key modulo the number of entries,
+// so the two choices stay independent.
+//
+// The shards are BlobCaches (ENGINE_REGIONS) or SegmentedBlobCaches
+// (ENGINE_SEGMENTS). For the path "p" and shard count N, the files are
+// "p-0.idx", "p-0.0", "p-0.1", ..., "p-(N-1).1", or "p-0.seg", ...,
+// "p-(N-1).seg". Opening the cache with one engine deletes the files of the
+// other. Each shard gets 1/N of maxEntries and maxBytes.
+public class ShardedBlobCache implements Closeable {
+    public static final int ENGINE_REGIONS = 0;
+    public static final int ENGINE_SEGMENTS = 1;
+
+    // Thumbnails are 10-300KB, so a segment of a 50MB shard holds a few
+    // dozen of them.
+    private static final int SEGMENTS_PER_SHARD = 16;
+
+    private final BlobStore[] mShards;
+
+    // See BlobCache for "mapData" and "checksumMode".
+    public ShardedBlobCache(String path, int shardCount, int maxEntries,
+            int maxBytes, boolean reset, int version, boolean mapData,
+            int checksumMode) throws IOException {
+        this(path, shardCount, maxEntries, maxBytes, reset, version, mapData,
+                checksumMode, ENGINE_REGIONS);
+    }
+
+    // Same as above, with the given engine. ENGINE_SEGMENTS has no limit on
+    // the number of entries, does not map its data and always checksums
+    // every byte, so it ignores "maxEntries", "mapData" and "checksumMode".
+    // SegmentedBlobCache.lookupSlice() hands out copies.
+    public ShardedBlobCache(String path, int shardCount, int maxEntries,
+            int maxBytes, boolean reset, int version, boolean mapData,
+            int checksumMode, int engine) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount: " + shardCount);
+        }
+        int shardEntries = (maxEntries + shardCount - 1) / shardCount;
+        int shardBytes = maxBytes / shardCount;
+        mShards = new BlobStore[shardCount];
+        try {
+            for (int i = 0; i < shardCount; ++i) {
+                String shardPath = shardPath(path, i);
+                if (engine == ENGINE_SEGMENTS) {
+                    BlobCache.deleteFiles(shardPath);
+                    mShards[i] = new SegmentedBlobCache(shardPath, shardBytes,
+                            SEGMENTS_PER_SHARD, reset, version);
+                } else {
+                    SegmentedBlobCache.deleteFiles(shardPath);
+                    mShards[i] = new BlobCache(shardPath, shardEntries,
+                            shardBytes, reset, version, mapData,
+                            checksumMode);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Delete the files associated with the given path previously created
+    // by the ShardedBlobCache constructor, with either engine.
+    public static void deleteFiles(String path, int shardCount) {
+        for (int i = 0; i < shardCount; ++i) {
+            BlobCache.deleteFiles(shardPath(path, i));
+            SegmentedBlobCache.deleteFiles(shardPath(path, i));
+        }
+    }
+
+    // Same as above, for whatever shard count the files were created with.
+    // Stops at the first shard without files.
+    public static void deleteAllFiles(String path) {
+        for (int i = 0; ; ++i) {
+            String shardPath = shardPath(path, i);
+            if (!new File(shardPath + ".idx").exists()
+                    && !new File(shardPath + ".seg").exists()) {
+                return;
+            }
+            BlobCache.deleteFiles(shardPath);
+            SegmentedBlobCache.deleteFiles(shardPath);
+        }
+    }
+
+    private static String shardPath(String path, int shard) {
+        return path + "-" + shard;
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    // Maps the high 32 bits of the key onto [0, shardCount) without a
+    // division.
+    private BlobStore shardOf(long key) {
+        return mShards[(int) (((key >>> 32) * mShards.length) >>> 32)];
+    }
+
+    public void insert(long key, byte[] data) throws IOException {
+        shardOf(key).insert(key, data);
+    }
+
+    // Splits the batch by shard, so each shard takes its lock and updates its
+    // index header once.
+    public void insertBatch(long[] keys, byte[][] data, int count)
+            throws IOException {
+        int shardCount = mShards.length;
+        if (shardCount == 1) {
+            mShards[0].insertBatch(keys, data, count);
+            return;
+        }
+        long[] shardKeys = new long[count];
+        byte[][] shardData = new byte[count][];
+        for (int s = 0; s < shardCount; ++s) {
+            int n = 0;
+            for (int i = 0; i < count; ++i) {
+                if (shardOf(keys[i]) != mShards[s]) continue;
+                shardKeys[n] = keys[i];
+                shardData[n] = data[i];
+                ++n;
+            }
+            if (n > 0) mShards[s].insertBatch(shardKeys, shardData, n);
+        }
+    }
+
+    public byte[] lookup(long key) throws IOException {
+        return shardOf(key).lookup(key);
+    }
+
+    public boolean lookup(LookupRequest req) throws IOException {
+        return shardOf(req.key).lookup(req);
+    }
+
+    public boolean lookupSlice(LookupRequest req) throws IOException {
+        return shardOf(req.key).lookupSlice(req);
+    }
+
+    public boolean isSliceValid(LookupRequest req) {
+        return shardOf(req.key).isSliceValid(req);
+    }
+
+    public void syncIndex() {
+        for (BlobStore shard : mShards) {
+            shard.syncIndex();
+        }
+    }
+
+    public void syncAll() {
+        for (BlobStore shard : mShards) {
+            shard.syncAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (BlobStore shard : mShards) {
+            if (shard != null) shard.close();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.wotu.data.cache;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.wotu.app.WoTuApp;
+import com.wotu.common.Future;
+import com.wotu.common.FutureListener;
+import com.wotu.common.ThreadPool;
+import com.wotu.common.ThreadPool.CancelListener;
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+import com.wotu.common.WLog;
+import com.wotu.data.MediaItem;
+import com.wotu.data.MediaSet;
+import com.wotu.data.utils.BitmapUtils;
+import com.wotu.utils.UtilsBase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A job which fills the image cache with the thumbnails of every item in a
+// media set (including its sub media sets), e.g. while the device charges.
+// Items whose thumbnails are already cached are skipped. Submit it with
+// ThreadPool.submitIo(): it mostly waits, and holds no CPU slot meanwhile.
+//
+// The job enumerates the items and probes the cache. Every item which is not
+// cached becomes a job of the same ThreadPool which decodes the original,
+// resizes it and compresses the thumbnail. Like any other decode, these jobs
+// take a CPU slot and reserve their memory from the pool's budget, so the
+// pre-warm never decodes more at once than the pool allows. They run at
+// PRIORITY_PREFETCH, behind what is on screen, and expire after
+// ImageRequest.TIMEOUT_MS. The job's own thread writes their thumbnails to
+// the cache, waiting for the cache's write queue when it is full. At most
+// MAX_PENDING_ITEMS items are in flight at a time, so a slow decode or a slow
+// disk makes the enumeration wait instead of queueing the whole set.
+//
+// Reading the original and decoding it stay in one job: the decoder
+// subsamples while it reads, so the file is never held in memory as a whole.
+//
+// Cancelling the job stops the enumeration and cancels the item jobs, which
+// abort a decode in progress and recycle their bitmaps. The job returns once
+// all of them are done.
+public class ThumbnailPrewarmer implements Job<ThumbnailPrewarmer.Stats> {
+    private static final String TAG = "ThumbnailPrewarmer";
+
+    // Enough to keep every CPU slot busy while the next items are looked up.
+    private static final int MAX_PENDING_ITEMS = 8;
+
+    public interface ProgressListener {
+        // Called after each item, on the job's thread or on the thread of
+        // an item job. "total" is the item count when the job started.
+        public void onProgress(int done, int total);
+    }
+
+    public static class Stats {
+        public int total;
+        // Items which were already cached.
+        public int cached;
+        public int generated;
+        public int failed;
+        public long elapsedMs;
+        // The most Java heap in use, sampled after each decode. Bitmaps
+        // live in the Java heap on this API level.
+        public long peakHeapBytes;
+
+        public float getItemsPerSecond() {
+            return (elapsedMs == 0) ? 0
+                    : (cached + generated + failed) * 1000f / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return "total " + total + " cached " + cached + " generated "
+                    + generated + " failed " + failed + " in " + elapsedMs
+                    + "ms, " + getItemsPerSecond() + " items/s, peak heap "
+                    + peakHeapBytes / 1024 + "KB";
+        }
+    }
+
+    private final WoTuApp mApplication;
+    private final MediaSet mMediaSet;
+    private final int mType;
+    private final ProgressListener mListener;
+
+    // The item jobs submitted and not done yet, and the ones done whose
+    // thumbnails are still to be written. Guarded by "this".
+    private final HashSet<Future<byte[]>> mPending =
+            new HashSet<Future<byte[]>>();
+    private ArrayList<ItemJob> mFinished = new ArrayList<ItemJob>();
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mCached = new AtomicInteger();
+    private final AtomicInteger mGenerated = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    // Written by the item jobs, with "this" locked.
+    private volatile long mPeakHeapBytes;
+    private int mTotal;
+
+    // "type" is MediaItem.TYPE_MICROTHUMBNAIL or TYPE_THUMBNAIL. The
+    // listener may be null.
+    public ThumbnailPrewarmer(WoTuApp application, MediaSet mediaSet,
+            int type, ProgressListener listener) {
+        mApplication = application;
+        mMediaSet = mediaSet;
+        mType = type;
+        mListener = listener;
+    }
+
+    @Override
+    public Stats run(JobContext jc) {
+        long start = SystemClock.uptimeMillis();
+        // The enumeration is I/O, and the rest is waiting for item jobs.
+        jc.setMode(ThreadPool.MODE_NONE);
+        mTotal = mMediaSet.getTotalMediaItemCount();
+        jc.setCancelListener(new CancelListener() {
+            @Override
+            public void onCancel() {
+                cancelPending();
+            }
+        });
+
+        enumerate(jc, mMediaSet);
+        while (true) {
+            writeFinished(jc);
+            synchronized (this) {
+                if (mPending.isEmpty() && mFinished.isEmpty()) break;
+                if (mFinished.isEmpty()) UtilsBase.waitWithoutInterrupt(this);
+            }
+        }
+        jc.setCancelListener(null);
+
+        Stats stats = new Stats();
+        stats.total = mTotal;
+        stats.cached = mCached.get();
+        stats.generated = mGenerated.get();
+        stats.failed = mFailed.get();
+        stats.elapsedMs = SystemClock.uptimeMillis() - start;
+        stats.peakHeapBytes = mPeakHeapBytes;
+        WLog.i(TAG, (jc.isCancelled() ? "cancelled: " : "done: ") + stats);
+        return stats;
+    }
+
+    // Like MediaSet.enumerateTotalMediaItems(), but stops once the job is
+    // cancelled, between batches and between items.
+    private void enumerate(JobContext jc, MediaSet set) {
+        ImageCacher cacheService = mApplication.getImageCacheService();
+        int total = set.getMediaItemCount();
+        for (int start = 0; start < total && !jc.isCancelled();
+                start += MediaSet.MEDIAITEM_BATCH_FETCH_COUNT) {
+            int count = Math.min(MediaSet.MEDIAITEM_BATCH_FETCH_COUNT,
+                    total - start);
+            ArrayList<MediaItem> items = set.getMediaItem(start, count);
+            for (int i = 0, n = items.size(); i < n; ++i) {
+                if (jc.isCancelled()) return;
+                MediaItem item = items.get(i);
+                if (cacheService.hasImageData(item.getPath(), mType)) {
+                    mCached.incrementAndGet();
+                    onItemDone();
+                } else {
+                    submitItem(jc, item);
+                }
+            }
+        }
+        for (int i = 0, n = set.getSubMediaSetCount(); i < n; ++i) {
+            if (jc.isCancelled()) return;
+            enumerate(jc, set.getSubMediaSet(i));
+        }
+    }
+
+    // Waits for room among the items in flight, writing the thumbnails of
+    // the finished ones meanwhile, then submits a job for the item. Does
+    // nothing once the job is cancelled.
+    private void submitItem(JobContext jc, MediaItem item) {
+        while (true) {
+            writeFinished(jc);
+            synchronized (this) {
+                if (jc.isCancelled()) return;
+                if (mFinished.isEmpty()
+                        && mPending.size() < MAX_PENDING_ITEMS) {
+                    submitLocked(new ItemJob(item));
+                    return;
+                }
+                if (mFinished.isEmpty()) UtilsBase.waitWithoutInterrupt(this);
+            }
+        }
+    }
+
+    private void submitLocked(final ItemJob job) {
+        // The listener waits for this lock, so the future is in mPending
+        // before it can be removed.
+        mPending.add(mApplication.getThreadPool().submit(job,
+                new FutureListener<byte[]>() {
+                    @Override
+                    public void onFutureDone(Future<byte[]> future) {
+                        synchronized (ThumbnailPrewarmer.this) {
+                            mPending.remove(future);
+                            if (job.mData != null) mFinished.add(job);
+                            ThumbnailPrewarmer.this.notifyAll();
+                        }
+                    }
+                }, ThreadPool.PRIORITY_PREFETCH, ImageRequest.TIMEOUT_MS,
+                TimeUnit.MILLISECONDS));
+    }
+
+    // Writes the thumbnails of the finished item jobs to the cache. They
+    // are dropped once the job is cancelled.
+    private void writeFinished(JobContext jc) {
+        ArrayList<ItemJob> finished;
+        synchronized (this) {
+            if (mFinished.isEmpty()) return;
+            finished = mFinished;
+            mFinished = new ArrayList<ItemJob>();
+        }
+        ImageCacher cacheService = mApplication.getImageCacheService();
+        for (ItemJob job : finished) {
+            if (jc.isCancelled()) return;
+            cacheService.putImageDataWaiting(job.mItem.getPath(), mType,
+                    job.mData);
+            mGenerated.incrementAndGet();
+            onItemDone();
+        }
+    }
+
+    private void cancelPending() {
+        ArrayList<Future<byte[]>> pending;
+        synchronized (this) {
+            pending = new ArrayList<Future<byte[]>>(mPending);
+            // Wakes up the enumeration if it waits for room.
+            notifyAll();
+        }
+        for (Future<byte[]> future : pending) future.cancel();
+    }
+
+    // Decodes the thumbnail of one item and compresses it into mData.
+    private class ItemJob implements Job<byte[]> {
+        private final MediaItem mItem;
+        private volatile byte[] mData;
+
+        public ItemJob(MediaItem item) {
+            mItem = item;
+        }
+
+        @Override
+        public byte[] run(JobContext jc) {
+            Job<Bitmap> job = mItem.requestImage(mType);
+            Bitmap bitmap = (job instanceof ImageRequest)
+                    ? ((ImageRequest) job).decodeThumbnail(jc) : null;
+            samplePeakHeap();
+            byte[] array = null;
+            if (bitmap != null) {
+                array = BitmapUtils.compressToBytes(bitmap);
+                bitmap.recycle();
+            }
+            if (array != null && !jc.isCancelled()) {
+                mData = array;
+                return array;
+            }
+            // An expired item failed; one cancelled with the job did not.
+            if (!jc.isCancelled() || jc.isExpired()) {
+                mFailed.incrementAndGet();
+                onItemDone();
+            }
+            return null;
+        }
+    }
+
+    private void onItemDone() {
+        int done = mDone.incrementAndGet();
+        if (mListener != null) mListener.onProgress(done, mTotal);
+    }
+
+    private void samplePeakHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        synchronized (this) {
+            if (used > mPeakHeapBytes) mPeakHeapBytes = used;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.wotu.data.cache;
+
+import android.os.Process;
+
+import com.wotu.common.WLog;
+import com.wotu.data.cache.BlobCache.LookupRequest;
+import com.wotu.utils.UtilsBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A write-behind stage in front of a ShardedBlobCache. insert() only queues
+// the (key, data) pair and returns; one background thread writes the queued
+// pairs in batches with ShardedBlobCache.insertBatch(), so each batch costs a
+// single index header update per shard.
+//
+// The queue is bounded by bytes. When it is full, the new pair is dropped:
+// the caller already has the decoded image, and it will simply be cached the
+// next time it is decoded.
+//
+// Lookups check the queued (and in-flight) pairs first, so an entry is
+// visible from the moment insert() returns.
+public class WriteBehindCache {
+    private static final String TAG = "WriteBehindCache";
+
+    private final ShardedBlobCache mCache;
+    private final int mMaxPendingBytes;
+    private final int mMaxBatchCount;
+
+    // Guarded by "this". A pair stays here until it has been written.
+    private final LinkedHashMap<Long, byte[]> mPending =
+            new LinkedHashMap<Long, byte[]>();
+    private int mPendingBytes;
+    private int mDroppedCount;
+    private boolean mWriting;
+
+    public WriteBehindCache(ShardedBlobCache cache, int maxPendingBytes,
+            int maxBatchCount) {
+        mCache = cache;
+        mMaxPendingBytes = maxPendingBytes;
+        mMaxBatchCount = maxBatchCount;
+        new WriterThread().start();
+    }
+
+    // Queues the pair. Returns false if it was dropped because the queue
+    // is full.
+    public synchronized boolean insert(long key, byte[] data) {
+        byte[] old = mPending.remove(key);
+        if (old != null) mPendingBytes -= old.length;
+        if (mPendingBytes + data.length > mMaxPendingBytes) {
+            ++mDroppedCount;
+            return false;
+        }
+        mPending.put(key, data);
+        mPendingBytes += data.length;
+        notifyAll();
+        return true;
+    }
+
+    // Like insert(), but if the queue is full this waits until the writer
+    // has made room. The pair is only dropped if it does not fit into an
+    // empty queue.
+    public synchronized boolean insertWaiting(long key, byte[] data) {
+        while (!mPending.isEmpty()
+                && mPendingBytes + data.length > mMaxPendingBytes) {
+            UtilsBase.waitWithoutInterrupt(this);
+        }
+        return insert(key, data);
+    }
+
+    private synchronized byte[] getPending(long key) {
+        return mPending.get(key);
+    }
+
+    // See BlobCache.lookup(LookupRequest).
+    public boolean lookup(LookupRequest req) throws IOException {
+        byte[] data = getPending(req.key);
+        if (data == null) return mCache.lookup(req);
+        if (req.buffer == null || req.buffer.length < data.length) {
+            req.buffer = new byte[data.length];
+        }
+        System.arraycopy(data, 0, req.buffer, 0, data.length);
+        req.length = data.length;
+        return true;
+    }
+
+    // See BlobCache.lookupSlice(LookupRequest). A queued pair is returned as
+    // a read-only view of the queued array.
+    public boolean lookupSlice(LookupRequest req) throws IOException {
+        byte[] data = getPending(req.key);
+        if (data == null) return mCache.lookupSlice(req);
+        req.slice = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        req.length = data.length;
+        req.inMemory = true;
+        return true;
+    }
+
+    public boolean isSliceValid(LookupRequest req) {
+        return mCache.isSliceValid(req);
+    }
+
+    public synchronized int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // Blocks until every pair queued so far has been written.
+    public synchronized void flush() {
+        while (!mPending.isEmpty() || mWriting) {
+            UtilsBase.waitWithoutInterrupt(this);
+        }
+    }
+
+    private class WriterThread extends Thread {
+        private final long[] mKeys = new long[mMaxBatchCount];
+        private final byte[][] mData = new byte[mMaxBatchCount][];
+
+        public WriterThread() {
+            super("cache-writer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                int count = takeBatch();
+                try {
+                    mCache.insertBatch(mKeys, mData, count);
+                } catch (Throwable t) {
+                    WLog.w(TAG, "write batch failed", t);
+                }
+                finishBatch(count);
+            }
+        }
+
+        // Copies the oldest pairs into mKeys/mData. They stay in mPending so
+        // lookups still find them while they are being written.
+        private int takeBatch() {
+            synchronized (WriteBehindCache.this) {
+                while (mPending.isEmpty()) {
+                    UtilsBase.waitWithoutInterrupt(WriteBehindCache.this);
+                }
+                int count = 0;
+                Iterator<Map.Entry<Long, byte[]>> it =
+                        mPending.entrySet().iterator();
+                while (count < mMaxBatchCount && it.hasNext()) {
+                    Map.Entry<Long, byte[]> entry = it.next();
+                    mKeys[count] = entry.getKey();
+                    mData[count] = entry.getValue();
+                    ++count;
+                }
+                mWriting = true;
+                return count;
+            }
+        }
+
+        private void finishBatch(int count) {
+            synchronized (WriteBehindCache.this) {
+                for (int i = 0; i < count; ++i) {
+                    // Keep the pair if it was replaced while being written.
+                    if (mPending.get(mKeys[i]) == mData[i]) {
+                        mPending.remove(mKeys[i]);
+                        mPendingBytes -= mData[i].length;
+                    }
+                    mData[i] = null;
+                }
+                mWriting = false;
+                WriteBehindCache.this.notifyAll();
+            }
+        }
+    }
+}
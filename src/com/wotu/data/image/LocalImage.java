@@ -12,6 +12,7 @@ import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 
 import com.wotu.app.WoTuApp;
+import com.wotu.common.ThreadPool;
 import com.wotu.common.ThreadPool.Job;
 import com.wotu.common.ThreadPool.JobContext;
 import com.wotu.common.WLog;
@@ -160,6 +161,8 @@ public class LocalImage extends LocalMediaItem {
             if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
                 ExifInterface exif = null;
                 byte[] thumbData = null;
+                // Reading EXIF is file I/O, so give up the CPU slot meanwhile.
+                jc.setMode(ThreadPool.MODE_NONE);
                 try {
                     exif = new ExifInterface(mLocalFilePath);
                     if (exif != null) {
@@ -168,6 +171,7 @@ public class LocalImage extends LocalMediaItem {
                 } catch (Throwable t) {
                     WLog.w(TAG, "fail to get exif thumb", t);
                 }
+                if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
                 if (thumbData != null) {
                     Bitmap bitmap = DecodeUtils.decodeIfBigEnough(
                             jc, thumbData, options, targetSize);
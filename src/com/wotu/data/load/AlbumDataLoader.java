@@ -6,21 +6,20 @@ import android.os.Process;
 
 import com.wotu.activity.WoTuContext;
 import com.wotu.common.SynchronizedHandler;
+import com.wotu.common.WLog;
 import com.wotu.data.ContentListener;
 import com.wotu.data.DataManager;
 import com.wotu.data.MediaItem;
 import com.wotu.data.MediaObject;
 import com.wotu.data.MediaSet;
+import com.wotu.utils.RingBitSet;
 import com.wotu.utils.UtilsBase;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AlbumDataLoader {
-    @SuppressWarnings("unused")
     private static final String TAG = "AlbumDataAdapter";
     private static final int DATA_CACHE_SIZE = 1000;
 
@@ -29,11 +28,19 @@ public class AlbumDataLoader {
     private static final int MSG_RUN_OBJECT = 3;
 
     private static final int MIN_LOAD_COUNT = 32;
-    private static final int MAX_LOAD_COUNT = 64;
+    // The loader goes on loading while this many updates wait for the main
+    // thread, then waits for it to catch up.
+    private static final int MAX_PENDING_UPDATES = 4;
+    // While the active window moves, the content window keeps up to
+    // 0.5 + MAX_SCROLL_BIAS of its spare slots ahead of it, the more the
+    // faster it moves, up to FULL_BIAS_VELOCITY items per second.
+    private static final float MAX_SCROLL_BIAS = 0.375f;
+    private static final float FULL_BIAS_VELOCITY = 50f;
 
     private final MediaItem[] mData;
     private final long[] mItemVersion;
-    private final long[] mSetVersion;
+    // Which slots hold their item at mSourceVersion.
+    private final RingBitSet mLoaded;
 
     public static interface DataListener {
         public void onContentChanged(int index);
@@ -42,6 +49,8 @@ public class AlbumDataLoader {
 
     private int mActiveStart = 0;
     private int mActiveEnd = 0;
+    // 1 if the active window moved down last, -1 if it moved up.
+    private int mScrollDirection = 1;
 
     private int mContentStart = 0;
     private int mContentEnd = 0;
@@ -57,15 +66,17 @@ public class AlbumDataLoader {
     private DataLoadListener mLoadingListener;
 
     private ReloadTask mReloadTask;
+    private final BatchSizer mBatchSizer = new BatchSizer();
+    private float mMaxScrollBias = MAX_SCROLL_BIAS;
 
     public AlbumDataLoader(WoTuContext context, MediaSet mediaSet) {
         mSource = mediaSet;
 
         mData = new MediaItem[DATA_CACHE_SIZE];
         mItemVersion = new long[DATA_CACHE_SIZE];
-        mSetVersion = new long[DATA_CACHE_SIZE];
+        mLoaded = new RingBitSet(DATA_CACHE_SIZE);
         Arrays.fill(mItemVersion, MediaObject.INVALID_DATA_VERSION);
-        Arrays.fill(mSetVersion, MediaObject.INVALID_DATA_VERSION);
+        publishSnapshot();
 
         mMainHandler = new SynchronizedHandler(context.getGLController()) {
             @Override
@@ -95,6 +106,19 @@ public class AlbumDataLoader {
         mReloadTask.terminate();
         mReloadTask = null;
         mSource.removeContentListener(mSourceListener);
+        WLog.d(TAG, "load metrics: " + mBatchSizer.getMetrics());
+    }
+
+    // 0 keeps the content window centered on the active window however it
+    // moves. This is for testing only.
+    void setMaxScrollBias(float bias) {
+        mMaxScrollBias = bias;
+    }
+
+    // How many items were loaded at a time, and how long the active window
+    // took to fill.
+    public BatchSizer.Metrics getLoadMetrics() {
+        return mBatchSizer.getMetrics();
     }
 
     public MediaItem get(int index) {
@@ -117,10 +141,19 @@ public class AlbumDataLoader {
         return mSize;
     }
 
-    private void clearSlot(int slotIndex) {
-        mData[slotIndex] = null;
-        mItemVersion[slotIndex] = MediaObject.INVALID_DATA_VERSION;
-        mSetVersion[slotIndex] = MediaObject.INVALID_DATA_VERSION;
+    // Clears the slots of the items [from, to).
+    private void clearSlots(int from, int to) {
+        if (from >= to) return;
+        mLoaded.clear(from, to);
+        int start = from % DATA_CACHE_SIZE;
+        int end = start + (to - from);
+        fillSlots(start, Math.min(end, DATA_CACHE_SIZE));
+        if (end > DATA_CACHE_SIZE) fillSlots(0, end - DATA_CACHE_SIZE);
+    }
+
+    private void fillSlots(int start, int end) {
+        Arrays.fill(mData, start, end, null);
+        Arrays.fill(mItemVersion, start, end, MediaObject.INVALID_DATA_VERSION);
     }
 
     private void setContentWindow(int contentStart, int contentEnd) {
@@ -133,21 +166,12 @@ public class AlbumDataLoader {
             mContentStart = contentStart;
             mContentEnd = contentEnd;
         }
-        long[] itemVersion = mItemVersion;
-        long[] setVersion = mSetVersion;
         if (contentStart >= end || start >= contentEnd) {
-            for (int i = start, n = end; i < n; ++i) {
-                clearSlot(i % DATA_CACHE_SIZE);
-            }
+            clearSlots(start, end);
         } else {
-            for (int i = start; i < contentStart; ++i) {
-                clearSlot(i % DATA_CACHE_SIZE);
-            }
-            for (int i = contentEnd, n = end; i < n; ++i) {
-                clearSlot(i % DATA_CACHE_SIZE);
-            }
+            clearSlots(start, contentStart);
+            clearSlots(contentEnd, end);
         }
-        if (mReloadTask != null) mReloadTask.notifyDirty();
     }
 
     public void setActiveWindow(int start, int end) {
@@ -161,15 +185,43 @@ public class AlbumDataLoader {
         mActiveEnd = end;
 
         // If no data is visible, keep the cache content
-        if (start == end) return;
+        if (start == end) {
+            publishSnapshot();
+            return;
+        }
+
+        // Before the loader hears of the new content window.
+        mBatchSizer.onActiveWindowChanged(start, end, isActiveLoaded());
+        float velocity = mBatchSizer.getVelocity();
+        if (velocity != 0) mScrollDirection = (velocity > 0) ? 1 : -1;
 
-        int contentStart = UtilsBase.clamp((start + end) / 2 - length / 2,
+        // Centered while the window is still, ahead of it while it moves.
+        float bias = UtilsBase.clamp(velocity / FULL_BIAS_VELOCITY, -1f, 1f)
+                * mMaxScrollBias;
+        int behind = (int) ((length - (end - start)) * (0.5f - bias));
+        int contentStart = UtilsBase.clamp(start - behind,
                 0, Math.max(0, mSize - length));
         int contentEnd = Math.min(contentStart + length, mSize);
         if (mContentStart > start || mContentEnd < end
                 || Math.abs(contentStart - mContentStart) > MIN_LOAD_COUNT) {
             setContentWindow(contentStart, contentEnd);
         }
+        // The loader picks its next range by the active window and the
+        // scroll direction too, so it hears of them even when the content
+        // window stays.
+        publishSnapshot();
+        if (mReloadTask != null) mReloadTask.notifyDirty();
+    }
+
+    // Whether every item of the active window is loaded at the current
+    // version of the source. The slots outside the content window may still
+    // hold the items which used them before.
+    private boolean isActiveLoaded() {
+        if (mSourceVersion == MediaObject.INVALID_DATA_VERSION
+                || mActiveStart < mContentStart || mActiveEnd > mContentEnd) {
+            return false;
+        }
+        return mLoaded.nextClear(mActiveStart, mActiveEnd) < 0;
     }
 
     private class MySourceListener implements ContentListener {
@@ -186,20 +238,51 @@ public class AlbumDataLoader {
         mLoadingListener = listener;
     }
 
-    private <T> T executeAndWait(Callable<T> callable) {
-        FutureTask<T> task = new FutureTask<T>(callable);
-        mMainHandler.sendMessage(
-                mMainHandler.obtainMessage(MSG_RUN_OBJECT, task));
-        try {
-            return task.get();
-        } catch (InterruptedException e) {
-            return null;
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+    // What the loader thread needs to know about the content window. The
+    // GL thread owns the window and publishes a new Snapshot whenever it
+    // changes, so the loader never waits for the GL thread to read it.
+    private static class Snapshot {
+        public final int contentStart;
+        public final int contentEnd;
+        public final int activeStart;
+        public final int activeEnd;
+        public final int scrollDirection;
+        public final int size;
+        public final long sourceVersion;
+        // Which slots are loaded at sourceVersion, a copy of mLoaded.
+        public final RingBitSet loaded;
+        // The serial of the last UpdateContent applied.
+        public final long appliedSerial;
+
+        public Snapshot(int contentStart, int contentEnd, int activeStart,
+                int activeEnd, int scrollDirection, int size,
+                long sourceVersion, RingBitSet loaded, long appliedSerial) {
+            this.contentStart = contentStart;
+            this.contentEnd = contentEnd;
+            this.activeStart = activeStart;
+            this.activeEnd = activeEnd;
+            this.scrollDirection = scrollDirection;
+            this.size = size;
+            this.sourceVersion = sourceVersion;
+            this.loaded = loaded;
+            this.appliedSerial = appliedSerial;
         }
     }
 
+    // Written by the GL thread only.
+    private volatile Snapshot mSnapshot;
+    private long mAppliedSerial = 0;
+    private final AtomicLong mUpdateSerial = new AtomicLong();
+
+    // Called on the GL thread after the window or the content changed.
+    private void publishSnapshot() {
+        mSnapshot = new Snapshot(mContentStart, mContentEnd, mActiveStart,
+                mActiveEnd, mScrollDirection, mSize, mSourceVersion,
+                mLoaded.copy(), mAppliedSerial);
+    }
+
     private static class UpdateInfo {
+        public long serial;
         public long version;
         public int reloadStart;
         public int reloadCount;
@@ -208,32 +291,9 @@ public class AlbumDataLoader {
         public ArrayList<MediaItem> items;
     }
 
-    private class GetUpdateInfo implements Callable<UpdateInfo> {
-        private final long mVersion;
-
-        public GetUpdateInfo(long version) {
-            mVersion = version;
-        }
-
-        public UpdateInfo call() throws Exception {
-            UpdateInfo info = new UpdateInfo();
-            long version = mVersion;
-            info.version = mSourceVersion;
-            info.size = mSize;
-            long setVersion[] = mSetVersion;
-            for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
-                int index = i % DATA_CACHE_SIZE;
-                if (setVersion[index] != version) {
-                    info.reloadStart = i;
-                    info.reloadCount = Math.min(MAX_LOAD_COUNT, n - i);
-                    return info;
-                }
-            }
-            return mSourceVersion == mVersion ? null : info;
-        }
-    }
-
-    private class UpdateContent implements Callable<Void> {
+    // Applies an update on the GL thread. Posted by the loader thread,
+    // which goes on loading without waiting for it.
+    private class UpdateContent implements Runnable {
 
         private UpdateInfo mUpdateInfo;
 
@@ -242,8 +302,10 @@ public class AlbumDataLoader {
         }
 
         @Override
-        public Void call() throws Exception {
+        public void run() {
             UpdateInfo info = mUpdateInfo;
+            // The slots loaded at an older version need loading again.
+            if (mSourceVersion != info.version) mLoaded.clearAll();
             mSourceVersion = info.version;
             if (mSize != info.size) {
                 mSize = info.size;
@@ -253,48 +315,58 @@ public class AlbumDataLoader {
             }
 
             ArrayList<MediaItem> items = info.items;
-
-            if (items == null) return null;
-            int start = Math.max(info.reloadStart, mContentStart);
-            int end = Math.min(info.reloadStart + items.size(), mContentEnd);
-
-            for (int i = start; i < end; ++i) {
-                int index = i % DATA_CACHE_SIZE;
-                mSetVersion[index] = info.version;
-                MediaItem updateItem = items.get(i - info.reloadStart);
-                long itemVersion = updateItem.getDataVersion();
-                if (mItemVersion[index] != itemVersion) {
-                    mItemVersion[index] = itemVersion;
-                    mData[index] = updateItem;
-                    if (mDataListener != null && i >= mActiveStart && i < mActiveEnd) {
-                        mDataListener.onContentChanged(i);
+            if (items != null) {
+                // The window may have moved since the items were loaded.
+                int start = Math.max(info.reloadStart, mContentStart);
+                int end = Math.min(info.reloadStart + items.size(), mContentEnd);
+
+                for (int i = start; i < end; ++i) {
+                    int index = i % DATA_CACHE_SIZE;
+                    MediaItem updateItem = items.get(i - info.reloadStart);
+                    long itemVersion = updateItem.getDataVersion();
+                    if (mItemVersion[index] != itemVersion) {
+                        mItemVersion[index] = itemVersion;
+                        mData[index] = updateItem;
+                        if (mDataListener != null && i >= mActiveStart && i < mActiveEnd) {
+                            mDataListener.onContentChanged(i);
+                        }
                     }
                 }
+                mLoaded.set(start, end);
             }
-            return null;
+            mAppliedSerial = Math.max(mAppliedSerial, info.serial);
+            mBatchSizer.setActiveLoaded(isActiveLoaded());
+            publishSnapshot();
+            if (mReloadTask != null) mReloadTask.notifyApplied();
         }
     }
 
     /*
      * The thread model of ReloadTask
-     *      *
+     *
      * [Reload Task]       [Main Thread]
      *       |                   |
-     * getUpdateInfo() -->       |           (synchronous call)
-     *     (wait) <----    getUpdateInfo()
+     * read mSnapshot            |           (no wait)
      *       |                   |
      *   Load Data               |
      *       |                   |
-     * updateContent() -->       |           (synchronous call)
-     *     (wait)          updateContent()
-     *       |                   |
+     * post UpdateContent -->    |           (no wait)
+     *       |             updateContent()
+     *   Load Data         publishSnapshot()
      *       |                   |
+     *
+     * The loader remembers the updates it has posted until a snapshot shows
+     * them applied, so it neither loads a range twice nor waits for the
+     * main thread, unless MAX_PENDING_UPDATES are in flight.
      */
     private class ReloadTask extends Thread {
 
         private volatile boolean mActive = true;
         private volatile boolean mDirty = true;
         private boolean mIsLoading = false;
+        // The updates posted to the main thread which mSnapshot does not
+        // show yet. Only used by this thread.
+        private final ArrayList<UpdateInfo> mPending = new ArrayList<UpdateInfo>();
 
         private void updateLoading(boolean loading) {
             if (mIsLoading == loading) return;
@@ -321,28 +393,154 @@ public class AlbumDataLoader {
                 synchronized (DataManager.LOCK) {
                     version = mSource.reload();
                 }
-                UpdateInfo info = executeAndWait(new GetUpdateInfo(version));
-                updateComplete = info == null;
-                if (updateComplete) continue;
+                Snapshot snapshot = mSnapshot;
+                removeApplied(snapshot);
+                UpdateInfo info = (mPending.size() < MAX_PENDING_UPDATES)
+                        ? getUpdateInfo(snapshot, version) : null;
+                updateComplete = (info == null) && mPending.isEmpty();
+                if (info == null) {
+                    if (!updateComplete) waitForApply(snapshot);
+                    continue;
+                }
                 synchronized (DataManager.LOCK) {
                     if (info.version != version) {
                         info.size = mSource.getMediaItemCount();
                         info.version = version;
                     }
                     if (info.reloadCount > 0) {
+                        long start = System.nanoTime();
                         info.items = mSource.getMediaItem(info.reloadStart, info.reloadCount);
+                        mBatchSizer.onBatchLoaded(info.items.size(),
+                                System.nanoTime() - start);
                     }
                 }
-                executeAndWait(new UpdateContent(info));
+                info.serial = mUpdateSerial.incrementAndGet();
+                mPending.add(info);
+                mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                        MSG_RUN_OBJECT, new UpdateContent(info)));
             }
             updateLoading(false);
         }
 
+        // Finds the next range of the content window which is neither
+        // loaded at "version" nor on its way to the main thread: the active
+        // window first, then the slots ahead of it in the scroll direction
+        // and then those behind it, each from the active window outward.
+        // Returns an update of the size and version only if that is all
+        // there is to do, and null if there is nothing to do. BatchSizer
+        // picks the length of the range.
+        private UpdateInfo getUpdateInfo(Snapshot snapshot, long version) {
+            UpdateInfo info = new UpdateInfo();
+            info.version = snapshot.sourceVersion;
+            info.size = snapshot.size;
+            int start = snapshot.contentStart;
+            int end = snapshot.contentEnd;
+            int activeStart = UtilsBase.clamp(snapshot.activeStart, start, end);
+            int activeEnd = UtilsBase.clamp(snapshot.activeEnd, activeStart, end);
+            boolean found = findUp(snapshot, version, activeStart, activeEnd, info);
+            if (!found && snapshot.scrollDirection > 0) {
+                found = findUp(snapshot, version, activeEnd, end, info)
+                        || findDown(snapshot, version, start, activeStart, info);
+            } else if (!found) {
+                found = findDown(snapshot, version, start, activeStart, info)
+                        || findUp(snapshot, version, activeEnd, end, info);
+            }
+            if (found) return info;
+            if (snapshot.sourceVersion == version) return null;
+            for (UpdateInfo pending : mPending) {
+                if (pending.version == version) return null;
+            }
+            return info;
+        }
+
+        // Sets "info" to a range of [from, to) starting at its first item
+        // which needs loading. Returns false if there is none.
+        private boolean findUp(Snapshot snapshot, long version,
+                int from, int to, UpdateInfo info) {
+            int i = from;
+            while (i < to) {
+                if (snapshot.sourceVersion == version) {
+                    i = snapshot.loaded.nextClear(i, to);
+                    if (i < 0) return false;
+                }
+                UpdateInfo pending = getPending(i, version);
+                if (pending != null) {
+                    i = pending.reloadStart + pending.items.size();
+                    continue;
+                }
+                int end = i + 1;
+                int max = Math.min(i + mBatchSizer.nextBatchSize(i), to);
+                while (end < max && getPending(end, version) == null) ++end;
+                info.reloadStart = i;
+                info.reloadCount = end - i;
+                return true;
+            }
+            return false;
+        }
+
+        // Like findUp(), for a range ending at the last item which needs
+        // loading.
+        private boolean findDown(Snapshot snapshot, long version,
+                int from, int to, UpdateInfo info) {
+            int i = to - 1;
+            while (i >= from) {
+                if (snapshot.sourceVersion == version) {
+                    i = snapshot.loaded.previousClear(from, i + 1);
+                    if (i < 0) return false;
+                }
+                UpdateInfo pending = getPending(i, version);
+                if (pending != null) {
+                    i = pending.reloadStart - 1;
+                    continue;
+                }
+                int start = i;
+                int min = Math.max(i + 1 - mBatchSizer.nextBatchSize(i), from);
+                while (start > min && getPending(start - 1, version) == null) --start;
+                info.reloadStart = start;
+                info.reloadCount = i + 1 - start;
+                return true;
+            }
+            return false;
+        }
+
+        // The update on its way to the main thread which loads the item at
+        // "index", or null.
+        private UpdateInfo getPending(int index, long version) {
+            for (UpdateInfo pending : mPending) {
+                if (pending.version == version && pending.items != null
+                        && index >= pending.reloadStart
+                        && index < pending.reloadStart + pending.items.size()) {
+                    return pending;
+                }
+            }
+            return null;
+        }
+
+        private void removeApplied(Snapshot snapshot) {
+            for (int i = mPending.size() - 1; i >= 0; --i) {
+                if (mPending.get(i).serial <= snapshot.appliedSerial) {
+                    mPending.remove(i);
+                }
+            }
+        }
+
+        // Waits until the main thread publishes a new snapshot, or the
+        // source changes.
+        private synchronized void waitForApply(Snapshot snapshot) {
+            while (mActive && !mDirty && mSnapshot == snapshot) {
+                UtilsBase.waitWithoutInterrupt(this);
+            }
+        }
+
         public synchronized void notifyDirty() {
             mDirty = true;
             notifyAll();
         }
 
+        public synchronized void notifyApplied() {
+            notifyAll();
+        }
+
         public synchronized void terminate() {
             mActive = false;
             notifyAll();
@@ -0,0 +1,224 @@
+package com.wotu.data.load;
+
+import com.wotu.common.Histogram;
+
+// Picks how many items AlbumDataLoader asks its MediaSet for at a time. A
+// batch is one getMediaItem() call, i.e. one cursor query, and one update of
+// the GL thread, so large batches amortize the cost of a query and small
+// ones get the first items on screen sooner.
+//
+// - The cost of a batch is modeled as a fixed cost per query plus a cost
+//   per item, fitted to the batches loaded so far.
+// - While the active window is still but not loaded, e.g. on a cold open or
+//   after a jump, a batch which starts in it ends with its last item, so
+//   the visible items come in one query and nothing after them waits for
+//   it.
+// - Otherwise batches are sized to take BATCH_BUDGET_MS, and while the
+//   active window moves, to cover the next SCROLL_AHEAD_MS of scrolling, up
+//   to MAX_BATCH_BUDGET_MS.
+//
+// A batch sized to a budget is at most twice as large as the one before
+// it, so a few cheap batches do not make the next one take long. The GL
+// thread reports the active window; the loader thread asks for batch sizes.
+public class BatchSizer {
+    public static final int MIN_BATCH_SIZE = 8;
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private static final long NANOS_PER_MS = 1000000;
+    private static final long BATCH_BUDGET_MS = 32;
+    private static final long MAX_BATCH_BUDGET_MS = 100;
+    private static final long SCROLL_AHEAD_MS = 250;
+    // The window counts as still once it has not moved for this long.
+    private static final long SCROLL_IDLE_MS = 200;
+    // How many batch sizes getMetrics() returns.
+    private static final int HISTORY_SIZE = 64;
+    // The weight of a batch in the cost model drops by this factor with
+    // each later batch.
+    private static final double DECAY = 0.8;
+
+    // Weighted sums over the batches loaded so far, of 1, of the batch
+    // sizes (x), of the batch times in nanoseconds (y), of x*x and of x*y.
+    private double mWeight;
+    private double mSumX;
+    private double mSumY;
+    private double mSumXX;
+    private double mSumXY;
+    // The cost model fitted to them: y = mFixedNanos + mNanosPerItem * x.
+    // mNanosPerItem is 0 until a batch is loaded.
+    private double mFixedNanos;
+    private double mNanosPerItem;
+    // The size returned by nextBatchSize() last. The batch may have been
+    // smaller, at the end of a range.
+    private int mLastBatchSize = MIN_BATCH_SIZE;
+
+    // In items per second, while the window moves; negative when it moves
+    // up.
+    private float mVelocity;
+    private int mLastActiveStart;
+    private int mActiveEnd;
+    private long mLastMoveNanos = System.nanoTime()
+            - SCROLL_IDLE_MS * NANOS_PER_MS;
+
+    // An empty window counts as loaded.
+    private boolean mActiveLoaded = true;
+    // When the active window became not loaded, -1 if it is loaded.
+    private long mFillStartNanos = -1;
+
+    private final Histogram mBatchSizes = new Histogram();
+    private final Histogram mBatchMicros = new Histogram();
+    private final Histogram mFillMillis = new Histogram();
+    private final long[] mHistoryMillis = new long[HISTORY_SIZE];
+    private final int[] mHistorySizes = new int[HISTORY_SIZE];
+    private int mHistoryCount;
+    private int mHistoryNext;
+    private final long mCreatedNanos = System.nanoTime();
+
+    public static class Metrics {
+        public final Histogram.Snapshot batchSizes;
+        public final Histogram.Snapshot batchMicros;
+        // From the time the active window showed items which were not
+        // loaded until all its items were loaded.
+        public final Histogram.Snapshot fillMillis;
+        // The sizes of the latest batches, oldest first, and when they were
+        // loaded, in milliseconds since the BatchSizer was created.
+        public final long[] historyMillis;
+        public final int[] historySizes;
+
+        private Metrics(BatchSizer sizer) {
+            batchSizes = sizer.mBatchSizes.snapshot();
+            batchMicros = sizer.mBatchMicros.snapshot();
+            fillMillis = sizer.mFillMillis.snapshot();
+            int count = sizer.mHistoryCount;
+            historyMillis = new long[count];
+            historySizes = new int[count];
+            for (int i = 0; i < count; ++i) {
+                int index = (sizer.mHistoryNext - count + i + HISTORY_SIZE)
+                        % HISTORY_SIZE;
+                historyMillis[i] = sizer.mHistoryMillis[index];
+                historySizes[i] = sizer.mHistorySizes[index];
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("batch size ").append(batchSizes)
+                    .append(", batch(us) ").append(batchMicros)
+                    .append(", fill(ms) ").append(fillMillis)
+                    .append(", recent [");
+            for (int i = 0; i < historySizes.length; ++i) {
+                if (i > 0) sb.append(' ');
+                sb.append(historySizes[i]).append('@')
+                        .append(historyMillis[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    // Called on the GL thread when the active window changes. "loaded" is
+    // whether all its items are loaded.
+    public synchronized void onActiveWindowChanged(
+            int start, int end, boolean loaded) {
+        long now = System.nanoTime();
+        long elapsed = now - mLastMoveNanos;
+        if (elapsed >= SCROLL_IDLE_MS * NANOS_PER_MS) {
+            mVelocity = 0;
+        } else if (elapsed > 0) {
+            float velocity = (start - mLastActiveStart)
+                    * (1000f * NANOS_PER_MS) / elapsed;
+            mVelocity = (mVelocity == 0) ? velocity
+                    : (mVelocity + velocity) / 2;
+        }
+        mLastActiveStart = start;
+        mActiveEnd = end;
+        mLastMoveNanos = now;
+        setActiveLoaded(loaded);
+    }
+
+    // Called on the GL thread after an update is applied.
+    public synchronized void setActiveLoaded(boolean loaded) {
+        if (loaded == mActiveLoaded) return;
+        mActiveLoaded = loaded;
+        long now = System.nanoTime();
+        if (!loaded) {
+            mFillStartNanos = now;
+        } else if (mFillStartNanos >= 0) {
+            mFillMillis.record((now - mFillStartNanos) / NANOS_PER_MS);
+            mFillStartNanos = -1;
+        }
+    }
+
+    // Called on the loader thread for a batch starting at "start".
+    public synchronized int nextBatchSize(int start) {
+        float velocity = Math.abs(getVelocity());
+        long size = 0;
+        if (!mActiveLoaded && start >= mLastActiveStart
+                && start < mActiveEnd) {
+            size = mActiveEnd - start;
+        }
+        // A moving window needs batches which keep up with it, even while
+        // its items are missing.
+        if (mNanosPerItem != 0 && (size == 0 || velocity != 0)) {
+            long budget = itemsWithin(BATCH_BUDGET_MS);
+            long ahead = (long) (velocity * SCROLL_AHEAD_MS / 1000);
+            budget = Math.max(budget, Math.min(ahead,
+                    itemsWithin(MAX_BATCH_BUDGET_MS)));
+            size = Math.max(size, Math.min(budget, 2L * mLastBatchSize));
+        }
+        mLastBatchSize =
+                (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+        return mLastBatchSize;
+    }
+
+    // Called on the loader thread after a batch of "count" items took
+    // "nanos" to load.
+    public synchronized void onBatchLoaded(int count, long nanos) {
+        if (count <= 0) return;
+        fit(count, nanos);
+        mBatchSizes.record(count);
+        mBatchMicros.record(nanos / 1000);
+        mHistoryMillis[mHistoryNext] =
+                (System.nanoTime() - mCreatedNanos) / NANOS_PER_MS;
+        mHistorySizes[mHistoryNext] = count;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistoryCount < HISTORY_SIZE) ++mHistoryCount;
+    }
+
+    // A weighted least-squares fit of the cost model. While the batches
+    // have been too much alike to tell the fixed cost from the cost per
+    // item, all of the cost counts per item, which errs on small batches.
+    private void fit(int count, long nanos) {
+        mWeight = mWeight * DECAY + 1;
+        mSumX = mSumX * DECAY + count;
+        mSumY = mSumY * DECAY + nanos;
+        mSumXX = mSumXX * DECAY + (double) count * count;
+        mSumXY = mSumXY * DECAY + (double) count * nanos;
+        double variance = mWeight * mSumXX - mSumX * mSumX;
+        double slope = (variance > mSumX * mSumX / 16)
+                ? (mWeight * mSumXY - mSumX * mSumY) / variance : 0;
+        if (slope <= 0) {
+            mNanosPerItem = Math.max(1, mSumY / mSumX);
+            mFixedNanos = 0;
+        } else {
+            mNanosPerItem = slope;
+            mFixedNanos = Math.max(0, (mSumY - slope * mSumX) / mWeight);
+        }
+    }
+
+    // How many items a batch can have to load within "budgetMs".
+    private long itemsWithin(long budgetMs) {
+        return (long) ((budgetMs * NANOS_PER_MS - mFixedNanos)
+                / mNanosPerItem);
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(this);
+    }
+
+    // How fast the active window moves, in items per second, negative when
+    // it moves up. 0 once it has stopped.
+    public synchronized float getVelocity() {
+        long idle = System.nanoTime() - mLastMoveNanos;
+        return (idle >= SCROLL_IDLE_MS * NANOS_PER_MS) ? 0 : mVelocity;
+    }
+}
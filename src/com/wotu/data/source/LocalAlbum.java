@@ -47,6 +47,11 @@ public class LocalAlbum extends MediaSet {
     private final DataNotifier mNotifier;
     private final String mItemPath;
     private int mCachedCount = INVALID_COUNT;
+    // The _id of the cover item from a MediaIndexSnapshot, or INVALID_ID.
+    private int mCoverId = MediaIndexSnapshot.INVALID_ID;
+    // Whether mCachedCount comes from the query LocalAlbumSet ran just
+    // before it created this album, and has not been checked by reload().
+    private boolean mCountFromSet;
 
     public LocalAlbum(Path path, WoTuApp application, long bucketId,
             boolean isImage, String name) {
@@ -209,6 +214,30 @@ public class LocalAlbum extends MediaSet {
                 new String[]{String.valueOf(id)}, null);
     }
 
+    // Takes the item count, and the cover if it is not INVALID_ID, from
+    // LocalAlbumSet. If "current" they come from the query it has just run,
+    // and nothing changed until this album was created, so the count is not
+    // queried again until the content changes. If not, they come from a
+    // MediaIndexSnapshot and only stand in until the first reload().
+    void setCountAndCover(int count, int coverId, boolean current) {
+        mCachedCount = count;
+        mCoverId = coverId;
+        mCountFromSet = current;
+    }
+
+    @Override
+    public MediaItem getCoverMediaItem() {
+        int coverId = mCoverId;
+        if (coverId != MediaIndexSnapshot.INVALID_ID) {
+            // A lookup by _id, cheaper than sorting the bucket.
+            ArrayList<Integer> ids = new ArrayList<Integer>(1);
+            ids.add(coverId);
+            MediaItem cover = getMediaItemById(mApplication, mIsImage, ids)[0];
+            if (cover != null) return cover;
+        }
+        return super.getCoverMediaItem();
+    }
+
     @Override
     public int getMediaItemCount() {
         if (mCachedCount == INVALID_COUNT) {
@@ -238,7 +267,13 @@ public class LocalAlbum extends MediaSet {
     public long reload() {
         if (mNotifier.isDirty()) {
             mDataVersion = nextVersionNumber();
-            mCachedCount = INVALID_COUNT;
+            // The notifier starts dirty. A count from LocalAlbumSet is kept
+            // through that if no change has arrived since.
+            if (!mCountFromSet || mNotifier.getChangeCount() != 0) {
+                mCachedCount = INVALID_COUNT;
+                mCoverId = MediaIndexSnapshot.INVALID_ID;
+            }
+            mCountFromSet = false;
         }
         return mDataVersion;
     }
@@ -4,6 +4,8 @@ import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Files;
 import android.provider.MediaStore.Files.FileColumns;
 import android.provider.MediaStore.Images;
@@ -13,6 +15,7 @@ import android.util.Log;
 
 import com.wotu.R;
 import com.wotu.app.WoTuApp;
+import com.wotu.common.AsyncFuture;
 import com.wotu.common.Future;
 import com.wotu.common.FutureListener;
 import com.wotu.common.ThreadPool;
@@ -25,7 +28,9 @@ import com.wotu.data.MediaSetUtils;
 import com.wotu.data.Path;
 import com.wotu.utils.UtilsBase;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 // LocalAlbumSet lists all image or video albums in the local storage.
 // The path should be "/local/image", "local/video" or "/local/all"
@@ -41,6 +46,8 @@ public class LocalAlbumSet extends MediaSet implements
     private static final int INDEX_BUCKET_ID = 0;
     private static final int INDEX_MEDIA_TYPE = 1;
     private static final int INDEX_BUCKET_NAME = 2;
+    private static final int INDEX_COUNT = 3;
+    private static final int INDEX_COVER_ID = 4;
 
     private static final Uri mBaseUri = Files.getContentUri(EXTERNAL_MEDIA);
     private static final Uri mWatchUriImage = Images.Media.EXTERNAL_CONTENT_URI;
@@ -68,6 +75,18 @@ public class LocalAlbumSet extends MediaSet implements
             FileColumns.MEDIA_TYPE, ImageColumns.BUCKET_DISPLAY_NAME
     };
 
+    // PROJECTION_BUCKET plus the size of each album, so LocalAlbum need not
+    // query it, and the item added last as the cover in a
+    // MediaIndexSnapshot. That is usually, but not always, the item
+    // LocalAlbum sorts first.
+    private static final String[] PROJECTION_BUCKET_STATS = {
+            ImageColumns.BUCKET_ID,
+            FileColumns.MEDIA_TYPE, ImageColumns.BUCKET_DISPLAY_NAME,
+            "count(*)", "MAX(" + FileColumns._ID + ")"
+    };
+
+    private static final String SNAPSHOT_FILE_PREFIX = "media_index_";
+
     // We want to order the albums by reverse chronological order. We abuse the
     // "WHERE" parameter to insert a "GROUP BY" clause into the SQL statement.
     // The template for "WHERE" parameter is like:
@@ -91,6 +110,8 @@ public class LocalAlbumSet extends MediaSet implements
 
     private Future<ArrayList<MediaSet>> mLoadTask;
     private ArrayList<MediaSet> mLoadBuffer;
+    private boolean mSnapshotRead;
+    private final AtomicLong mSnapshotGeneration = new AtomicLong();
 
     public LocalAlbumSet(Path path, WoTuApp application) {
         super(path, nextVersionNumber());
@@ -123,7 +144,7 @@ public class LocalAlbumSet extends MediaSet implements
 
         Log.v("DebugLoadingTime", "start quering media provider");
         Cursor cursor = mApplication.getContentResolver().query(uri,
-                PROJECTION_BUCKET, BUCKET_GROUP_BY, null, BUCKET_ORDER_BY);
+                PROJECTION_BUCKET_STATS, BUCKET_GROUP_BY, null, BUCKET_ORDER_BY);
         if (cursor == null) {
             Log.w(TAG, "cannot open local database: " + uri);
             return new BucketEntry[0];
@@ -138,12 +159,22 @@ public class LocalAlbumSet extends MediaSet implements
         }
         try {
             while (cursor.moveToNext()) {
-                if ((typeBits & (1 << cursor.getInt(INDEX_MEDIA_TYPE))) != 0) {
+                int mediaType = cursor.getInt(INDEX_MEDIA_TYPE);
+                if ((typeBits & (1 << mediaType)) != 0) {
                     BucketEntry entry = new BucketEntry(
                             cursor.getInt(INDEX_BUCKET_ID),
-                            cursor.getString(INDEX_BUCKET_NAME));
-                    if (!buffer.contains(entry)) {
+                            cursor.getString(INDEX_BUCKET_NAME), mediaType,
+                            cursor.getInt(INDEX_COUNT),
+                            cursor.getInt(INDEX_COVER_ID));
+                    int index = buffer.indexOf(entry);
+                    if (index < 0) {
                         buffer.add(entry);
+                    } else {
+                        // The images and the videos of a bucket come in rows
+                        // of their own, and the album shows both.
+                        BucketEntry first = buffer.get(index);
+                        first.count += entry.count;
+                        first.coverId = Math.max(first.coverId, entry.coverId);
                     }
                 }
                 if (jc.isCancelled())
@@ -164,19 +195,31 @@ public class LocalAlbumSet extends MediaSet implements
         return -1;
     }
 
-    private class AlbumsLoader implements ThreadPool.Job<ArrayList<MediaSet>> {
+    // Queries the buckets. A cancelled query completes the load as cancelled,
+    // so AlbumsBuilder does not run.
+    private class BucketsLoader implements ThreadPool.Job<BucketEntry[]> {
 
         @Override
-        @SuppressWarnings("unchecked")
-        public ArrayList<MediaSet> run(JobContext jc) {
+        public BucketEntry[] run(JobContext jc) {
             // Note: it will be faster if we only select media_type and
             // bucket_id.
             // need to test the performance if that is worth
-            BucketEntry[] entries = loadBucketEntries(jc);
+            return loadBucketEntries(jc);
+        }
+    }
+
+    // Turns the buckets into albums and leaves a snapshot of them. "changes"
+    // is the change count from before the query.
+    private class AlbumsBuilder implements
+            AsyncFuture.Function<BucketEntry[], ArrayList<MediaSet>> {
+        private final int mChanges;
 
-            if (jc.isCancelled())
-                return null;
+        public AlbumsBuilder(int changes) {
+            mChanges = changes;
+        }
 
+        @Override
+        public ArrayList<MediaSet> apply(BucketEntry[] entries) {
             int offset = 0;
             // Move camera and download bucket to the front, while keeping the
             // order of others.
@@ -192,13 +235,76 @@ public class LocalAlbumSet extends MediaSet implements
             ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
             DataManager dataManager = mApplication.getDataManager();
             for (BucketEntry entry : entries) {
-                MediaSet album = getLocalAlbum(dataManager, mType, entry.bucketId, entry.bucketName);
-                albums.add(album);
+                albums.add(getLocalAlbum(dataManager, mType, entry.bucketId, entry.bucketName));
             }
+            // The counts hold if nothing changed from the query until the
+            // albums were created. The albums see later changes themselves.
+            boolean current = (getChangeCount() == mChanges);
+            for (int i = 0; i < entries.length; ++i) {
+                setCountAndCover(albums.get(i), entries[i].count,
+                        MediaIndexSnapshot.INVALID_ID, current);
+            }
+            writeSnapshot(entries);
             return albums;
         }
     }
 
+    private File getSnapshotFile() {
+        return new File(mApplication.getAndroidContext().getCacheDir(),
+                SNAPSHOT_FILE_PREFIX + mType);
+    }
+
+    private String getStoreVersion() {
+        return MediaStore.getVersion(mApplication.getAndroidContext());
+    }
+
+    // The albums of the last load, if it left a snapshot for this
+    // MediaStore. Empty if not.
+    private ArrayList<MediaSet> loadSnapshot() {
+        ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
+        long start = SystemClock.uptimeMillis();
+        MediaIndexSnapshot snapshot = MediaIndexSnapshot.read(
+                getSnapshotFile(), getStoreVersion());
+        if (snapshot == null) return albums;
+        mSnapshotGeneration.set(snapshot.generation);
+        DataManager dataManager = mApplication.getDataManager();
+        for (MediaIndexSnapshot.Entry entry : snapshot.entries) {
+            MediaSet album = getLocalAlbum(dataManager, mType, entry.bucketId,
+                    entry.bucketName);
+            setCountAndCover(album, entry.count, entry.coverId, false);
+            albums.add(album);
+        }
+        Log.v("DebugLoadingTime", "got " + albums.size()
+                + " albums from snapshot " + snapshot.generation + " in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        return albums;
+    }
+
+    private void writeSnapshot(BucketEntry[] buckets) {
+        MediaIndexSnapshot.Entry[] entries =
+                new MediaIndexSnapshot.Entry[buckets.length];
+        for (int i = 0; i < buckets.length; ++i) {
+            BucketEntry bucket = buckets[i];
+            entries[i] = new MediaIndexSnapshot.Entry(bucket.bucketId,
+                    bucket.mediaType, bucket.bucketName, bucket.count,
+                    bucket.coverId);
+        }
+        MediaIndexSnapshot.write(getSnapshotFile(), getStoreVersion(),
+                mSnapshotGeneration.incrementAndGet(), entries);
+    }
+
+    private int getChangeCount() {
+        return mNotifierImage.getChangeCount()
+                + mNotifierVideo.getChangeCount();
+    }
+
+    private static void setCountAndCover(MediaSet album, int count,
+            int coverId, boolean current) {
+        if (album instanceof LocalAlbum) {
+            ((LocalAlbum) album).setCountAndCover(count, coverId, current);
+        }
+    }
+
     private MediaSet getLocalAlbum(DataManager manager, int type, long id, String name) {
         synchronized (DataManager.LOCK) {
             switch (type) {
@@ -246,13 +352,33 @@ public class LocalAlbumSet extends MediaSet implements
     // 1. Prevent calling reload() concurrently.
     // 2. Prevent calling onFutureDone() and reload() concurrently
     public synchronized long reload() {
+        // Show the albums of the last run until they are loaded again.
+        if (!mSnapshotRead) {
+            mSnapshotRead = true;
+            ArrayList<MediaSet> albums = loadSnapshot();
+            if (!albums.isEmpty()) {
+                mAlbums = albums;
+                mDataVersion = nextVersionNumber();
+            }
+        }
         // "|" is used instead of "||" because we want to clear both flags.
         if (mNotifierImage.isDirty() | mNotifierVideo.isDirty()) {
             if (mLoadTask != null)
                 mLoadTask.cancel();
             mIsLoading = true;
-            mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(),
-                    this);
+            // Mostly provider queries, so run it on the I/O lane. Building
+            // the albums is quick and follows on the same thread.
+            final AsyncFuture<ArrayList<MediaSet>> task = mApplication
+                    .getThreadPool().submitIoAsync(new BucketsLoader())
+                    .thenApply(new AlbumsBuilder(getChangeCount()),
+                            AsyncFuture.DIRECT);
+            mLoadTask = task;
+            task.addCallback(new Runnable() {
+                @Override
+                public void run() {
+                    onFutureDone(task);
+                }
+            }, AsyncFuture.DIRECT);
         }
         if (mLoadBuffer != null) {
             mAlbums = mLoadBuffer;
@@ -268,7 +394,7 @@ public class LocalAlbumSet extends MediaSet implements
 
     @Override
     public synchronized void onFutureDone(Future<ArrayList<MediaSet>> future) {
-        if (mLoadTask != future)
+        if (mLoadTask != future || future.isCancelled())
             return; // ignore, wait for the latest task
         mLoadBuffer = future.get();
         mIsLoading = false;
@@ -291,10 +417,17 @@ public class LocalAlbumSet extends MediaSet implements
     private static class BucketEntry {
         public String bucketName;
         public int bucketId;
+        public int mediaType;
+        public int count;
+        public int coverId;
 
-        public BucketEntry(int id, String name) {
+        public BucketEntry(int id, String name, int mediaType, int count,
+                int coverId) {
             bucketId = id;
             bucketName = UtilsBase.ensureNotNull(name);
+            this.mediaType = mediaType;
+            this.count = count;
+            this.coverId = coverId;
         }
 
         @Override
@@ -0,0 +1,189 @@
+package com.wotu.data.source;
+
+import com.wotu.common.WLog;
+import com.wotu.utils.UtilsBase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+
+// The album list of a LocalAlbumSet on disk: the bucket ids, names, item
+// counts and covers. It is written after each successful load and read,
+// memory-mapped, at startup, so the albums show up before the media
+// provider has run the GROUP BY query over the whole Files table.
+//
+// A snapshot only stands in until the next load replaces it. It is ignored
+// if it was written for another MediaStore, see MediaStore.getVersion(), or
+// if its checksum does not match.
+//
+// The file is big-endian:
+//
+//   int magic, int format version, long generation,
+//   short length + UTF-8 bytes of the MediaStore version, int entry count,
+//   for each entry: int bucket id, int media type, int item count,
+//       int cover id, short length + UTF-8 bytes of the bucket name,
+//   int Adler32 checksum of all the bytes before it.
+public class MediaIndexSnapshot {
+    private static final String TAG = "MediaIndexSnapshot";
+
+    private static final int MAGIC = 0x57544D49;
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Larger files are not snapshots of ours.
+    private static final int MAX_FILE_SIZE = 4 * 1024 * 1024;
+
+    public static final int INVALID_ID = -1;
+
+    public static class Entry {
+        public final int bucketId;
+        // One of FileColumns.MEDIA_TYPE_*.
+        public final int mediaType;
+        public final String bucketName;
+        public final int count;
+        // The _id of the cover item, or INVALID_ID.
+        public final int coverId;
+
+        public Entry(int bucketId, int mediaType, String bucketName,
+                int count, int coverId) {
+            this.bucketId = bucketId;
+            this.mediaType = mediaType;
+            this.bucketName = bucketName;
+            this.count = count;
+            this.coverId = coverId;
+        }
+    }
+
+    // Counts the snapshots written for a MediaStore, so a newer snapshot can
+    // be told from an older one.
+    public final long generation;
+    public final Entry[] entries;
+
+    private MediaIndexSnapshot(long generation, Entry[] entries) {
+        this.generation = generation;
+        this.entries = entries;
+    }
+
+    // Returns null if there is no usable snapshot for "storeVersion", or if
+    // it is null.
+    public static MediaIndexSnapshot read(File file, String storeVersion) {
+        if (storeVersion == null || !file.exists()) return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long size = raf.length();
+            if (size < 4 || size > MAX_FILE_SIZE) return null;
+            ByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+
+            byte[] body = new byte[(int) size - 4];
+            buffer.get(body);
+            Adler32 adler32 = new Adler32();
+            adler32.update(body);
+            if ((int) adler32.getValue() != buffer.getInt()) {
+                WLog.w(TAG, "bad checksum: " + file);
+                return null;
+            }
+
+            buffer.rewind();
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long generation = buffer.getLong();
+            if (!getString(buffer).equals(storeVersion)) return null;
+            int count = buffer.getInt();
+            // An entry takes at least 18 bytes.
+            if (count < 0 || count > size / 18) return null;
+            Entry[] entries = new Entry[count];
+            for (int i = 0; i < count; ++i) {
+                int bucketId = buffer.getInt();
+                int mediaType = buffer.getInt();
+                int itemCount = buffer.getInt();
+                int coverId = buffer.getInt();
+                entries[i] = new Entry(bucketId, mediaType, getString(buffer),
+                        itemCount, coverId);
+            }
+            return new MediaIndexSnapshot(generation, entries);
+        } catch (IOException e) {
+            WLog.w(TAG, "cannot read " + file, e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            WLog.w(TAG, "truncated: " + file);
+            return null;
+        } finally {
+            UtilsBase.closeSilently(raf);
+        }
+    }
+
+    // Replaces the snapshot in "file". The new one is written to a temporary
+    // file first, so a reader never sees half of it. Without a store version
+    // a snapshot could not be told from one of another MediaStore, so none
+    // is written and the old one is deleted.
+    public static boolean write(File file, String storeVersion,
+            long generation, Entry[] entries) {
+        if (storeVersion == null) {
+            file.delete();
+            return false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(generation);
+            putString(data, storeVersion);
+            data.writeInt(entries.length);
+            for (Entry entry : entries) {
+                data.writeInt(entry.bucketId);
+                data.writeInt(entry.mediaType);
+                data.writeInt(entry.count);
+                data.writeInt(entry.coverId);
+                putString(data, entry.bucketName);
+            }
+            data.flush();
+            Adler32 adler32 = new Adler32();
+            adler32.update(bytes.toByteArray());
+            data.writeInt((int) adler32.getValue());
+            data.flush();
+
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (temp.renameTo(file)) return true;
+            WLog.w(TAG, "cannot rename " + temp);
+        } catch (IOException e) {
+            WLog.w(TAG, "cannot write " + file, e);
+        } finally {
+            UtilsBase.closeSilently(out);
+        }
+        temp.delete();
+        return false;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putString(DataOutputStream data, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        // Bucket names are directory names, far shorter than this.
+        int length = Math.min(bytes.length, 0xFFFF);
+        data.writeShort(length);
+        data.write(bytes, 0, length);
+    }
+}
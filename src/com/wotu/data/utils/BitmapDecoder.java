@@ -16,6 +16,7 @@ import com.wotu.utils.UtilsBase;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class BitmapDecoder {
     private static final String TAG = "DecodeService";
@@ -70,6 +71,60 @@ public class BitmapDecoder {
         options.inJustDecodeBounds = false;
     }
 
+    // Decodes from the remaining bytes of the buffer, which may be a mapped
+    // file region. The buffer itself is not modified.
+    public static Bitmap decode(JobContext jc, ByteBuffer data, Options options) {
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+        return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                new ByteBufferInputStream(data.duplicate()), null, options));
+    }
+
+    public static void decodeBounds(JobContext jc, ByteBuffer data,
+            Options options) {
+        UtilsBase.assertTrue(options != null);
+        options.inJustDecodeBounds = true;
+        jc.setCancelListener(new DecodeCanceller(options));
+        BitmapFactory.decodeStream(
+                new ByteBufferInputStream(data.duplicate()), null, options);
+        options.inJustDecodeBounds = false;
+    }
+
+    // Streams a ByteBuffer to the decoder without copying it to a byte array.
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
     public static Bitmap decodeThumbnail(
             JobContext jc, String filePath, Options options, int targetSize, int type) {
         FileInputStream fis = null;
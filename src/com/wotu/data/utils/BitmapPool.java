@@ -9,6 +9,7 @@ import com.wotu.common.ThreadPool.JobContext;
 import com.wotu.utils.UtilsBase;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class BitmapPool {
@@ -92,6 +93,13 @@ public class BitmapPool {
         return getBitmap(options.outWidth, options.outHeight);
     }
 
+    private Bitmap findCachedBitmap(JobContext jc,
+            ByteBuffer data, Options options) {
+        if (mOneSize) return getBitmap();
+        BitmapDecoder.decodeBounds(jc, data, options);
+        return getBitmap(options.outWidth, options.outHeight);
+    }
+
     public Bitmap decode(JobContext jc,
             byte[] data, int offset, int length, BitmapFactory.Options options) {
         if (options == null) options = new BitmapFactory.Options();
@@ -141,4 +149,29 @@ public class BitmapPool {
             return BitmapDecoder.decode(jc, fileDescriptor, options);
         }
     }
+
+    // This is the same as the method above except the source data comes
+    // from a ByteBuffer, e.g. a slice of a mapped cache file.
+    public Bitmap decode(JobContext jc, ByteBuffer data, Options options) {
+        if (options == null) options = new BitmapFactory.Options();
+        if (options.inSampleSize < 1) options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = (options.inSampleSize == 1)
+                ? findCachedBitmap(jc, data, options) : null;
+        try {
+            Bitmap bitmap = BitmapDecoder.decode(jc, data, options);
+            if (options.inBitmap != null && options.inBitmap != bitmap) {
+                recycle(options.inBitmap);
+                options.inBitmap = null;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+
+            WLog.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+            recycle(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapDecoder.decode(jc, data, options);
+        }
+    }
 }
@@ -118,6 +118,12 @@ public class DecodeUtils {
 
         options.inJustDecodeBounds = false;
 
+        // Reserve what the decode allocates, so that concurrent decodes of
+        // large images do not exhaust the heap together.
+        int sample = Math.max(1, options.inSampleSize);
+        long bytes = 4L * ((w + sample - 1) / sample) * ((h + sample - 1) / sample);
+        if (!jc.reserveMemory(bytes)) return null;
+
         Bitmap result = BitmapFactory.decodeFileDescriptor(fd, null, options);
         if (result == null) return null;
 
@@ -0,0 +1,83 @@
+package com.wotu.utils;
+
+// The 64-bit crc of http://bioinf.cs.ucl.ac.uk/downloads/crc64/crc64.c,
+// computed eight bytes at a time (slicing-by-8).
+//
+// UtilsBase.crc64Long() ports the same code but shifts with a signed ">>",
+// which sign-extends the crc, and so returns other values. Those values are
+// kept for its callers; this class is for hashes that can change with a
+// format version, e.g. the image cache keys.
+public class Crc64 {
+    public static final long INITIAL = 0xFFFFFFFFFFFFFFFFL;
+
+    private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
+
+    // sTables[k][i] is the crc of byte i followed by k zero bytes, so eight
+    // bytes are folded in with eight lookups and no dependency between them.
+    private static final long[][] sTables = new long[8][256];
+
+    static {
+        long[] table = sTables[0];
+        for (int i = 0; i < 256; i++) {
+            long part = i;
+            for (int j = 0; j < 8; j++) {
+                long x = ((int) part & 1) != 0 ? POLY64REV : 0;
+                part = (part >>> 1) ^ x;
+            }
+            table[i] = part;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                long prev = sTables[k - 1][i];
+                sTables[k][i] = table[(int) prev & 0xff] ^ (prev >>> 8);
+            }
+        }
+    }
+
+    private Crc64() {
+    }
+
+    public static long crc64(byte[] buffer) {
+        return update(INITIAL, buffer, 0, buffer.length);
+    }
+
+    // Continues the crc over the given range of the buffer.
+    public static long update(long crc, byte[] buffer, int offset,
+            int length) {
+        int k = offset;
+        for (int end = offset + length - 7; k < end; k += 8) {
+            crc ^= (buffer[k] & 0xffL)
+                    | ((buffer[k + 1] & 0xffL) << 8)
+                    | ((buffer[k + 2] & 0xffL) << 16)
+                    | ((buffer[k + 3] & 0xffL) << 24)
+                    | ((buffer[k + 4] & 0xffL) << 32)
+                    | ((buffer[k + 5] & 0xffL) << 40)
+                    | ((buffer[k + 6] & 0xffL) << 48)
+                    | ((long) buffer[k + 7] << 56);
+            crc = step(crc);
+        }
+        long[] table = sTables[0];
+        for (int end = offset + length; k < end; ++k) {
+            crc = table[((int) crc ^ buffer[k]) & 0xff] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+
+    // Continues the crc over the 8 bytes of the value, low byte first.
+    public static long update(long crc, long value) {
+        return step(crc ^ value);
+    }
+
+    // Feeds the 8 bytes already xor'ed into the crc through the tables.
+    private static long step(long crc) {
+        long[][] t = sTables;
+        return t[7][(int) crc & 0xff]
+                ^ t[6][(int) (crc >>> 8) & 0xff]
+                ^ t[5][(int) (crc >>> 16) & 0xff]
+                ^ t[4][(int) (crc >>> 24) & 0xff]
+                ^ t[3][(int) (crc >>> 32) & 0xff]
+                ^ t[2][(int) (crc >>> 40) & 0xff]
+                ^ t[1][(int) (crc >>> 48) & 0xff]
+                ^ t[0][(int) (crc >>> 56)];
+    }
+}
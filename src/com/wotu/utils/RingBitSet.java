@@ -0,0 +1,159 @@
+package com.wotu.utils;
+
+// A fixed number of bits for the slots of a ring buffer, e.g. which slots
+// of a content window are loaded. The methods take indices into the
+// sequence the ring holds; index i is kept in bit i % capacity, so a range
+// may wrap around the end of the ring but must not be longer than it.
+//
+// The bits are packed into a long[], so finding the next clear bit skips 64
+// set bits at a time, and setting or clearing a range touches each word
+// once.
+public class RingBitSet {
+    private static final int WORD_BITS = 64;
+
+    private final int mCapacity;
+    private final long[] mWords;
+
+    public RingBitSet(int capacity) {
+        mCapacity = capacity;
+        mWords = new long[(capacity + WORD_BITS - 1) / WORD_BITS];
+    }
+
+    private RingBitSet(RingBitSet other) {
+        mCapacity = other.mCapacity;
+        mWords = other.mWords.clone();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public RingBitSet copy() {
+        return new RingBitSet(this);
+    }
+
+    public boolean get(int index) {
+        int bit = index % mCapacity;
+        return (mWords[bit / WORD_BITS] & (1L << bit)) != 0;
+    }
+
+    public void set(int index) {
+        int bit = index % mCapacity;
+        mWords[bit / WORD_BITS] |= 1L << bit;
+    }
+
+    public void clear(int index) {
+        int bit = index % mCapacity;
+        mWords[bit / WORD_BITS] &= ~(1L << bit);
+    }
+
+    // Sets the bits of [from, to).
+    public void set(int from, int to) {
+        forEachRun(from, to, true);
+    }
+
+    // Clears the bits of [from, to).
+    public void clear(int from, int to) {
+        forEachRun(from, to, false);
+    }
+
+    public void clearAll() {
+        for (int i = 0; i < mWords.length; ++i) mWords[i] = 0;
+    }
+
+    // Returns the first index of [from, to) whose bit is clear, or -1 if
+    // all of them are set.
+    public int nextClear(int from, int to) {
+        UtilsBase.assertTrue(to - from <= mCapacity);
+        if (from >= to) return -1;
+        int start = from % mCapacity;
+        int end = start + (to - from);
+        if (end <= mCapacity) {
+            int bit = nextClearBit(start, end);
+            return (bit < 0) ? -1 : from + bit - start;
+        }
+        int bit = nextClearBit(start, mCapacity);
+        if (bit >= 0) return from + bit - start;
+        bit = nextClearBit(0, end - mCapacity);
+        return (bit < 0) ? -1 : from + mCapacity - start + bit;
+    }
+
+    // Returns the last index of [from, to) whose bit is clear, or -1 if all
+    // of them are set.
+    public int previousClear(int from, int to) {
+        UtilsBase.assertTrue(to - from <= mCapacity);
+        if (from >= to) return -1;
+        int start = from % mCapacity;
+        int end = start + (to - from);
+        if (end <= mCapacity) {
+            int bit = previousClearBit(start, end);
+            return (bit < 0) ? -1 : from + bit - start;
+        }
+        int bit = previousClearBit(0, end - mCapacity);
+        if (bit >= 0) return from + mCapacity - start + bit;
+        bit = previousClearBit(start, mCapacity);
+        return (bit < 0) ? -1 : from + bit - start;
+    }
+
+    // Sets or clears the bits of [from, to), as up to two runs of bits
+    // which do not wrap.
+    private void forEachRun(int from, int to, boolean value) {
+        UtilsBase.assertTrue(to - from <= mCapacity);
+        if (from >= to) return;
+        int start = from % mCapacity;
+        int end = start + (to - from);
+        if (end <= mCapacity) {
+            setBits(start, end, value);
+        } else {
+            setBits(start, mCapacity, value);
+            setBits(0, end - mCapacity, value);
+        }
+    }
+
+    // The bit ranges below are within [0, mCapacity).
+
+    private void setBits(int start, int end, boolean value) {
+        int first = start / WORD_BITS;
+        int last = (end - 1) / WORD_BITS;
+        for (int i = first; i <= last; ++i) {
+            long mask = -1L;
+            if (i == first) mask &= -1L << start;
+            if (i == last) mask &= -1L >>> (WORD_BITS - 1 - (end - 1) % WORD_BITS);
+            if (value) {
+                mWords[i] |= mask;
+            } else {
+                mWords[i] &= ~mask;
+            }
+        }
+    }
+
+    private int nextClearBit(int start, int end) {
+        if (start >= end) return -1;
+        int i = start / WORD_BITS;
+        long word = ~mWords[i] & (-1L << start);
+        while (true) {
+            if (word != 0) {
+                int bit = i * WORD_BITS + Long.numberOfTrailingZeros(word);
+                return (bit < end) ? bit : -1;
+            }
+            if (++i * WORD_BITS >= end) return -1;
+            word = ~mWords[i];
+        }
+    }
+
+    private int previousClearBit(int start, int end) {
+        if (start >= end) return -1;
+        int i = (end - 1) / WORD_BITS;
+        long word = ~mWords[i]
+                & (-1L >>> (WORD_BITS - 1 - (end - 1) % WORD_BITS));
+        while (true) {
+            if (word != 0) {
+                int bit = i * WORD_BITS + WORD_BITS - 1
+                        - Long.numberOfLeadingZeros(word);
+                return (bit >= start) ? bit : -1;
+            }
+            if (--i < 0 || (i + 1) * WORD_BITS <= start) return -1;
+            word = ~mWords[i];
+        }
+    }
+}
@@ -120,7 +120,31 @@ public class UtilsBase {
         if (in == null || in.length() == 0) {
             return 0;
         }
-        return crc64Long(getBytes(in));
+        return crc64Long(INITIALCRC, in);
+    }
+
+    /**
+     * Continues a 64-bit crc over the chars of the string, low byte first,
+     * the same bytes {@link #getBytes(String)} produces. Nothing is allocated.
+     */
+    public static final long crc64Long(long crc, String in) {
+        for (int i = 0, n = in.length(); i < n; ++i) {
+            char ch = in.charAt(i);
+            crc = sCrcTable[(((int) crc) ^ ch) & 0xff] ^ (crc >> 8);
+            crc = sCrcTable[(((int) crc) ^ (ch >> 8)) & 0xff] ^ (crc >> 8);
+        }
+        return crc;
+    }
+
+    /**
+     * Continues a 64-bit crc over the 8 bytes of the value, low byte first.
+     */
+    public static final long crc64Long(long crc, long value) {
+        for (int i = 0; i < 8; ++i) {
+            crc = sCrcTable[(((int) crc) ^ (int) value) & 0xff] ^ (crc >> 8);
+            value >>>= 8;
+        }
+        return crc;
     }
 
     static {
@@ -0,0 +1,110 @@
+package com.wotu.common;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class AsyncFutureTest extends TestCase {
+    private static final AsyncFuture.Function<Integer, Integer> INCREMENT =
+            new AsyncFuture.Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer a) {
+                    return a + 1;
+                }
+            };
+
+    public void testChain() {
+        AsyncFuture<Integer> future = AsyncFuture.completed(1)
+                .thenApply(INCREMENT, AsyncFuture.DIRECT)
+                .thenApply(INCREMENT, AsyncFuture.DIRECT);
+        assertEquals(Integer.valueOf(3), future.get());
+        assertFalse(future.isCancelled());
+        assertNull(future.getFailure());
+    }
+
+    // A null result is a result; the next step runs on it.
+    public void testNullResultIsNotCancelled() {
+        final boolean[] ran = new boolean[1];
+        AsyncFuture<String> future = AsyncFuture.completed((String) null)
+                .thenApply(new AsyncFuture.Function<String, String>() {
+                    @Override
+                    public String apply(String a) {
+                        ran[0] = true;
+                        return a;
+                    }
+                }, AsyncFuture.DIRECT);
+        assertTrue(ran[0]);
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+    }
+
+    public void testCancelledSkipsSteps() {
+        AsyncFuture<Integer> first = new AsyncFuture<Integer>();
+        AsyncFuture<Integer> last = first
+                .thenApply(INCREMENT, AsyncFuture.DIRECT)
+                .thenApply(INCREMENT, AsyncFuture.DIRECT);
+        first.completeCancelled();
+        assertTrue(last.isDone());
+        assertTrue(last.isCancelled());
+        assertNull(last.get());
+    }
+
+    public void testFailurePropagates() {
+        final RuntimeException failure = new RuntimeException("step");
+        AsyncFuture<Integer> last = AsyncFuture.completed(1)
+                .thenApply(new AsyncFuture.Function<Integer, Integer>() {
+                    @Override
+                    public Integer apply(Integer a) {
+                        throw failure;
+                    }
+                }, AsyncFuture.DIRECT)
+                .thenApply(INCREMENT, AsyncFuture.DIRECT);
+        assertTrue(last.isDone());
+        assertFalse(last.isCancelled());
+        assertSame(failure, last.getFailure());
+    }
+
+    public void testAllOf() {
+        List<AsyncFuture<Integer>> futures =
+                new ArrayList<AsyncFuture<Integer>>();
+        futures.add(AsyncFuture.completed(1));
+        futures.add(new AsyncFuture<Integer>());
+        AsyncFuture<List<Integer>> all = AsyncFuture.allOf(futures);
+        assertFalse(all.isDone());
+        futures.get(1).complete(2);
+        assertEquals(2, all.get().size());
+
+        futures.set(1, new AsyncFuture<Integer>());
+        all = AsyncFuture.allOf(futures);
+        futures.get(1).completeCancelled();
+        assertTrue(all.isCancelled());
+    }
+
+    // Cancelling the end of a chain cancels the pool job at its start, and
+    // the chain completes as cancelled rather than with a null result.
+    public void testCancelPoolJob() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(1), 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        AsyncFuture<Integer> job = pool.submitAsync(new Job<Integer>() {
+            @Override
+            public Integer run(JobContext jc) {
+                started.countDown();
+                while (!jc.isCancelled()) Thread.yield();
+                return null;
+            }
+        }, ThreadPool.PRIORITY_DEFAULT);
+        AsyncFuture<Integer> last = job.thenApply(INCREMENT,
+                AsyncFuture.DIRECT);
+        started.await();
+        last.cancel();
+        last.get();
+        assertTrue(job.isCancelled());
+        assertTrue(last.isCancelled());
+        assertNull(last.getFailure());
+    }
+}
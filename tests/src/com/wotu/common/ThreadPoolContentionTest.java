@@ -0,0 +1,209 @@
+package com.wotu.common;
+
+import android.util.Log;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// 64 jobs contending for the two CPU slots of a pool with a thread each.
+public class ThreadPoolContentionTest extends TestCase {
+    private static final String TAG = "ThreadPoolContentionTest";
+    private static final int JOB_COUNT = 64;
+    private static final int CPU_SLOTS = 2;
+    private static final int ROUNDS = 50;
+    private static final long WORK_NANOS = 20000;
+
+    // Every job takes and gives back a CPU slot ROUNDS times, with a little
+    // work in between. For comparison the same is done by as many plain
+    // threads with the counter ThreadPool used before, a monitor which wakes
+    // every waiter on each release.
+    public void testSlotHandoff() throws Exception {
+        // Warm up both.
+        runPool(JOB_COUNT / 4);
+        runMonitor(JOB_COUNT / 4);
+
+        final AtomicInteger maxInCpu = new AtomicInteger();
+        long poolNanos = runPool(JOB_COUNT, maxInCpu);
+        MonitorCounter monitor = new MonitorCounter(CPU_SLOTS);
+        long monitorNanos = runMonitor(JOB_COUNT, monitor);
+        double handoffs = JOB_COUNT * ROUNDS;
+        Log.i(TAG, String.format("%d jobs, %d slots, %d cores: %.0f "
+                + "handoffs/s with parked waiters, %.0f/s with a monitor "
+                + "(%d futile wakeups)", JOB_COUNT, CPU_SLOTS,
+                Runtime.getRuntime().availableProcessors(),
+                handoffs * 1e9 / poolNanos, handoffs * 1e9 / monitorNanos,
+                monitor.getFutileWakeups()));
+        assertEquals(CPU_SLOTS, maxInCpu.get());
+    }
+
+    // Cancelling a job which waits for a slot ends it at once, while the
+    // slots are still taken, and the others still get their turn.
+    public void testCancelWhileWaiting() throws Exception {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(JOB_COUNT),
+                CPU_SLOTS);
+        final AtomicIntegerArray started = new AtomicIntegerArray(JOB_COUNT);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<?>[] jobs = new Future<?>[JOB_COUNT];
+        for (int i = 0; i < JOB_COUNT; i++) {
+            final int index = i;
+            jobs[i] = pool.submit(new Job<Void>() {
+                @Override
+                public Void run(JobContext jc) {
+                    started.set(index, 1);
+                    awaitWithoutInterrupt(release);
+                    return null;
+                }
+            });
+        }
+        Thread.sleep(200);
+        int cancelled = 0;
+        for (int i = 0; i < JOB_COUNT; i += 2) {
+            if (started.get(i) == 0) {
+                jobs[i].cancel();
+                ++cancelled;
+            }
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        for (int i = 0; i < JOB_COUNT; i += 2) {
+            if (started.get(i) != 0) continue;
+            while (!jobs[i].isDone()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        int running = 0;
+        for (int i = 0; i < JOB_COUNT; i++) running += started.get(i);
+        assertEquals(CPU_SLOTS, running);
+
+        release.countDown();
+        int ran = 0;
+        for (int i = 0; i < JOB_COUNT; i++) {
+            jobs[i].waitDone();
+            ran += started.get(i);
+        }
+        assertEquals(JOB_COUNT - cancelled, ran);
+        assertTrue(cancelled >= JOB_COUNT / 2 - CPU_SLOTS);
+    }
+
+    private static long runPool(int jobCount) {
+        return runPool(jobCount, new AtomicInteger());
+    }
+
+    private static long runPool(int jobCount, final AtomicInteger maxInCpu) {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(jobCount),
+                CPU_SLOTS);
+        final AtomicInteger inCpu = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] jobs = new Future<?>[jobCount];
+        for (int i = 0; i < jobCount; i++) {
+            jobs[i] = pool.submit(new Job<Void>() {
+                @Override
+                public Void run(JobContext jc) {
+                    jc.setMode(ThreadPool.MODE_NONE);
+                    awaitWithoutInterrupt(start);
+                    for (int r = 0; r < ROUNDS; r++) {
+                        jc.setMode(ThreadPool.MODE_CPU);
+                        int n = inCpu.incrementAndGet();
+                        int max;
+                        while (n > (max = maxInCpu.get())
+                                && !maxInCpu.compareAndSet(max, n)) {
+                        }
+                        work();
+                        inCpu.decrementAndGet();
+                        jc.setMode(ThreadPool.MODE_NONE);
+                    }
+                    return null;
+                }
+            });
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> job : jobs) job.waitDone();
+        return System.nanoTime() - startNanos;
+    }
+
+    private static long runMonitor(int threadCount) throws Exception {
+        return runMonitor(threadCount, new MonitorCounter(CPU_SLOTS));
+    }
+
+    private static long runMonitor(int threadCount,
+            final MonitorCounter counter) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    awaitWithoutInterrupt(start);
+                    for (int r = 0; r < ROUNDS; r++) {
+                        counter.acquire();
+                        work();
+                        counter.release();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        return System.nanoTime() - startNanos;
+    }
+
+    // The counter of ThreadPool before it parked waiters. Counts the times
+    // a waiter woke up and found no free slot.
+    private static class MonitorCounter {
+        private int mValue;
+        private int mFutileWakeups;
+
+        public MonitorCounter(int value) {
+            mValue = value;
+        }
+
+        public synchronized void acquire() {
+            boolean woken = false;
+            while (mValue <= 0) {
+                if (woken) ++mFutileWakeups;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore.
+                }
+                woken = true;
+            }
+            --mValue;
+        }
+
+        public synchronized int getFutileWakeups() {
+            return mFutileWakeups;
+        }
+
+        public synchronized void release() {
+            ++mValue;
+            notifyAll();
+        }
+    }
+
+    private static void work() {
+        long end = System.nanoTime() + WORK_NANOS;
+        while (System.nanoTime() < end) {
+        }
+    }
+
+    private static void awaitWithoutInterrupt(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.wotu.common;
+
+import android.util.Log;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.zip.Adler32;
+
+// Decodes running next to blocking provider queries, with the queries on
+// the CPU lane as before and on the I/O lane.
+public class ThreadPoolIoLaneTest extends TestCase {
+    private static final String TAG = "ThreadPoolIoLaneTest";
+    private static final int QUERY_COUNT = 16;
+    private static final long QUERY_MS = 50;
+    private static final int DECODE_COUNT = 40;
+    // A few milliseconds of work on a desktop core.
+    private static final int DECODE_ROUNDS = 1600;
+
+    // The queries are submitted first, as when a scroll asks for the items
+    // of a window and then for their thumbnails.
+    public void testDecodeThroughput() {
+        // Warm up.
+        runMixed(LANE_IO);
+
+        long inCpuMode = runMixed(LANE_CPU);
+        long inNoMode = runMixed(LANE_CPU_NO_MODE);
+        long ioLane = runMixed(LANE_IO);
+        Log.i(TAG, String.format("%d decodes next to %d queries: %.0f/s "
+                + "with the queries holding CPU slots, %.0f/s on the same "
+                + "threads without them, %.0f/s with an I/O lane",
+                DECODE_COUNT, QUERY_COUNT, rate(inCpuMode), rate(inNoMode),
+                rate(ioLane)));
+        // On the CPU lane the decodes wait for threads behind the queries,
+        // and in CPU mode the queries hold both slots while they sleep.
+        assertTrue(ioLane < inCpuMode);
+        assertTrue(ioLane < inNoMode);
+    }
+
+    // Query jobs run as plain jobs, in their default CPU mode.
+    private static final int LANE_CPU = 0;
+    // Query jobs run as plain jobs, but leave the CPU mode first.
+    private static final int LANE_CPU_NO_MODE = 1;
+    // Query jobs are submitted with submitIo().
+    private static final int LANE_IO = 2;
+
+    // Returns the time until all decodes are done.
+    private static long runMixed(int lane) {
+        ThreadPool pool = new ThreadPool();
+        ArrayList<Future<?>> queries = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            Query query = new Query(lane == LANE_CPU_NO_MODE);
+            queries.add(lane == LANE_IO
+                    ? pool.submitIo(query, null) : pool.submit(query));
+        }
+        ArrayList<Future<?>> decodes = new ArrayList<Future<?>>();
+        for (int i = 0; i < DECODE_COUNT; i++) {
+            decodes.add(pool.submit(new Decode()));
+        }
+        for (Future<?> decode : decodes) decode.waitDone();
+        long nanos = System.nanoTime() - start;
+        for (Future<?> query : queries) query.waitDone();
+        return nanos;
+    }
+
+    private static double rate(long nanos) {
+        return DECODE_COUNT * 1e9 / nanos;
+    }
+
+    private static class Query implements Job<Void> {
+        private final boolean mLeaveCpuMode;
+
+        public Query(boolean leaveCpuMode) {
+            mLeaveCpuMode = leaveCpuMode;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            if (mLeaveCpuMode) jc.setMode(ThreadPool.MODE_NONE);
+            try {
+                Thread.sleep(QUERY_MS);
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+            return null;
+        }
+    }
+
+    // A fixed amount of work, not of time, so decodes which share a core
+    // take longer.
+    private static class Decode implements Job<Long> {
+        private static final byte[] sBuffer = new byte[16 * 1024];
+
+        @Override
+        public Long run(JobContext jc) {
+            Adler32 adler = new Adler32();
+            for (int i = 0; i < DECODE_ROUNDS; i++) adler.update(sBuffer);
+            return adler.getValue();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.wotu.common;
+
+import android.util.Log;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A burst of decodes of large images, with and without a memory budget.
+public class ThreadPoolMemoryBudgetTest extends TestCase {
+    private static final String TAG = "ThreadPoolMemoryBudgetTest";
+    private static final long MB = 1024 * 1024;
+    // The bitmap sizes of the burst: mostly full-size decodes of a large
+    // image, scaled down so the test fits a small heap, and a few
+    // subsampled ones.
+    private static final long[] DECODE_BYTES = {
+        24 * MB, 24 * MB, 6 * MB, 24 * MB, 12 * MB, 24 * MB,
+        6 * MB, 24 * MB, 24 * MB, 12 * MB, 6 * MB, 24 * MB,
+    };
+    private static final long BUDGET = 32 * MB;
+    private static final long DECODE_MS = 30;
+
+    public void testPeakHeap() {
+        // Warm up.
+        runBurst(Long.MAX_VALUE / 2);
+
+        Result unbounded = runBurst(Long.MAX_VALUE / 2);
+        Result budgeted = runBurst(BUDGET);
+        Log.i(TAG, String.format("%d decodes: peak %d MB in %d ms without "
+                + "a budget, peak %d MB in %d ms with %d MB",
+                DECODE_BYTES.length, unbounded.peakBytes / MB,
+                unbounded.nanos / 1000000, budgeted.peakBytes / MB,
+                budgeted.nanos / 1000000, BUDGET / MB));
+        assertTrue(budgeted.peakBytes <= BUDGET);
+        // Two CPU slots let two full-size decodes overlap.
+        assertEquals(48 * MB, unbounded.peakBytes);
+    }
+
+    // A decode larger than the whole budget still runs, alone.
+    public void testLargerThanBudget() {
+        ThreadPool pool = new ThreadPool();
+        pool.setMemoryBudget(8 * MB);
+        AtomicLong live = new AtomicLong();
+        AtomicLong peak = new AtomicLong();
+        Future<byte[]> big = pool.submit(new Decode(24 * MB, live, peak));
+        Future<byte[]> small = pool.submit(new Decode(4 * MB, live, peak));
+        assertEquals(24 * MB, big.get().length);
+        assertEquals(4 * MB, small.get().length);
+        assertEquals(24 * MB, peak.get());
+    }
+
+    private static class Result {
+        long peakBytes;
+        long nanos;
+    }
+
+    private static Result runBurst(long budget) {
+        ThreadPool pool = new ThreadPool();
+        pool.setMemoryBudget(budget);
+        AtomicLong live = new AtomicLong();
+        AtomicLong peak = new AtomicLong();
+        long start = System.nanoTime();
+        ArrayList<Future<byte[]>> decodes = new ArrayList<Future<byte[]>>();
+        for (long bytes : DECODE_BYTES) {
+            decodes.add(pool.submit(new Decode(bytes, live, peak)));
+        }
+        for (Future<byte[]> decode : decodes) {
+            assertNotNull(decode.get());
+        }
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        result.peakBytes = peak.get();
+        return result;
+    }
+
+    // Reserves its bitmap as DecodeUtils does, allocates it and holds it
+    // for DECODE_MS. "live" counts the bytes held by all decodes and "peak"
+    // its highest value.
+    private static class Decode implements Job<byte[]> {
+        private final long mBytes;
+        private final AtomicLong mLive;
+        private final AtomicLong mPeak;
+
+        public Decode(long bytes, AtomicLong live, AtomicLong peak) {
+            mBytes = bytes;
+            mLive = live;
+            mPeak = peak;
+        }
+
+        @Override
+        public byte[] run(JobContext jc) {
+            if (!jc.reserveMemory(mBytes)) return null;
+            byte[] bitmap = new byte[(int) mBytes];
+            long live = mLive.addAndGet(mBytes);
+            while (true) {
+                long peak = mPeak.get();
+                if (live <= peak || mPeak.compareAndSet(peak, live)) break;
+            }
+            try {
+                Thread.sleep(DECODE_MS);
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+            mLive.addAndGet(-mBytes);
+            return bitmap;
+        }
+    }
+}
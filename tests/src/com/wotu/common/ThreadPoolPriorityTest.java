@@ -0,0 +1,80 @@
+package com.wotu.common;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+// Replays a fling over an album: the visible window moves on every frame and
+// a decode is submitted for each slot which comes into view. Measures the time
+// from the last frame until the slots then visible are decoded, once with
+// all jobs in submission order and once moving the jobs which left the window
+// to PRIORITY_PREFETCH.
+public class ThreadPoolPriorityTest extends TestCase {
+    private static final String TAG = "ThreadPoolPriorityTest";
+    private static final int SLOT_COUNT = 240;
+    private static final int WINDOW = 8;
+    private static final int FRAME_MS = 4;
+    private static final int DECODE_MS = 2;
+    private static final int THREADS = 2;
+
+    public void testFlingShowsLastWindowFirst() throws InterruptedException {
+        long fifo = replayFling(false);
+        long ranked = replayFling(true);
+        Log.i(TAG, "time to last window: in order " + fifo + "ms, "
+                + "re-ranked " + ranked + "ms");
+        assertTrue(ranked * 2 < fifo);
+    }
+
+    private long replayFling(boolean rerank) throws InterruptedException {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(THREADS),
+                THREADS);
+        ArrayList<Future<Void>> jobs = new ArrayList<Future<Void>>();
+        CountDownLatch lastWindow = new CountDownLatch(WINDOW);
+        int start = 0;
+        for (; start + WINDOW <= SLOT_COUNT; start += WINDOW) {
+            boolean last = start + 2 * WINDOW > SLOT_COUNT;
+            if (rerank) {
+                for (Future<Void> job : jobs) {
+                    pool.setPriority(job, ThreadPool.PRIORITY_PREFETCH);
+                }
+            }
+            for (int i = 0; i < WINDOW; i++) {
+                jobs.add(pool.submit(new Decode(last ? lastWindow : null),
+                        null, ThreadPool.PRIORITY_DEFAULT));
+            }
+            if (!last) Thread.sleep(FRAME_MS);
+        }
+        long begin = System.currentTimeMillis();
+        lastWindow.await();
+        long elapsed = System.currentTimeMillis() - begin;
+        for (Future<Void> job : jobs) job.cancel();
+        for (Future<Void> job : jobs) job.waitDone();
+        return elapsed;
+    }
+
+    private static class Decode implements Job<Void> {
+        private final CountDownLatch mDone;
+
+        public Decode(CountDownLatch done) {
+            mDone = done;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            if (jc.isCancelled()) return null;
+            try {
+                Thread.sleep(DECODE_MS);
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+            if (mDone != null) mDone.countDown();
+            return null;
+        }
+    }
+}
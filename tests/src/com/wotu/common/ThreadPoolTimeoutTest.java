@@ -0,0 +1,83 @@
+package com.wotu.common;
+
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.common.ThreadPool.JobContext;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class ThreadPoolTimeoutTest extends TestCase {
+    private static final long TIMEOUT_MS = 200;
+
+    // The job waits longer than its timeout for the only CPU slot. Only the
+    // time it runs counts, so it does not expire.
+    public void testWaitForCpuSlotDoesNotCount() {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(2), 1);
+        Future<Boolean> blocker = pool.submit(new Sleep(2 * TIMEOUT_MS));
+        // Let the blocker take the slot first.
+        sleep(TIMEOUT_MS / 4);
+        Future<Boolean> job = pool.submit(new Sleep(TIMEOUT_MS / 4), null,
+                ThreadPool.PRIORITY_DEFAULT, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(Boolean.TRUE, blocker.get());
+        assertEquals(Boolean.TRUE, job.get());
+        assertFalse(job.isCancelled());
+        assertTrue(pool.getExpiredCounts().isEmpty());
+    }
+
+    // A job running past its timeout is cancelled and counted.
+    public void testRunningPastTimeoutExpires() {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(1), 1);
+        Future<Boolean> job = pool.submit(new Sleep(10 * TIMEOUT_MS), null,
+                ThreadPool.PRIORITY_DEFAULT, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(Boolean.FALSE, job.get());
+        assertTrue(job.isCancelled());
+        assertEquals(Integer.valueOf(1),
+                pool.getExpiredCounts().get("Sleep"));
+    }
+
+    // A job which ends just before its deadline is not cancelled after it.
+    public void testFinishedJobDoesNotExpire() {
+        ThreadPool pool = new ThreadPool(new PriorityBackend(4), 4);
+        Future<?>[] jobs = new Future<?>[50];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = pool.submit(new Sleep(10), null,
+                    ThreadPool.PRIORITY_DEFAULT, 10, TimeUnit.MILLISECONDS);
+        }
+        int expired = 0;
+        for (Future<?> job : jobs) {
+            job.waitDone();
+            if (job.isCancelled()) ++expired;
+        }
+        Integer counted = pool.getExpiredCounts().get("Sleep");
+        assertEquals(expired, (counted == null) ? 0 : counted.intValue());
+    }
+
+    // Sleeps for the given time unless cancelled first. Returns whether it
+    // slept all of it.
+    private static class Sleep implements Job<Boolean> {
+        private final long mMillis;
+
+        public Sleep(long millis) {
+            mMillis = millis;
+        }
+
+        @Override
+        public Boolean run(JobContext jc) {
+            long end = System.currentTimeMillis() + mMillis;
+            while (System.currentTimeMillis() < end) {
+                if (jc.isCancelled()) return false;
+                sleep(1);
+            }
+            return true;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs lookups from several threads at once, with and without a writer.
+public class BlobCacheConcurrencyTest extends TestCase {
+    private static final String TAG = "BlobCacheConcurrencyTest";
+    private static final int MAX_ENTRIES = 2000;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int BLOB_SIZE = 4096;
+    private static final int KEY_COUNT = 500;
+    private static final int RUN_MS = 300;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("ctest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    // Readers never see a torn or foreign blob while a writer keeps
+    // inserting and flipping the regions under them.
+    public void testLookupsWhileInserting() throws Exception {
+        final BlobCache bc = fill();
+        final AtomicInteger bad = new AtomicInteger();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong inserts = new AtomicLong();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (long i = KEY_COUNT; !isInterrupted(); i++) {
+                        long key = i % (4 * KEY_COUNT);
+                        bc.insert(key, blob(key));
+                        inserts.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    bad.incrementAndGet();
+                }
+            }
+        };
+        writer.start();
+        runReaders(bc, 4, false, new Reader() {
+            @Override
+            public void onLookup(LookupRequest req, boolean hit) {
+                if (!hit) return;
+                hits.incrementAndGet();
+                if (!isBlob(req.key, req.buffer, req.length)) {
+                    bad.incrementAndGet();
+                }
+            }
+        });
+        writer.interrupt();
+        writer.join();
+        Log.i(TAG, hits.get() + " hits checked against " + inserts.get()
+                + " inserts");
+        assertEquals(0, bad.get());
+        assertTrue(hits.get() > 0);
+        assertTrue(inserts.get() > 0);
+        bc.close();
+    }
+
+    // Lookup throughput for 1, 2, 4 and 8 threads, both sharing the cache
+    // and behind one monitor as ImageCacher used to do. The lookups only
+    // scale with as many cores as there are, so the comparison is only
+    // asserted on a device with at least four.
+    public void testThroughput() throws Exception {
+        BlobCache bc = fill();
+        StringBuilder log = new StringBuilder();
+        long serialized4 = 0;
+        long parallel4 = 0;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            long serialized = runReaders(bc, threads, true, null);
+            long parallel = runReaders(bc, threads, false, null);
+            log.append(String.format(" %d: %d/s locked, %d/s shared;",
+                    threads, serialized * 1000 / RUN_MS,
+                    parallel * 1000 / RUN_MS));
+            if (threads == 4) {
+                serialized4 = serialized;
+                parallel4 = parallel;
+            }
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        Log.i(TAG, "lookups with " + cores + " cores, by thread count:"
+                + log);
+        if (cores >= 4) {
+            assertTrue(parallel4 > serialized4 * 3 / 2);
+        }
+        bc.close();
+    }
+
+    private interface Reader {
+        void onLookup(LookupRequest req, boolean hit);
+    }
+
+    // Runs the given number of threads doing lookups of random keys for
+    // RUN_MS, and returns the number of lookups done.
+    private static long runReaders(final BlobCache bc, int threads,
+            final boolean locked, final Reader reader) throws Exception {
+        final AtomicLong count = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] end = new long[1];
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    LookupRequest req = new LookupRequest();
+                    long done = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < end[0]) {
+                            req.key = random.nextInt(KEY_COUNT);
+                            boolean hit;
+                            if (locked) {
+                                synchronized (bc) {
+                                    hit = bc.lookup(req);
+                                }
+                            } else {
+                                hit = bc.lookup(req);
+                            }
+                            if (reader != null) reader.onLookup(req, hit);
+                            ++done;
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                    count.addAndGet(done);
+                }
+            };
+            readers[t].start();
+        }
+        end[0] = System.nanoTime() + RUN_MS * 1000000L;
+        start.countDown();
+        for (Thread t : readers) t.join();
+        assertEquals(0, failed.get());
+        return count.get();
+    }
+
+    private BlobCache fill() throws IOException {
+        BlobCache bc = new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, true);
+        for (long key = 0; key < KEY_COUNT; key++) bc.insert(key, blob(key));
+        return bc;
+    }
+
+    private static byte[] blob(long key) {
+        byte[] data = new byte[BLOB_SIZE];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (key + i);
+        return data;
+    }
+
+    private static boolean isBlob(long key, byte[] buffer, int length) {
+        if (length != BLOB_SIZE) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != (byte) (key + i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package com.wotu.data.cache;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+// Checks the slices which a BlobCache with mapped data files hands out while
+// the active region grows, flips and is reopened.
+public class BlobCacheMappedTest extends TestCase {
+    private static final int MAX_ENTRIES = 100;
+    private static final int MAX_BYTES = 64 * 1024;
+    private static final int BLOB_SIZE = 1000;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("mtest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    // A slice taken while the region was small stays readable and valid
+    // while the region fills up.
+    public void testSliceSurvivesGrowth() throws IOException {
+        BlobCache bc = open(true);
+        bc.insert(0, blob(0, BLOB_SIZE));
+        LookupRequest first = slice(bc, 0);
+        for (int i = 1; i < 50; i++) {
+            bc.insert(i, blob(i, BLOB_SIZE));
+            assertSlice(bc, i, BLOB_SIZE);
+        }
+        assertTrue(bc.isSliceValid(first));
+        assertEquals(blob(0, BLOB_SIZE), first.slice);
+        bc.close();
+    }
+
+    // The regions are mapped as a whole up front, so the files have their
+    // full size from the start and are not shrunk on a flip.
+    public void testFilesAreMappedWhole() throws IOException {
+        int maxBytes = 4 * 1024 * 1024;
+        BlobCache bc = new BlobCache(mPath, MAX_ENTRIES, maxBytes, true, 0,
+                true);
+        assertEquals(maxBytes, new File(mPath + ".0").length());
+        assertEquals(maxBytes, new File(mPath + ".1").length());
+        for (int i = 0; i < 200; i++) bc.insert(i, blob(i, BLOB_SIZE));
+        assertSlice(bc, 199, BLOB_SIZE);
+        assertEquals(maxBytes, new File(mPath + ".0").length());
+        assertEquals(maxBytes, new File(mPath + ".1").length());
+        bc.close();
+    }
+
+    // A flip makes the slices handed out before it stale.
+    public void testFlipInvalidatesSlices() throws IOException {
+        BlobCache bc = open(true);
+        bc.insert(0, blob(0, BLOB_SIZE));
+        LookupRequest before = slice(bc, 0);
+        int key = 1;
+        // A region holds 64 blobs of this size.
+        for (; key < 70; key++) bc.insert(key, blob(key, BLOB_SIZE));
+        assertFalse(bc.isSliceValid(before));
+        // Key 0 is in the inactive region now, a lookup copies it over.
+        assertSlice(bc, 0, BLOB_SIZE);
+        bc.close();
+    }
+
+    // The slices of a reopened cache match what was inserted.
+    public void testReopen() throws IOException {
+        BlobCache bc = open(true);
+        for (int i = 0; i < 10; i++) bc.insert(i, blob(i, BLOB_SIZE));
+        bc.close();
+
+        bc = open(false);
+        for (int i = 0; i < 10; i++) assertSlice(bc, i, BLOB_SIZE);
+        bc.insert(10, blob(10, BLOB_SIZE));
+        assertSlice(bc, 10, BLOB_SIZE);
+        bc.close();
+    }
+
+    // lookupSlice() agrees with lookup() for blobs of any size through many
+    // flips.
+    public void testMatchesLookup() throws IOException {
+        Random random = new Random(2);
+        BlobCache bc = open(true);
+        int[] sizes = new int[300];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = random.nextInt(4 * BLOB_SIZE);
+            bc.insert(i, blob(i, sizes[i]));
+        }
+        LookupRequest req = new LookupRequest();
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] data = bc.lookup(i);
+            req.key = i;
+            boolean found = bc.lookupSlice(req);
+            assertEquals("key " + i, data != null, found);
+            if (found) {
+                assertTrue(bc.isSliceValid(req));
+                assertTrue(Arrays.equals(blob(i, sizes[i]), data));
+                assertEquals(blob(i, sizes[i]), req.slice);
+            }
+        }
+        bc.close();
+    }
+
+    private BlobCache open(boolean reset) throws IOException {
+        return new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, reset, 0, true);
+    }
+
+    private static byte[] blob(long key, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (key * 7 + i);
+        return data;
+    }
+
+    private static LookupRequest slice(BlobCache bc, long key)
+            throws IOException {
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        assertTrue("no blob for " + key, bc.lookupSlice(req));
+        return req;
+    }
+
+    private static void assertSlice(BlobCache bc, long key, int size)
+            throws IOException {
+        LookupRequest req = slice(bc, key);
+        assertEquals(blob(key, size), req.slice);
+        assertTrue(bc.isSliceValid(req));
+    }
+
+    private static void assertEquals(byte[] expected, ByteBuffer slice) {
+        byte[] actual = new byte[slice.remaining()];
+        slice.duplicate().get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+}
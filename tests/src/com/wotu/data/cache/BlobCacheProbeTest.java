@@ -0,0 +1,161 @@
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+
+// Measures the probe lengths of the Robin Hood index of BlobCache at the
+// highest load it runs at, against linear probing of the same keys in the
+// same table size, and times lookups which miss.
+public class BlobCacheProbeTest extends TestCase {
+    private static final String TAG = "BlobCacheProbeTest";
+    private static final int MAX_ENTRIES = 4096;
+    // A region flips once 85% of the slots are taken.
+    private static final int KEY_COUNT = MAX_ENTRIES * 85 / 100;
+    private static final int MISS_COUNT = 20000;
+    private static final int BLOB_SIZE = 16;
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("ptest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    public void testProbeLengthAtMaxLoad() throws IOException {
+        Random random = new Random(7);
+        HashSet<Long> keySet = new HashSet<Long>();
+        long[] keys = new long[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; ++i) {
+            long key;
+            do {
+                key = random.nextLong();
+            } while (!keySet.add(key));
+            keys[i] = key;
+        }
+        long[] misses = new long[MISS_COUNT];
+        for (int i = 0; i < MISS_COUNT; ++i) {
+            long key;
+            do {
+                key = random.nextLong();
+            } while (keySet.contains(key));
+            misses[i] = key;
+        }
+
+        BlobCache bc = new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, true);
+        LinearTable linear = new LinearTable(MAX_ENTRIES);
+        byte[] blob = new byte[BLOB_SIZE];
+        try {
+            for (long key : keys) {
+                bc.insert(key, blob);
+                linear.insert(key);
+            }
+            assertEquals(KEY_COUNT, bc.getActiveCount());
+
+            Stats robinHit = new Stats();
+            Stats linearHit = new Stats();
+            for (long key : keys) {
+                robinHit.add(bc.getProbeCount(key));
+                linearHit.add(linear.probeCount(key));
+            }
+            Stats robinMiss = new Stats();
+            Stats linearMiss = new Stats();
+            for (long key : misses) {
+                robinMiss.add(bc.getProbeCount(key));
+                linearMiss.add(linear.probeCount(key));
+            }
+
+            // Warm up, then time the misses.
+            for (long key : misses) bc.lookup(key);
+            long start = System.nanoTime();
+            for (long key : misses) assertNull(bc.lookup(key));
+            long missNanos = (System.nanoTime() - start) / MISS_COUNT;
+
+            Log.i(TAG, String.format("load %.1f%%: ",
+                    100.0 * KEY_COUNT / MAX_ENTRIES)
+                    + "hit probes robin hood " + robinHit
+                    + ", linear " + linearHit + "; miss probes robin hood "
+                    + robinMiss + ", linear " + linearMiss + "; "
+                    + missNanos + "ns per miss");
+
+            // Robin Hood moves entries around but not their total distance
+            // from home, so hits cost the same on average and less at worst.
+            assertEquals(linearHit.mSum, robinHit.mSum);
+            assertTrue(robinHit.mMax <= linearHit.mMax);
+            // A miss stops at the first entry closer to home than the key.
+            assertTrue(robinMiss.mean() < linearMiss.mean() / 2);
+        } finally {
+            bc.close();
+        }
+    }
+
+    // A linear probing table of keys with the same home slots as the index.
+    private static class LinearTable {
+        private final long[] mKeys;
+        private final boolean[] mUsed;
+
+        public LinearTable(int size) {
+            mKeys = new long[size];
+            mUsed = new boolean[size];
+        }
+
+        private int homeSlot(long key) {
+            int slot = (int) (key % mKeys.length);
+            return (slot < 0) ? slot + mKeys.length : slot;
+        }
+
+        public void insert(long key) {
+            int slot = homeSlot(key);
+            while (mUsed[slot]) slot = (slot + 1) % mKeys.length;
+            mKeys[slot] = key;
+            mUsed[slot] = true;
+        }
+
+        // The slots a lookup reads, up to the key or a free slot.
+        public int probeCount(long key) {
+            int slot = homeSlot(key);
+            int count = 1;
+            while (mUsed[slot] && mKeys[slot] != key) {
+                slot = (slot + 1) % mKeys.length;
+                ++count;
+            }
+            return count;
+        }
+    }
+
+    private static class Stats {
+        private long mSum;
+        private int mCount;
+        private int mMax;
+
+        public void add(int value) {
+            mSum += value;
+            ++mCount;
+            mMax = Math.max(mMax, value);
+        }
+
+        public double mean() {
+            return (double) mSum / mCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.2f max %d", mean(), mMax);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.wotu.data.cache;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+// Damages the active region of a BlobCache the way a process killed in the
+// middle of an insert would, and checks what reopening it recovers.
+public class BlobCacheTest extends TestCase {
+    private static final int MAX_ENTRIES = 10;
+    private static final int MAX_BYTES = 4096;
+    private static final int BLOB_SIZE = 100;
+
+    // The layout of the files, see the comment at the top of BlobCache.
+    private static final int INDEX_HEADER_SIZE = 72;
+    private static final int DATA_HEADER_SIZE = 4;
+    private static final int BLOB_HEADER_SIZE = 20;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("btest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    // Committed blobs are missing from the data file.
+    public void testTruncatedData() throws IOException {
+        BlobCache bc = open(true);
+        for (int i = 0; i < 6; i++) bc.insert(i, blob(i));
+        bc.close();
+        cutBlob(3);
+
+        bc = open(false);
+        for (int i = 0; i < 3; i++) assertBlob(bc, i);
+        for (int i = 3; i < 6; i++) assertNull(bc.lookup(i));
+        assertEquals(3, bc.getActiveCount());
+
+        bc.insert(3, blob(3));
+        assertBlob(bc, 3);
+        assertEquals(4, bc.getActiveCount());
+        bc.close();
+    }
+
+    // The header was not committed after the last two inserts, and the last
+    // blob is torn. The blob before it is replayed.
+    public void testTornTail() throws IOException {
+        BlobCache bc = open(true);
+        for (int i = 0; i < 3; i++) bc.insert(i, blob(i));
+        byte[] header = readIndexHeader();
+        for (int i = 3; i < 5; i++) bc.insert(i, blob(i));
+        bc.close();
+        writeIndexHeader(header);
+        cutBlob(4);
+
+        bc = open(false);
+        for (int i = 0; i < 4; i++) assertBlob(bc, i);
+        assertNull(bc.lookup(4));
+        assertEquals(4, bc.getActiveCount());
+        bc.close();
+
+        // The recovered header was committed.
+        bc = open(false);
+        for (int i = 0; i < 4; i++) assertBlob(bc, i);
+        assertEquals(4, bc.getActiveCount());
+        bc.close();
+    }
+
+    // The hash entry of the torn blob is in the last slot, and removing it
+    // shifts the entry in the first slot back into the last one.
+    public void testTornTailWrapsAround() throws IOException {
+        BlobCache bc = open(true);
+        // Key 8 goes to slot 8 and key 9 to slot 9. Key 18 is further from
+        // its home slot 8 there than key 9, so it takes slot 9 and moves key
+        // 9 to slot 0.
+        bc.insert(8, blob(8));
+        bc.insert(9, blob(9));
+        byte[] header = readIndexHeader();
+        bc.insert(18, blob(18));
+        bc.close();
+        writeIndexHeader(header);
+        cutBlob(2);
+
+        bc = open(false);
+        assertBlob(bc, 8);
+        assertBlob(bc, 9);
+        assertNull(bc.lookup(18));
+        assertEquals(2, bc.getActiveCount());
+        bc.close();
+    }
+
+    private BlobCache open(boolean reset) throws IOException {
+        return new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, reset);
+    }
+
+    private static byte[] blob(long key) {
+        byte[] data = new byte[BLOB_SIZE];
+        for (int i = 0; i < BLOB_SIZE; i++) data[i] = (byte) (key * 7 + i);
+        return data;
+    }
+
+    private static void assertBlob(BlobCache bc, long key) throws IOException {
+        byte[] data = bc.lookup(key);
+        assertNotNull("no blob for " + key, data);
+        assertTrue("wrong blob for " + key, Arrays.equals(blob(key), data));
+    }
+
+    // Truncates the data file of region 0 in the middle of the n-th blob
+    // inserted since the reset.
+    private void cutBlob(int n) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mPath + ".0", "rw");
+        try {
+            file.setLength(DATA_HEADER_SIZE + n * (BLOB_HEADER_SIZE + BLOB_SIZE)
+                    + BLOB_HEADER_SIZE + BLOB_SIZE / 2);
+        } finally {
+            file.close();
+        }
+    }
+
+    private byte[] readIndexHeader() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mPath + ".idx", "r");
+        try {
+            byte[] header = new byte[INDEX_HEADER_SIZE];
+            file.readFully(header);
+            return header;
+        } finally {
+            file.close();
+        }
+    }
+
+    // Puts back header slots saved by readIndexHeader(). The hash entries
+    // written since then are kept.
+    private void writeIndexHeader(byte[] header) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mPath + ".idx", "rw");
+        try {
+            file.write(header);
+        } finally {
+            file.close();
+        }
+    }
+}
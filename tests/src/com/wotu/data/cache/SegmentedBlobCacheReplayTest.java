@@ -0,0 +1,173 @@
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Replays gallery scroll traces against both eviction engines with the same
+// disk budget, and compares their hit ratio and the bytes they write.
+//
+// A trace is a series of visits to albums of a library. Most visits start at
+// the top of the album, the newest photos, and some go back to where an
+// earlier visit left off. A visit scrolls a few rows at a time, mostly down,
+// with an occasional fling. Every thumbnail which comes into view is looked
+// up on disk, and decoded and inserted on a miss; those already on screen
+// come from the memory cache and do not reach the disk.
+public class SegmentedBlobCacheReplayTest extends TestCase {
+    private static final String TAG = "SegmentedBlobCacheReplayTest";
+    private static final int[] ALBUM_SIZES = {2400, 800, 300, 100};
+    private static final int[] ALBUM_WEIGHTS = {60, 20, 15, 5};
+    private static final int MIN_BLOB = 2 * 1024;
+    private static final int MAX_BLOB = 6 * 1024;
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 6;
+    private static final int VISITS = 400;
+    // The disk budget is a fifth of the library.
+    private static final int BUDGET = 3 * 1024 * 1024;
+    private static final int SEGMENT_COUNT = 16;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("rtest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        BlobCache.deleteFiles(mPath);
+        SegmentedBlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    public void testReplay() throws IOException {
+        for (int seed = 1; seed <= 3; seed++) {
+            long[] trace = makeTrace(new Random(seed));
+
+            BlobCache regions = new BlobCache(mPath, 4096, BUDGET / 2, true);
+            Result regionResult;
+            try {
+                regionResult = replay(trace, regions);
+                regionResult.bytesWritten = regions.getBytesWritten();
+            } finally {
+                regions.close();
+            }
+
+            SegmentedBlobCache segments = new SegmentedBlobCache(mPath,
+                    BUDGET, SEGMENT_COUNT, true, 0);
+            Result segmentResult;
+            try {
+                segmentResult = replay(trace, segments);
+                segmentResult.bytesWritten = segments.getBytesWritten();
+            } finally {
+                segments.close();
+            }
+
+            Log.i(TAG, "trace " + seed + ", " + trace.length + " lookups: "
+                    + "regions " + regionResult + "; segments "
+                    + segmentResult);
+            // Every miss is inserted, so neither can write less than that.
+            assertTrue(regionResult.bytesWritten >= regionResult.missBytes);
+            assertTrue(segmentResult.bytesWritten >= segmentResult.missBytes);
+            // The two regions throw away half the budget each time one fills
+            // up; the segments throw away a sixteenth.
+            assertTrue(segmentResult.hits > regionResult.hits);
+            assertTrue(segmentResult.bytesWritten < regionResult.bytesWritten);
+        }
+    }
+
+    private static class Result {
+        int hits;
+        int lookups;
+        long missBytes;
+        long bytesWritten;
+
+        @Override
+        public String toString() {
+            return String.format("hit ratio %.1f%%, %d KB written",
+                    100.0 * hits / lookups, bytesWritten / 1024);
+        }
+    }
+
+    private static Result replay(long[] trace, BlobStore cache)
+            throws IOException {
+        Result result = new Result();
+        BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+        for (long key : trace) {
+            req.key = key;
+            ++result.lookups;
+            if (cache.lookup(req)) {
+                assertEquals(blobSize(key), req.length);
+                ++result.hits;
+            } else {
+                byte[] blob = new byte[blobSize(key)];
+                blob[0] = (byte) key;
+                cache.insert(key, blob);
+                result.missBytes += blob.length;
+            }
+        }
+        return result;
+    }
+
+    // The key of an item is its album in the high bits and its index in the
+    // album in the low ones.
+    private static long[] makeTrace(Random random) {
+        ArrayList<Long> trace = new ArrayList<Long>();
+        int[] lastTop = new int[ALBUM_SIZES.length];
+        int page = COLUMNS * ROWS;
+        for (int visit = 0; visit < VISITS; visit++) {
+            int album = pickAlbum(random);
+            int size = ALBUM_SIZES[album];
+            int top = (random.nextInt(10) < 7) ? 0 : lastTop[album];
+            int prevTop = -1;
+            int steps = 5 + random.nextInt(30);
+            for (int step = 0; step < steps; step++) {
+                // Add the items which came into view.
+                for (int i = top; i < Math.min(top + page, size); i++) {
+                    if (prevTop >= 0 && i >= prevTop && i < prevTop + page) {
+                        continue;
+                    }
+                    trace.add(((long) album << 32) | i);
+                }
+                prevTop = top;
+                int rows;
+                int dice = random.nextInt(20);
+                if (dice == 0) {
+                    rows = 10 + random.nextInt(40);    // fling down
+                } else if (dice < 3) {
+                    rows = -1 - random.nextInt(3);     // back up a little
+                } else {
+                    rows = 1 + random.nextInt(3);
+                }
+                top = Math.max(0, Math.min(size - page, top + rows * COLUMNS));
+            }
+            lastTop[album] = top;
+        }
+        long[] keys = new long[trace.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = trace.get(i);
+        return keys;
+    }
+
+    private static int pickAlbum(Random random) {
+        int dice = random.nextInt(100);
+        for (int album = 0; album < ALBUM_WEIGHTS.length; album++) {
+            dice -= ALBUM_WEIGHTS[album];
+            if (dice < 0) return album;
+        }
+        return 0;
+    }
+
+    // A fixed size per item, so a hit can be checked.
+    private static int blobSize(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return MIN_BLOB + (int) ((hash >>> 40) % (MAX_BLOB - MIN_BLOB));
+    }
+}
@@ -0,0 +1,87 @@
+package com.wotu.data.cache;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SegmentedBlobCacheTest extends TestCase {
+    private static final int SEGMENT_COUNT = 4;
+    private static final int MAX_BYTES = SEGMENT_COUNT * 1000;
+    private static final int BLOB_SIZE = 100;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("stest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SegmentedBlobCache.deleteFiles(mPath);
+        super.tearDown();
+    }
+
+    public void testReopen() throws IOException {
+        SegmentedBlobCache cache = open(true);
+        for (int i = 0; i < 10; i++) cache.insert(i, blob(i, 0));
+        cache.insert(3, blob(3, 1));
+        cache.close();
+
+        cache = open(false);
+        for (int i = 0; i < 10; i++) {
+            assertBlob(cache, i, (i == 3) ? 1 : 0);
+        }
+        cache.close();
+    }
+
+    // A key is written twice, the second blob is evicted while the segment
+    // of the first one is kept, and the cache is reopened. The first blob
+    // must not come back.
+    public void testEvictionSurvivesReopen() throws IOException {
+        SegmentedBlobCache cache = open(true);
+        // A segment holds 8 blobs. Fill the first one, so the second blob
+        // for key 1 starts the second segment.
+        cache.insert(1, blob(1, 0));
+        long key = 100;
+        for (int i = 0; i < 7; i++, key++) cache.insert(key, blob(key, 0));
+        cache.insert(1, blob(1, 1));
+
+        // The first segment is looked up, so the CLOCK hand passes it and
+        // evicts the second one once all four are full.
+        assertBlob(cache, 100, 0);
+        for (int i = 0; i < 3 * 8; i++, key++) cache.insert(key, blob(key, 0));
+        assertNull(cache.lookup(1));
+        cache.close();
+
+        cache = open(false);
+        assertNull(cache.lookup(1));
+        assertBlob(cache, 100, 0);
+        cache.close();
+    }
+
+    private SegmentedBlobCache open(boolean reset) throws IOException {
+        return new SegmentedBlobCache(mPath, MAX_BYTES, SEGMENT_COUNT, reset, 0);
+    }
+
+    private static byte[] blob(long key, int generation) {
+        byte[] data = new byte[BLOB_SIZE];
+        for (int i = 0; i < BLOB_SIZE; i++) {
+            data[i] = (byte) (key * 7 + generation * 13 + i);
+        }
+        return data;
+    }
+
+    private static void assertBlob(SegmentedBlobCache cache, long key,
+            int generation) throws IOException {
+        byte[] data = cache.lookup(key);
+        assertNotNull("no blob for " + key, data);
+        assertTrue("wrong blob for " + key,
+                Arrays.equals(blob(key, generation), data));
+    }
+}
@@ -0,0 +1,156 @@
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedBlobCacheTest extends TestCase {
+    private static final String TAG = "ShardedBlobCacheTest";
+    private static final int MAX_ENTRIES = 4000;
+    private static final int MAX_BYTES = 64 * 1024 * 1024;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("stest", null);
+        file.delete();
+        mPath = file.getPath();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ShardedBlobCache.deleteAllFiles(mPath);
+        super.tearDown();
+    }
+
+    public void testBatchSpreadsOverShards() throws IOException {
+        ShardedBlobCache cache = open(16, ShardedBlobCache.ENGINE_REGIONS);
+        long[] keys = randomKeys(new Random(3), 800);
+        byte[][] data = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) data[i] = blob(keys[i], 100);
+        cache.insertBatch(keys, data, keys.length);
+        for (long key : keys) {
+            assertTrue(Arrays.equals(blob(key, 100), cache.lookup(key)));
+        }
+        cache.close();
+        for (int i = 0; i < 16; i++) {
+            assertTrue(new File(mPath + "-" + i + ".idx").length() > 0);
+        }
+        ShardedBlobCache.deleteAllFiles(mPath);
+        assertFalse(new File(mPath + "-0.idx").exists());
+        assertFalse(new File(mPath + "-15.0").exists());
+    }
+
+    // Opening the cache with the other engine starts it empty and removes
+    // the files of the first one.
+    public void testSwitchEngine() throws IOException {
+        ShardedBlobCache cache = open(4, ShardedBlobCache.ENGINE_REGIONS);
+        cache.insert(1L << 62, blob(1, 100));
+        cache.close();
+
+        cache = open(4, ShardedBlobCache.ENGINE_SEGMENTS);
+        assertFalse(new File(mPath + "-0.idx").exists());
+        assertFalse(new File(mPath + "-3.1").exists());
+        assertNull(cache.lookup(1L << 62));
+        long[] keys = {1L << 62, 3L << 62};
+        byte[][] data = {blob(1, 100), blob(3, 200)};
+        cache.insertBatch(keys, data, 2);
+        LookupRequest req = new LookupRequest();
+        req.key = 3L << 62;
+        assertTrue(cache.lookupSlice(req));
+        assertEquals(200, req.slice.remaining());
+        assertTrue(cache.isSliceValid(req));
+        cache.close();
+
+        cache = open(4, ShardedBlobCache.ENGINE_REGIONS);
+        assertFalse(new File(mPath + "-0.seg").exists());
+        assertNull(cache.lookup(3L << 62));
+        cache.close();
+    }
+
+    // The first scan of a library: four decode threads insert thumbnails
+    // as fast as they can, into 1, 4 and 16 shards. The first round only
+    // warms up.
+    public void testInsertThroughput() throws Exception {
+        insertRate(4);
+        StringBuilder log = new StringBuilder();
+        for (int shards = 1; shards <= 16; shards *= 4) {
+            log.append(String.format(" %d shards %.1f MB/s;", shards,
+                    insertRate(shards)));
+        }
+        Log.i(TAG, "inserts by " + Runtime.getRuntime().availableProcessors()
+                + " cores:" + log);
+    }
+
+    private double insertRate(int shards) throws Exception {
+        ShardedBlobCache.deleteAllFiles(mPath);
+        ShardedBlobCache cache = open(shards, ShardedBlobCache.ENGINE_REGIONS);
+        long start = System.nanoTime();
+        long[][] keys = insertFromThreads(cache, 4, 400, 16 * 1024);
+        long nanos = System.nanoTime() - start;
+        for (long[] threadKeys : keys) {
+            for (long key : threadKeys) assertNotNull(cache.lookup(key));
+        }
+        cache.close();
+        return 4 * 400 * 16 / 1024.0 * 1e9 / nanos;
+    }
+
+    private static long[][] insertFromThreads(final ShardedBlobCache cache,
+            int threads, final int count, final int size) throws Exception {
+        final long[][] keys = new long[threads][];
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            keys[t] = randomKeys(new Random(t), count);
+            final long[] threadKeys = keys[t];
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (long key : threadKeys) {
+                            cache.insert(key, blob(key, size));
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread t : writers) t.join();
+        assertEquals(0, failed.get());
+        return keys;
+    }
+
+    private ShardedBlobCache open(int shards, int engine) throws IOException {
+        return new ShardedBlobCache(mPath, shards, MAX_ENTRIES, MAX_BYTES,
+                false, 0, false, BlobCache.CHECKSUM_FULL, engine);
+    }
+
+    // Crc64 keys, as the image cache uses, have uniform high bits.
+    private static long[] randomKeys(Random random, int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) keys[i] = random.nextLong();
+        return keys;
+    }
+
+    private static byte[] blob(long key, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (key + i);
+        return data;
+    }
+}
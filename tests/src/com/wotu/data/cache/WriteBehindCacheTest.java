@@ -0,0 +1,145 @@
+package com.wotu.data.cache;
+
+import android.util.Log;
+
+import com.wotu.data.cache.BlobCache.LookupRequest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+public class WriteBehindCacheTest extends TestCase {
+    private static final String TAG = "WriteBehindCacheTest";
+    private static final int MAX_ENTRIES = 4000;
+    private static final int MAX_BYTES = 64 * 1024 * 1024;
+    private static final int THUMB_SIZE = 40 * 1024;
+
+    private String mPath;
+    private ShardedBlobCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File file = File.createTempFile("wtest", null);
+        file.delete();
+        mPath = file.getPath();
+        mCache = new ShardedBlobCache(mPath, 4, MAX_ENTRIES, MAX_BYTES, true,
+                0, false, BlobCache.CHECKSUM_SAMPLED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        ShardedBlobCache.deleteAllFiles(mPath);
+        super.tearDown();
+    }
+
+    // A pair can be looked up from the moment insert() returns, and is
+    // on disk after flush().
+    public void testQueuedPairIsVisible() throws IOException {
+        WriteBehindCache cache = new WriteBehindCache(mCache, 1024 * 1024, 16);
+        byte[] data = blob(7, 1000);
+        assertTrue(cache.insert(7, data));
+        assertLookup(cache, 7, data);
+        cache.flush();
+        assertEquals(0, cache.getPendingBytes());
+        assertTrue(Arrays.equals(data, mCache.lookup(7)));
+        assertLookup(cache, 7, data);
+    }
+
+    // A full queue drops new pairs instead of blocking the decoder.
+    public void testFullQueueDrops() throws IOException {
+        WriteBehindCache cache = new WriteBehindCache(mCache, 1000, 16);
+        assertFalse(cache.insert(1, blob(1, 1001)));
+        assertEquals(1, cache.getDroppedCount());
+        LookupRequest req = new LookupRequest();
+        req.key = 1;
+        assertFalse(cache.lookup(req));
+    }
+
+    // The latency a decode worker sees for handing a fresh thumbnail to the
+    // cache, the last step of ImageRequest.run(): an insert into the shards
+    // before, a queued insert now. Between two inserts the worker spends
+    // about as long "decoding" as a real decode of a small thumbnail. With
+    // a single core the writer thread runs as soon as it is woken, and the
+    // queued insert pays for part of its batch.
+    public void testInsertLatency() throws IOException {
+        int count = 400;
+        byte[][] thumbs = new byte[count][];
+        Random random = new Random(4);
+        for (int i = 0; i < count; i++) thumbs[i] = blob(i, THUMB_SIZE);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) keys[i] = random.nextLong();
+
+        // Warm up both paths, on keys of their own.
+        WriteBehindCache behind = new WriteBehindCache(mCache,
+                4 * 1024 * 1024, 16);
+        for (int i = 0; i < 50; i++) {
+            mCache.insert(i, thumbs[i]);
+            behind.insert(i + 50, thumbs[i]);
+        }
+        behind.flush();
+
+        long[] direct = new long[count];
+        for (int i = 0; i < count; i++) {
+            decode(thumbs[i]);
+            long start = System.nanoTime();
+            mCache.insert(keys[i], thumbs[i]);
+            direct[i] = System.nanoTime() - start;
+        }
+
+        long[] queued = new long[count];
+        for (int i = 0; i < count; i++) {
+            decode(thumbs[i]);
+            long start = System.nanoTime();
+            behind.insert(~keys[i], thumbs[i]);
+            queued[i] = System.nanoTime() - start;
+        }
+        behind.flush();
+        for (int i = 0; i < count; i++) {
+            assertNotNull(mCache.lookup(keys[i]));
+        }
+
+        Log.i(TAG, "insert latency of a " + THUMB_SIZE / 1024
+                + "KB thumbnail: direct " + percentiles(direct)
+                + ", write-behind " + percentiles(queued) + ", "
+                + behind.getDroppedCount() + " dropped");
+        assertEquals(0, behind.getDroppedCount());
+    }
+
+    private static void assertLookup(WriteBehindCache cache, long key,
+            byte[] data) throws IOException {
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        assertTrue(cache.lookup(req));
+        assertEquals(data.length, req.length);
+        assertTrue(Arrays.equals(data, Arrays.copyOf(req.buffer, req.length)));
+    }
+
+    // Stands in for the decode and compress before the insert.
+    private static long sSink;
+
+    private static void decode(byte[] thumb) {
+        Adler32 adler = new Adler32();
+        for (int i = 0; i < 20; i++) adler.update(thumb);
+        sSink += adler.getValue();
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %dus p99 %dus",
+                sorted[sorted.length / 2] / 1000,
+                sorted[sorted.length * 99 / 100] / 1000);
+    }
+
+    private static byte[] blob(long key, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (key + i);
+        return data;
+    }
+}
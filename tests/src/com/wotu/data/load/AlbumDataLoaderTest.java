@@ -0,0 +1,463 @@
+package com.wotu.data.load;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.wotu.activity.OrientationManager;
+import com.wotu.activity.OrientationSource;
+import com.wotu.activity.WoTuActionBar;
+import com.wotu.activity.WoTuContext;
+import com.wotu.anim.CanvasAnim;
+import com.wotu.common.ThreadPool.Job;
+import com.wotu.data.DataManager;
+import com.wotu.data.MediaItem;
+import com.wotu.data.MediaSet;
+import com.wotu.data.Path;
+import com.wotu.page.PageManager;
+import com.wotu.view.GLController;
+import com.wotu.view.GLView;
+import com.wotu.view.opengl.TransitionStore;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Runs an AlbumDataLoader headless, against a fake MediaSet whose queries
+// cost a fixed time plus a time per item, and a GL thread which spends most
+// of every frame rendering.
+public class AlbumDataLoaderTest extends TestCase {
+    private static final String TAG = "AlbumDataLoaderTest";
+    private static final int ITEM_COUNT = 5000;
+    private static final int SCROLL_ITEM_COUNT = 20000;
+    // AlbumDataLoader.DATA_CACHE_SIZE.
+    private static final int WINDOW = 1000;
+    private static final long QUERY_US = 2000;
+    private static final long QUERY_ITEM_US = 50;
+    // A provider slow enough for a fling to outrun the content window.
+    private static final long SLOW_QUERY_ITEM_US = 1000;
+    private static final long FRAME_MS = 16;
+    private static final long RENDER_MS = 10;
+    // Keeps the bias of AlbumDataLoader.
+    private static final float DEFAULT_BIAS = -1;
+    // The visible slots while scrolling.
+    private static final int VISIBLE = 24;
+
+    private HandlerThread mGlThread;
+    private Handler mGlHandler;
+    private volatile boolean mRendering;
+    private FakeMediaSet mSet;
+    private AlbumDataLoader mLoader;
+    // How often each item was handed to the listener.
+    private AtomicIntegerArray mChanged;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGlThread = new HandlerThread("gl");
+        mGlThread.start();
+        mGlHandler = new Handler(mGlThread.getLooper());
+        mRendering = true;
+        mGlHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRendering) return;
+                sleep(RENDER_MS);
+                mGlHandler.postDelayed(this, FRAME_MS - RENDER_MS);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRendering = false;
+        stopLoader();
+        mGlThread.quit();
+        super.tearDown();
+    }
+
+    // Starts a loader over a fake set of "count" items, and waits until it
+    // knows the size of the set. See AlbumDataLoader.setMaxScrollBias().
+    private void startLoader(int count, long queryItemUs,
+            final float maxScrollBias) throws Exception {
+        stopLoader();
+        mSet = new FakeMediaSet(count, queryItemUs);
+        mChanged = new AtomicIntegerArray(count);
+        final CountDownLatch sized = new CountDownLatch(1);
+        mLoader = runOnGl(new Callable<AlbumDataLoader>() {
+            @Override
+            public AlbumDataLoader call() {
+                AlbumDataLoader loader = new AlbumDataLoader(
+                        new FakeContext(), mSet);
+                if (maxScrollBias >= 0) {
+                    loader.setMaxScrollBias(maxScrollBias);
+                }
+                loader.setDataListener(new AlbumDataLoader.DataListener() {
+                    @Override
+                    public void onContentChanged(int index) {
+                        mChanged.incrementAndGet(index);
+                    }
+
+                    @Override
+                    public void onSizeChanged(int size) {
+                        sized.countDown();
+                    }
+                });
+                loader.resume();
+                return loader;
+            }
+        });
+        sized.await();
+    }
+
+    private void stopLoader() throws Exception {
+        if (mLoader == null) return;
+        runOnGl(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mLoader.pause();
+                return null;
+            }
+        });
+        mLoader = null;
+    }
+
+    // Fills a whole content window and checks that each item was queried
+    // and handed out once.
+    public void testFillWindow() throws Exception {
+        startLoader(ITEM_COUNT, QUERY_ITEM_US, DEFAULT_BIAS);
+        long nanos = fill(0);
+        assertExactlyOnce(0, WINDOW);
+        Log.i(TAG, String.format("%d items in %d ms, %.0f items/s; %s",
+                WINDOW, nanos / 1000000, WINDOW * 1e9 / nanos,
+                mLoader.getLoadMetrics()));
+    }
+
+    // Moves the window away while the first one still loads. The items of
+    // the new window are still loaded once each.
+    public void testJumpWhileLoading() throws Exception {
+        startLoader(ITEM_COUNT, QUERY_ITEM_US, DEFAULT_BIAS);
+        setActiveWindow(0, WINDOW);
+        sleep(5 * FRAME_MS);
+        fill(2 * WINDOW);
+        assertExactlyOnce(2 * WINDOW, 3 * WINDOW);
+    }
+
+    // Replays scroll traces, one frame at a time, with the content window
+    // biased ahead of the scroll and centered, and counts the visible slots
+    // which are still empty at the end of each frame. The provider loads
+    // about 1000 items/s: the steady and reverse traces scroll slower than
+    // that and the flings much faster.
+    public void testScrollTraces() throws Exception {
+        String[] names = {"steady", "fling", "reverse"};
+        StringBuilder log = new StringBuilder();
+        for (int t = 0; t < names.length; t++) {
+            int[] trace = makeTrace(names[t]);
+            long biased = replay(trace, DEFAULT_BIAS);
+            long centered = replay(trace, 0);
+            double per1000 = 1000.0 / distance(trace);
+            log.append(String.format(" %s: %.1f biased, %.1f centered;",
+                    names[t], biased * per1000, centered * per1000));
+            if (!names[t].equals("fling")) {
+                assertEquals(0, biased);
+                assertEquals(0, centered);
+            }
+        }
+        Log.i(TAG, "empty visible slots per 1000 items scrolled:" + log);
+    }
+
+    // The first visible item of each frame.
+    private static int[] makeTrace(String name) {
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        int pos = 0;
+        starts.add(pos);
+        if (name.equals("steady")) {
+            for (int f = 0; f < 200; f++) starts.add(pos += 10);
+        } else if (name.equals("fling")) {
+            // Two flings, each slowing down from 40 items a frame.
+            for (int k = 0; k < 2; k++) {
+                for (int v = 40; v > 0; v--) {
+                    for (int r = 0; r < 2; r++) starts.add(pos += v);
+                }
+            }
+        } else {
+            for (int f = 0; f < 120; f++) starts.add(pos += 8);
+            for (int f = 0; f < 80; f++) starts.add(pos -= 8);
+            for (int f = 0; f < 120; f++) starts.add(pos += 8);
+        }
+        int[] trace = new int[starts.size()];
+        for (int i = 0; i < trace.length; i++) trace[i] = starts.get(i);
+        return trace;
+    }
+
+    private static long distance(int[] trace) {
+        long distance = 0;
+        for (int i = 1; i < trace.length; i++) {
+            distance += Math.abs(trace[i] - trace[i - 1]);
+        }
+        return distance;
+    }
+
+    // Returns the number of visible slots found empty, over all frames.
+    private long replay(int[] trace, float maxScrollBias) throws Exception {
+        startLoader(SCROLL_ITEM_COUNT, SLOW_QUERY_ITEM_US, maxScrollBias);
+        fillVisible(0);
+        long misses = 0;
+        for (final int start : trace) {
+            setActiveWindow(start, start + VISIBLE);
+            sleep(FRAME_MS);
+            misses += runOnGl(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int empty = 0;
+                    for (int i = start; i < start + VISIBLE; i++) {
+                        if (mLoader.get(i) == null) ++empty;
+                    }
+                    return empty;
+                }
+            });
+        }
+        return misses;
+    }
+
+    // Shows the first screen and waits until the loader is idle.
+    private void fillVisible(int start) throws Exception {
+        setActiveWindow(start, start + VISIBLE);
+        while (!isLoaded(start, start + VISIBLE)) sleep(1);
+        sleep(500);
+    }
+
+    // Sets the active window to [start, start + WINDOW) and waits until all
+    // of it is loaded. Returns the time that took.
+    private long fill(final int start) throws Exception {
+        long begin = System.nanoTime();
+        setActiveWindow(start, start + WINDOW);
+        while (!isLoaded(start, start + WINDOW)) sleep(1);
+        return System.nanoTime() - begin;
+    }
+
+    private boolean isLoaded(final int start, final int end) throws Exception {
+        return runOnGl(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (int i = start; i < end; i++) {
+                    if (mLoader.get(i) == null) return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    private void assertExactlyOnce(int start, int end) {
+        for (int i = start; i < end; i++) {
+            assertEquals("queried " + i, 1, mSet.getLoadCount(i));
+            assertEquals("changed " + i, 1, mChanged.get(i));
+        }
+    }
+
+    private void setActiveWindow(final int start, final int end)
+            throws Exception {
+        runOnGl(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mLoader.setActiveWindow(start, end);
+                return null;
+            }
+        });
+    }
+
+    private <T> T runOnGl(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        mGlHandler.post(task);
+        return task.get();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // ignore.
+        }
+    }
+
+    private static class FakeMediaSet extends MediaSet {
+        private final ArrayList<MediaItem> mItems = new ArrayList<MediaItem>();
+        private final AtomicIntegerArray mLoadCounts;
+        private final long mQueryItemUs;
+
+        public FakeMediaSet(int count, long queryItemUs) {
+            super(new Path("/fake/set", 0), nextVersionNumber());
+            mQueryItemUs = queryItemUs;
+            for (int i = 0; i < count; i++) mItems.add(new FakeItem(i));
+            mLoadCounts = new AtomicIntegerArray(count);
+        }
+
+        public int getLoadCount(int index) {
+            return mLoadCounts.get(index);
+        }
+
+        @Override
+        public int getMediaItemCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public ArrayList<MediaItem> getMediaItem(int start, int count) {
+            long micros = QUERY_US + mQueryItemUs * count;
+            sleep(micros / 1000);
+            int end = Math.min(start + count, mItems.size());
+            for (int i = start; i < end; i++) mLoadCounts.incrementAndGet(i);
+            return new ArrayList<MediaItem>(mItems.subList(start, end));
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public long reload() {
+            return mDataVersion;
+        }
+    }
+
+    private static class FakeItem extends MediaItem {
+        public FakeItem(int id) {
+            super(new Path("/fake/item", id), nextVersionNumber());
+        }
+
+        @Override
+        public Job<Bitmap> requestImage(int type) {
+            return null;
+        }
+
+        @Override
+        public Job<BitmapRegionDecoder> requestLargeImage() {
+            return null;
+        }
+
+        @Override
+        public String getMimeType() {
+            return "image/jpeg";
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+    }
+
+    // Only getGLController() is used by AlbumDataLoader.
+    private static class FakeContext implements WoTuContext {
+        @Override
+        public DataManager getDataManager() {
+            return null;
+        }
+
+        @Override
+        public PageManager getPageManager() {
+            return null;
+        }
+
+        @Override
+        public GLController getGLController() {
+            return new FakeGLController();
+        }
+
+        @Override
+        public WoTuActionBar getWoTuActionBar() {
+            return null;
+        }
+
+        @Override
+        public OrientationManager getOrientationManager() {
+            return null;
+        }
+
+        @Override
+        public TransitionStore getTransitionStore() {
+            return null;
+        }
+
+        @Override
+        public Context getAndroidContext() {
+            return null;
+        }
+    }
+
+    // The render thread is the GL thread itself here, so there is nothing
+    // to lock.
+    private static class FakeGLController implements GLController {
+        @Override
+        public void addOnGLIdleListener(OnGLIdleListener listener) {
+        }
+
+        @Override
+        public void registerLaunchedAnimation(CanvasAnim animation) {
+        }
+
+        @Override
+        public void requestRender() {
+        }
+
+        @Override
+        public void requestLayoutContentPane() {
+        }
+
+        @Override
+        public void lockRenderThread() {
+        }
+
+        @Override
+        public void unlockRenderThread() {
+        }
+
+        @Override
+        public void setContentPane(GLView content) {
+        }
+
+        @Override
+        public void setOrientationSource(OrientationSource source) {
+        }
+
+        @Override
+        public int getDisplayRotation() {
+            return 0;
+        }
+
+        @Override
+        public int getCompensation() {
+            return 0;
+        }
+
+        @Override
+        public Matrix getCompensationMatrix() {
+            return null;
+        }
+
+        @Override
+        public void freeze() {
+        }
+
+        @Override
+        public void unfreeze() {
+        }
+
+        @Override
+        public void setLightsOutMode(boolean enabled) {
+        }
+    }
+}
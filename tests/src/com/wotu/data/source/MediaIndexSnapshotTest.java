@@ -0,0 +1,257 @@
+package com.wotu.data.source;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Random;
+
+// The time until the album grid can show every album with its count, on a
+// stand-in for a Files table of 100k rows: a file of rows about as wide as
+// the provider's, which the GROUP BY reads whole, and in-memory columns for
+// the index on the bucket id. There is no SQLite, cursor window or binder,
+// so a real provider is slower than this.
+public class MediaIndexSnapshotTest extends TestCase {
+    private static final String TAG = "MediaIndexSnapshotTest";
+    private static final String STORE_VERSION = "1.0-store";
+    private static final int ROW_COUNT = 100000;
+    private static final int BUCKET_COUNT = 400;
+    // FileColumns.MEDIA_TYPE_IMAGE and MEDIA_TYPE_VIDEO.
+    private static final int MEDIA_TYPE_IMAGE = 1;
+    private static final int MEDIA_TYPE_VIDEO = 3;
+    // The other columns of a row: sizes, dates, mime type, title and so on.
+    private static final int OTHER_COLUMNS_BYTES = 200;
+
+    private File mFile;
+    private File mTable;
+    // The columns of the Files table, for the index.
+    private int[] mIds;
+    private int[] mBucketIds;
+    private int[] mMediaTypes;
+    private String[] mBucketNames;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("snapshot", null);
+        mFile.delete();
+        mTable = File.createTempFile("files", null);
+        // Most items are in a few buckets, as on a phone with a camera
+        // folder, screenshots and a long tail of app folders.
+        Random random = new Random(25);
+        mIds = new int[ROW_COUNT];
+        mBucketIds = new int[ROW_COUNT];
+        mMediaTypes = new int[ROW_COUNT];
+        mBucketNames = new String[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            double r = random.nextDouble();
+            int bucket = (int) (BUCKET_COUNT * r * r * r);
+            mIds[i] = i + 1;
+            mBucketIds[i] = ("/sdcard/dir" + bucket).hashCode();
+            mMediaTypes[i] = random.nextInt(10) == 0
+                    ? MEDIA_TYPE_VIDEO : MEDIA_TYPE_IMAGE;
+            mBucketNames[i] = "dir" + bucket;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mTable), 64 * 1024));
+        byte[] other = new byte[OTHER_COLUMNS_BYTES];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            out.writeInt(mIds[i]);
+            out.writeInt(mBucketIds[i]);
+            out.writeInt(mMediaTypes[i]);
+            out.writeUTF(mBucketNames[i]);
+            out.writeUTF("/sdcard/" + mBucketNames[i] + "/IMG_" + mIds[i]
+                    + ".jpg");
+            out.write(other);
+        }
+        out.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mTable.delete();
+        super.tearDown();
+    }
+
+    public void testTimeToFirstGrid() throws IOException {
+        // Warm up.
+        for (int i = 0; i < 3; i++) {
+            groupByWithCounts();
+            countEachAlbum();
+            MediaIndexSnapshot.write(mFile, STORE_VERSION, 1,
+                    groupByWithCounts());
+            MediaIndexSnapshot.read(mFile, STORE_VERSION);
+        }
+
+        long start = System.nanoTime();
+        MediaIndexSnapshot.Entry[] before = countEachAlbum();
+        long beforeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        MediaIndexSnapshot.Entry[] entries = groupByWithCounts();
+        long groupByNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        boolean written = MediaIndexSnapshot.write(mFile, STORE_VERSION, 2,
+                entries);
+        long writeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        MediaIndexSnapshot snapshot = MediaIndexSnapshot.read(mFile,
+                STORE_VERSION);
+        long readNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("%d albums over %d rows: %.1f ms with a "
+                + "count per album, %.1f ms with one GROUP BY, %.1f ms "
+                + "from a %d byte snapshot (written in %.1f ms)",
+                entries.length, ROW_COUNT, beforeNanos / 1e6,
+                groupByNanos / 1e6, readNanos / 1e6, mFile.length(),
+                writeNanos / 1e6));
+        assertTrue(written);
+        assertEquals(before.length, entries.length);
+        assertSameEntries(entries, snapshot.entries);
+        assertTrue(readNanos < groupByNanos);
+    }
+
+    public void testRoundTrip() throws IOException {
+        MediaIndexSnapshot.Entry[] entries = groupByWithCounts();
+        assertTrue(MediaIndexSnapshot.write(mFile, STORE_VERSION, 7,
+                entries));
+        MediaIndexSnapshot snapshot = MediaIndexSnapshot.read(mFile,
+                STORE_VERSION);
+        assertEquals(7, snapshot.generation);
+        assertSameEntries(entries, snapshot.entries);
+    }
+
+    // A snapshot of another MediaStore, or one with a flipped byte, is not
+    // used.
+    public void testRejects() throws Exception {
+        assertTrue(MediaIndexSnapshot.write(mFile, STORE_VERSION, 1,
+                groupByWithCounts()));
+        assertNull(MediaIndexSnapshot.read(mFile, "2.0-store"));
+        assertNull(MediaIndexSnapshot.read(mFile, null));
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 1);
+        raf.close();
+        assertNull(MediaIndexSnapshot.read(mFile, STORE_VERSION));
+    }
+
+    // Without a store version no snapshot is written, and an older one is
+    // deleted.
+    public void testNoStoreVersion() throws IOException {
+        assertTrue(MediaIndexSnapshot.write(mFile, STORE_VERSION, 1,
+                groupByWithCounts()));
+        assertFalse(MediaIndexSnapshot.write(mFile, null, 2,
+                groupByWithCounts()));
+        assertFalse(mFile.exists());
+    }
+
+    private static class Bucket {
+        int bucketId;
+        int mediaType;
+        String name;
+        int count;
+        int maxId = MediaIndexSnapshot.INVALID_ID;
+    }
+
+    // The query of LocalAlbumSet: one pass over the table, grouped by bucket
+    // and media type, with count(*) and MAX(_id).
+    private MediaIndexSnapshot.Entry[] groupByWithCounts() throws IOException {
+        return groupBy(true);
+    }
+
+    // The queries before the snapshot: a GROUP BY for the bucket ids and
+    // names, then a count(*) of each album's bucket and media type, which
+    // the index answers.
+    private MediaIndexSnapshot.Entry[] countEachAlbum() throws IOException {
+        MediaIndexSnapshot.Entry[] entries = groupBy(false);
+        for (int j = 0; j < entries.length; j++) {
+            MediaIndexSnapshot.Entry entry = entries[j];
+            int count = 0;
+            for (int i = 0; i < ROW_COUNT; i++) {
+                if (mBucketIds[i] == entry.bucketId
+                        && mMediaTypes[i] == entry.mediaType) {
+                    ++count;
+                }
+            }
+            entries[j] = new MediaIndexSnapshot.Entry(entry.bucketId,
+                    entry.mediaType, entry.bucketName, count, entry.coverId);
+        }
+        return entries;
+    }
+
+    private MediaIndexSnapshot.Entry[] groupBy(boolean withCounts)
+            throws IOException {
+        HashMap<Long, Bucket> groups = new HashMap<Long, Bucket>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mTable), 64 * 1024));
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                int id = in.readInt();
+                int bucketId = in.readInt();
+                int mediaType = in.readInt();
+                String name = in.readUTF();
+                in.readUTF();
+                in.skipBytes(OTHER_COLUMNS_BYTES);
+
+                Long key = ((long) bucketId << 32) | mediaType;
+                Bucket bucket = groups.get(key);
+                if (bucket == null) {
+                    bucket = new Bucket();
+                    bucket.bucketId = bucketId;
+                    bucket.mediaType = mediaType;
+                    bucket.name = name;
+                    groups.put(key, bucket);
+                }
+                if (withCounts) {
+                    ++bucket.count;
+                    bucket.maxId = Math.max(bucket.maxId, id);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return toEntries(groups);
+    }
+
+    private static MediaIndexSnapshot.Entry[] toEntries(
+            HashMap<Long, Bucket> groups) {
+        MediaIndexSnapshot.Entry[] entries =
+                new MediaIndexSnapshot.Entry[groups.size()];
+        int i = 0;
+        for (Bucket bucket : groups.values()) {
+            entries[i++] = new MediaIndexSnapshot.Entry(bucket.bucketId,
+                    bucket.mediaType, bucket.name, bucket.count,
+                    bucket.maxId);
+        }
+        return entries;
+    }
+
+    private static void assertSameEntries(MediaIndexSnapshot.Entry[] expected,
+            MediaIndexSnapshot.Entry[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].bucketId, actual[i].bucketId);
+            assertEquals(expected[i].mediaType, actual[i].mediaType);
+            assertEquals(expected[i].bucketName, actual[i].bucketName);
+            assertEquals(expected[i].count, actual[i].count);
+            assertEquals(expected[i].coverId, actual[i].coverId);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.wotu.utils;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class Crc64Test extends TestCase {
+    private static final String TAG = "Crc64Test";
+    private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
+
+    // The values of crc64.c, the C code both ports follow.
+    public void testKnownVectors() throws Exception {
+        assertEquals(0xcaa717168609f281L,
+                Crc64.crc64("123456789".getBytes("US-ASCII")));
+        assertEquals(0x13350a9130d11e97L, Crc64.crc64(
+                "The quick brown fox jumps over the lazy dog"
+                        .getBytes("US-ASCII")));
+        assertEquals(0x8d17c18f6e51defcL, Crc64.crc64(countingBytes(256)));
+        assertEquals(Crc64.INITIAL, Crc64.crc64(new byte[0]));
+    }
+
+    // UtilsBase.crc64Long() keeps the values it always had: they end up in
+    // Path ids and elsewhere.
+    public void testUtilsBaseUnchanged() throws Exception {
+        assertEquals(0x096212fa6685bfefL, UtilsBase.crc64Long(
+                "123456789".getBytes("US-ASCII")));
+        assertEquals(0x21046258d471ababL,
+                UtilsBase.crc64Long(countingBytes(256)));
+        assertEquals(0x87f960bb9d814349L,
+                UtilsBase.crc64Long("/local/image/item"));
+    }
+
+    // Every length up to a few words at every alignment, so both the
+    // eight-byte loop and the tail loop are covered.
+    public void testSlicedMatchesBytewise() {
+        Random random = new Random(10);
+        byte[] buffer = new byte[80];
+        random.nextBytes(buffer);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; offset + length <= buffer.length; length++) {
+                long seed = random.nextLong();
+                assertEquals("offset " + offset + " length " + length,
+                        bytewise(seed, buffer, offset, length),
+                        Crc64.update(seed, buffer, offset, length));
+            }
+        }
+    }
+
+    public void testLongIsEightBytes() {
+        Random random = new Random(11);
+        for (int i = 0; i < 1000; i++) {
+            long crc = random.nextLong();
+            long value = random.nextLong();
+            byte[] bytes = new byte[8];
+            for (int k = 0; k < 8; k++) bytes[k] = (byte) (value >>> (8 * k));
+            assertEquals(bytewise(crc, bytes, 0, 8), Crc64.update(crc, value));
+        }
+    }
+
+    public void testThroughput() {
+        byte[] buffer = new byte[256 * 1024];
+        new Random(12).nextBytes(buffer);
+        long sink = 0;
+        // Warm up both.
+        for (int i = 0; i < 20; i++) {
+            sink ^= Crc64.update(sink, buffer, 0, buffer.length);
+            sink ^= bytewise(sink, buffer, 0, buffer.length);
+        }
+        int rounds = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sink ^= Crc64.update(sink, buffer, 0, buffer.length);
+        }
+        long sliced = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sink ^= bytewise(sink, buffer, 0, buffer.length);
+        }
+        long bytewise = System.nanoTime() - start;
+        double megabytes = (double) rounds * buffer.length / (1 << 20);
+        Log.i(TAG, String.format("sliced %.0f MB/s, bytewise %.0f MB/s (%d)",
+                megabytes * 1e9 / sliced, megabytes * 1e9 / bytewise,
+                sink & 1));
+        assertTrue(sliced < bytewise);
+    }
+
+    // The image cache keys of a large library spread evenly over the shards
+    // of the cache, which take the high bits, and over the index slots of
+    // each shard, which take the key modulo the table size.
+    public void testImageCacheKeyDistribution() {
+        int shards = 4;
+        int slots = 1250;
+        int[] shardCounts = new int[shards];
+        int[] slotCounts = new int[slots];
+        int count = 0;
+        String[] prefixes = {"/local/image/item", "/local/video/item"};
+        // MediaItem.TYPE_THUMBNAIL and TYPE_MICROTHUMBNAIL.
+        int[] types = {1, 2};
+        for (String prefix : prefixes) {
+            long prefixId = UtilsBase.crc64Long(prefix);
+            for (int id = 1; id <= 5000; id++) {
+                // As Path.getHash().
+                long hash = UtilsBase.crc64Long(prefixId, id);
+                for (int type : types) {
+                    // As ImageCacher.makeCacheKey().
+                    long key = Crc64.update(hash, type);
+                    ++shardCounts[(int) (((key >>> 32) * shards) >>> 32)];
+                    int slot = (int) (key % slots);
+                    ++slotCounts[slot < 0 ? slot + slots : slot];
+                    ++count;
+                }
+            }
+        }
+        double shardChi = chiSquare(shardCounts, count);
+        double slotChi = chiSquare(slotCounts, count);
+        Log.i(TAG, String.format("%d keys: chi-square %.1f over %d shards, "
+                + "%.1f over %d slots", count, shardChi, shards, slotChi,
+                slots));
+        // The 99.9th percentiles for uniform keys: 16.3 for 3 degrees of
+        // freedom, about 1410 for 1249.
+        assertTrue(shardChi < 16.3);
+        assertTrue(slotChi < 1410);
+    }
+
+    private static double chiSquare(int[] counts, int total) {
+        double expected = (double) total / counts.length;
+        double sum = 0;
+        for (int c : counts) sum += (c - expected) * (c - expected) / expected;
+        return sum;
+    }
+
+    private static byte[] countingBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) i;
+        return bytes;
+    }
+
+    // One byte and one table lookup at a time, with the table built here.
+    private static final long[] sTable = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long part = i;
+            for (int j = 0; j < 8; j++) {
+                part = (part & 1) != 0 ? (part >>> 1) ^ POLY64REV : part >>> 1;
+            }
+            sTable[i] = part;
+        }
+    }
+
+    private static long bytewise(long crc, byte[] buffer, int offset,
+            int length) {
+        for (int k = offset; k < offset + length; k++) {
+            crc = sTable[(int) (crc ^ buffer[k]) & 0xff] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+}
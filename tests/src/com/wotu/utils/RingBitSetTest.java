@@ -0,0 +1,152 @@
+package com.wotu.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class RingBitSetTest extends TestCase {
+    // Not a multiple of 64, so the last word is only partly used.
+    private static final int CAPACITY = 130;
+    // A range of the whole ring starting at its last bit.
+    private static final int WRAP_FROM = 2 * CAPACITY - 1;
+    private static final int WRAP_TO = WRAP_FROM + CAPACITY;
+
+    public void testSetAndClear() {
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        bits.set(5);
+        bits.set(CAPACITY + 6);
+        assertTrue(bits.get(5));
+        assertTrue(bits.get(6));
+        assertTrue(bits.get(2 * CAPACITY + 5));
+        assertFalse(bits.get(7));
+        bits.clear(CAPACITY + 5);
+        assertFalse(bits.get(5));
+        bits.clearAll();
+        assertFalse(bits.get(6));
+    }
+
+    public void testRangeAcrossWords() {
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        bits.set(60, 70);
+        assertRange(bits, 0, CAPACITY, 60, 70);
+        bits.clear(63, 65);
+        assertFalse(bits.get(63));
+        assertFalse(bits.get(64));
+        assertTrue(bits.get(62));
+        assertTrue(bits.get(65));
+    }
+
+    public void testRangeWrapsAround() {
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        // Index CAPACITY + 120 is bit 120, index 2 * CAPACITY + 10 is bit 10.
+        bits.set(CAPACITY + 120, 2 * CAPACITY + 10);
+        for (int i = 0; i < CAPACITY; ++i) {
+            assertEquals("bit " + i, i < 10 || i >= 120, bits.get(i));
+        }
+        bits.clear(CAPACITY - 2, CAPACITY + 2);
+        assertFalse(bits.get(CAPACITY - 1));
+        assertFalse(bits.get(0));
+        assertTrue(bits.get(2));
+
+        // A range as long as the ring.
+        bits.set(CAPACITY + 7, 2 * CAPACITY + 7);
+        assertEquals(-1, bits.nextClear(7, CAPACITY + 7));
+        bits.clear(CAPACITY + 7, 2 * CAPACITY + 7);
+        assertEquals(7, bits.previousClear(7, 8));
+        assertEquals(CAPACITY + 6, bits.previousClear(7, CAPACITY + 7));
+    }
+
+    public void testNextClearAtWordBoundaries() {
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        bits.set(0, CAPACITY);
+        assertEquals(-1, bits.nextClear(0, CAPACITY));
+        for (int bit : new int[] {0, 63, 64, 127, 128, CAPACITY - 1}) {
+            bits.clear(bit);
+            assertEquals(bit, bits.nextClear(0, CAPACITY));
+            assertEquals(bit, bits.nextClear(bit, bit + 1));
+            assertEquals(-1, bits.nextClear(bit + 1, bit + 1));
+            if (bit > 0) assertEquals(-1, bits.nextClear(0, bit));
+            // The same bit in a range which starts in the last word and
+            // wraps around.
+            assertEquals(wrapped(bit), bits.nextClear(WRAP_FROM, WRAP_TO));
+            bits.set(bit);
+        }
+    }
+
+    public void testPreviousClearAtWordBoundaries() {
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        bits.set(0, CAPACITY);
+        assertEquals(-1, bits.previousClear(0, CAPACITY));
+        for (int bit : new int[] {0, 63, 64, 127, 128, CAPACITY - 1}) {
+            bits.clear(bit);
+            assertEquals(bit, bits.previousClear(0, CAPACITY));
+            assertEquals(bit, bits.previousClear(bit, bit + 1));
+            if (bit < CAPACITY - 1) {
+                assertEquals(-1, bits.previousClear(bit + 1, CAPACITY));
+            }
+            assertEquals(wrapped(bit), bits.previousClear(WRAP_FROM, WRAP_TO));
+            bits.set(bit);
+        }
+    }
+
+    // Compares every operation with a boolean[] on random ranges, most of
+    // which wrap around.
+    public void testRandomRanges() {
+        Random random = new Random(24);
+        RingBitSet bits = new RingBitSet(CAPACITY);
+        boolean[] expected = new boolean[CAPACITY];
+        for (int round = 0; round < 10000; ++round) {
+            int from = random.nextInt(10 * CAPACITY);
+            int to = from + random.nextInt(CAPACITY + 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    bits.set(from, to);
+                    for (int i = from; i < to; ++i) {
+                        expected[i % CAPACITY] = true;
+                    }
+                    break;
+                case 1:
+                    bits.clear(from, to);
+                    for (int i = from; i < to; ++i) {
+                        expected[i % CAPACITY] = false;
+                    }
+                    break;
+                case 2: {
+                    int next = -1;
+                    for (int i = from; i < to && next < 0; ++i) {
+                        if (!expected[i % CAPACITY]) next = i;
+                    }
+                    assertEquals("nextClear(" + from + ", " + to + ")",
+                            next, bits.nextClear(from, to));
+                    break;
+                }
+                default: {
+                    int previous = -1;
+                    for (int i = to - 1; i >= from && previous < 0; --i) {
+                        if (!expected[i % CAPACITY]) previous = i;
+                    }
+                    assertEquals("previousClear(" + from + ", " + to + ")",
+                            previous, bits.previousClear(from, to));
+                    break;
+                }
+            }
+        }
+        RingBitSet copy = bits.copy();
+        bits.clearAll();
+        for (int i = 0; i < CAPACITY; ++i) {
+            assertEquals("bit " + i, expected[i], copy.get(i));
+        }
+    }
+
+    // The index of the given bit in [WRAP_FROM, WRAP_TO).
+    private static int wrapped(int bit) {
+        return (bit == CAPACITY - 1) ? WRAP_FROM : 2 * CAPACITY + bit;
+    }
+
+    private static void assertRange(RingBitSet bits, int from, int to,
+            int setFrom, int setTo) {
+        for (int i = from; i < to; ++i) {
+            assertEquals("bit " + i, i >= setFrom && i < setTo, bits.get(i));
+        }
+    }
+}